@@ -0,0 +1,33 @@
+package calendaring;
+
+/** Events shaped like a typical export row: a zone, a short location and summary, one hour long. */
+final class BenchmarkEvents {
+
+  private static final String[] ZONES = {"America/New_York", "Europe/London", "Asia/Tokyo"};
+
+  private BenchmarkEvents() {
+  }
+
+  static Event event(int i) {
+    // spread over a few years so VTIMEZONE blocks cover more than one
+    int day = DateTimes.fromEpochDay(20454 + i % 1461);
+    int hour = 8 + i % 10;
+    return Event.builder()
+        .tzid(ZONES[i % ZONES.length])
+        .classification(Classification.PUBLIC)
+        .location("Room " + i % 100)
+        .priority(i % 10)
+        .summary("Meeting " + i + ", weekly sync; agenda in the doc")
+        .dtstart(DateTimes.pack(day, hour * 10000))
+        .dtend(DateTimes.pack(day, (hour + 1) * 10000))
+        .build();
+  }
+
+  static Event[] events(int count) {
+    Event[] events = new Event[count];
+    for (int i = 0; i < count; i++) {
+      events[i] = event(i);
+    }
+    return events;
+  }
+}
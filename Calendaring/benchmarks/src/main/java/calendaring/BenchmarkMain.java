@@ -0,0 +1,25 @@
+package calendaring;
+
+import java.util.Arrays;
+
+/**
+ * Entry point of benchmarks.jar: runs JMH with the GC profiler on unless another -prof is given,
+ * so every run reports allocation rate (gc.alloc.rate.norm is bytes per operation) next to the
+ * timings. Any other JMH options pass through, e.g. "WriterBenchmark -p events=1000".
+ */
+public final class BenchmarkMain {
+
+  private BenchmarkMain() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (!Arrays.asList(args).contains("-prof")) {
+      String[] withGc = new String[args.length + 2];
+      withGc[0] = "-prof";
+      withGc[1] = "gc";
+      System.arraycopy(args, 0, withGc, 2, args.length);
+      args = withGc;
+    }
+    org.openjdk.jmh.Main.main(args);
+  }
+}
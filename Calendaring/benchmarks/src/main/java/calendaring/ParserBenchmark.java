@@ -0,0 +1,68 @@
+package calendaring;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * IcsParser reading back a calendar written by IcsWriter, 1k to 1M events. The file is written
+ * once per trial into a temporary directory; after the first iteration it is in the page cache,
+ * so this measures scanning and event building rather than the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+
+  @Param({"1000", "100000", "1000000"})
+  public int events;
+
+  private Path file;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    file = Files.createTempFile("calendaring-bench", ".ics");
+    try (IcsWriter writer = new IcsWriter(new FileOutputStream(file.toFile()))) {
+      writer.beginCalendar();
+      for (int i = 0; i < events; i++) {
+        writer.writeEvent(BenchmarkEvents.event(i));
+      }
+      writer.endCalendar();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Benchmark
+  public long parse() throws IOException {
+    long count = 0;
+    try (IcsParser parser = new IcsParser(file)) {
+      while (parser.next() != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
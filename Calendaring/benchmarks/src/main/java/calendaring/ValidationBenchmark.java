@@ -0,0 +1,60 @@
+package calendaring;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The prompt validators. Dates cover the fast path (8 digits, valid and not) and input that
+ * falls back to SimpleDateFormat. Unit strings stick to valid input, since an invalid one prints
+ * a message; {@link CalendarDriver#unitError} covers the rejecting path without printing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Dates {
+    @Param({"20260315", "20260230", "2026031"})
+    public String date;
+  }
+
+  @State(Scope.Benchmark)
+  public static class ValidUnits {
+    @Param({"09", "59"})
+    public String unit;
+  }
+
+  @State(Scope.Benchmark)
+  public static class Units {
+    @Param({"59", "60", "x1"})
+    public String unit;
+  }
+
+  @Benchmark
+  public boolean isValidDateStr(Dates dates) {
+    return CalendarDriver.isValidDateStr(dates.date);
+  }
+
+  @Benchmark
+  public boolean isValidUnitStr(ValidUnits units) {
+    return CalendarDriver.isValidUnitStr(CalendarDriver.MINS, units.unit);
+  }
+
+  @Benchmark
+  public String unitError(Units units) {
+    return CalendarDriver.unitError(CalendarDriver.MINS, units.unit);
+  }
+}
@@ -0,0 +1,81 @@
+package calendaring;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * IcsWriter: one VEVENT at a time into an open writer, and whole calendars (VTIMEZONE blocks
+ * included) of 1k, 100k and 1M events. Output goes to a null stream so only encoding, escaping
+ * and folding are measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class WriterBenchmark {
+
+  @State(Scope.Thread)
+  public static class Open {
+    IcsWriter writer;
+    Event event;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      writer = new IcsWriter(OutputStream.nullOutputStream());
+      writer.beginCalendar();
+      event = BenchmarkEvents.event(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      writer.endCalendar();
+      writer.close();
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Calendar {
+    @Param({"1000", "100000", "1000000"})
+    public int events;
+
+    Event[] all;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      all = BenchmarkEvents.events(events);
+    }
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void writeEvent(Open open) throws IOException {
+    open.writer.writeEvent(open.event);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void writeCalendar(Calendar calendar) throws IOException {
+    try (IcsWriter writer = new IcsWriter(OutputStream.nullOutputStream())) {
+      writer.beginCalendar();
+      for (Event event : calendar.all) {
+        writer.writeEvent(event);
+      }
+      writer.endCalendar();
+    }
+  }
+}
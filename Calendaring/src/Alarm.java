@@ -0,0 +1,247 @@
+package calendaring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One VALARM (3.6.6) of an event: what to do (ACTION), when (TRIGGER), and how many more times
+ * after that (REPEAT, DURATION apart). An EMAIL alarm also has the SUMMARY and DESCRIPTION of the
+ * message and the ATTENDEEs it goes to; an AUDIO or EMAIL alarm may have ATTACHments.
+ *
+ * A TRIGGER is either an offset in seconds from the start of the event, or from its end when
+ * RELATED=END, negative for before; or an absolute UTC date-time. An offset trigger fires once
+ * for each occurrence of a recurring event, an absolute one only once.
+ *
+ * Alarms are immutable; use {@link #relative} or {@link #absolute}, then {@link #repeat},
+ * {@link #description}, {@link #summary}, {@link #attendees} and {@link #attachments} to fill in
+ * the rest.
+ */
+final class Alarm {
+
+  /** What {@link #parseDuration} returns for a value that is not a DURATION. */
+  static final long NOT_A_DURATION = Long.MIN_VALUE;
+
+  // in a week, day, hour, minute and second
+  private static final long[] SECONDS = {604800, 86400, 3600, 60, 1};
+
+  private final String action;
+  private final long offset;
+  private final boolean relatedToEnd;
+  private final long absolute;
+  private final int repeat;
+  private final long interval;
+  private final String description;
+  private final String summary;
+  private final List<String> attendees;
+  private final List<String> attachments;
+
+  private Alarm(String action, long offset, boolean relatedToEnd, long absolute, int repeat,
+      long interval, String description, String summary, List<String> attendees,
+      List<String> attachments) {
+    this.action = action;
+    this.offset = offset;
+    this.relatedToEnd = relatedToEnd;
+    this.absolute = absolute;
+    this.repeat = repeat;
+    this.interval = interval;
+    this.description = description;
+    this.summary = summary;
+    this.attendees = attendees;
+    this.attachments = attachments;
+  }
+
+  /** An alarm {@code offset} seconds from the start of the event, or from its end. */
+  static Alarm relative(String action, long offset, boolean relatedToEnd) {
+    return new Alarm(action, offset, relatedToEnd, DateTimes.INVALID, 0, 0, null, null,
+        Collections.<String>emptyList(), Collections.<String>emptyList());
+  }
+
+  /** An alarm at {@code dateTime}, packed yyyyMMddHHmmss UTC. */
+  static Alarm absolute(String action, long dateTime) {
+    return new Alarm(action, 0, false, dateTime, 0, 0, null, null,
+        Collections.<String>emptyList(), Collections.<String>emptyList());
+  }
+
+  /** This alarm, repeated {@code count} more times {@code interval} seconds apart. */
+  Alarm repeat(int count, long interval) {
+    return new Alarm(action, offset, relatedToEnd, absolute, count, interval, description, summary,
+        attendees, attachments);
+  }
+
+  Alarm description(String description) {
+    return new Alarm(action, offset, relatedToEnd, absolute, repeat, interval, description,
+        summary, attendees, attachments);
+  }
+
+  /** This alarm with the SUMMARY, the subject of an EMAIL alarm. */
+  Alarm summary(String summary) {
+    return new Alarm(action, offset, relatedToEnd, absolute, repeat, interval, description,
+        summary, attendees, attachments);
+  }
+
+  /** This alarm with the ATTENDEEs an EMAIL alarm goes to, as CAL-ADDRESS values. */
+  Alarm attendees(List<String> attendees) {
+    return new Alarm(action, offset, relatedToEnd, absolute, repeat, interval, description,
+        summary, copy(attendees), attachments);
+  }
+
+  /**
+   * This alarm with ATTACHs, each as it follows the property name in the file: its parameters and
+   * value, such as ";FMTTYPE=audio/basic:http://example.com/ring.au".
+   */
+  Alarm attachments(List<String> attachments) {
+    return new Alarm(action, offset, relatedToEnd, absolute, repeat, interval, description,
+        summary, attendees, copy(attachments));
+  }
+
+  private static List<String> copy(List<String> values) {
+    return values.isEmpty() ? Collections.<String>emptyList()
+        : Collections.unmodifiableList(new ArrayList<String>(values));
+  }
+
+  /** DISPLAY, AUDIO, EMAIL or whatever the calendar said. */
+  String getAction() {
+    return action;
+  }
+
+  /** Seconds from the start (or end) of the event; 0 for an absolute trigger. */
+  long getOffset() {
+    return offset;
+  }
+
+  /** Whether the offset is from the end of the event (RELATED=END). */
+  boolean isRelatedToEnd() {
+    return relatedToEnd;
+  }
+
+  /** Packed yyyyMMddHHmmss UTC, or {@link DateTimes#INVALID} for an offset trigger. */
+  long getAbsolute() {
+    return absolute;
+  }
+
+  boolean isAbsolute() {
+    return absolute != DateTimes.INVALID;
+  }
+
+  /** How many times the alarm goes off again after the first; 0 for once. */
+  int getRepeat() {
+    return repeat;
+  }
+
+  /** Seconds between repetitions. */
+  long getInterval() {
+    return interval;
+  }
+
+  /** The DESCRIPTION, or null. */
+  String getDescription() {
+    return description;
+  }
+
+  /** The SUMMARY, or null. */
+  String getSummary() {
+    return summary;
+  }
+
+  List<String> getAttendees() {
+    return attendees;
+  }
+
+  /** The ATTACHs, parameters and value each; see {@link #attachments}. */
+  List<String> getAttachments() {
+    return attachments;
+  }
+
+  //=========================================
+  // DURATION values (3.3.6)
+  //=========================================
+
+  /**
+   * Seconds in a DURATION such as -PT15M, P1D or P1DT2H, or {@link #NOT_A_DURATION}. Weeks and
+   * days are taken as 7 and 1 times 86400 seconds.
+   */
+  static long parseDuration(CharSequence s) {
+    int i = 0;
+    int n = s.length();
+    boolean negative = false;
+    if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+      negative = s.charAt(i++) == '-';
+    }
+    if (i == n || s.charAt(i++) != 'P') {
+      return NOT_A_DURATION;
+    }
+    // the units allowed from here on, in order; each may appear once
+    String units = "WD";
+    boolean time = false;
+    boolean any = false;
+    long seconds = 0;
+    while (i < n) {
+      if (s.charAt(i) == 'T' && !time) {
+        time = true;
+        units = "HMS";
+        i++;
+        if (i == n) {
+          return NOT_A_DURATION;
+        }
+        continue;
+      }
+      long value = 0;
+      int digits = 0;
+      while (i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9' && digits < 9) {
+        value = value * 10 + s.charAt(i++) - '0';
+        digits++;
+      }
+      if (digits == 0 || i == n) {
+        return NOT_A_DURATION;
+      }
+      int unit = units.indexOf(s.charAt(i++));
+      if (unit < 0) {
+        return NOT_A_DURATION;
+      }
+      char c = units.charAt(unit);
+      // a week is the whole value
+      if (c == 'W' && (any || i != n)) {
+        return NOT_A_DURATION;
+      }
+      seconds += value * SECONDS["WDHMS".indexOf(c)];
+      units = units.substring(unit + 1);
+      any = true;
+    }
+    if (!any) {
+      return NOT_A_DURATION;
+    }
+    return negative ? -seconds : seconds;
+  }
+
+  /** The DURATION value for {@code seconds}: -PT15M, P1D, P1DT2H30M and so on. */
+  static String formatDuration(long seconds) {
+    StringBuilder sb = new StringBuilder(16);
+    if (seconds < 0) {
+      sb.append('-');
+      seconds = -seconds;
+    }
+    sb.append('P');
+    if (seconds != 0 && seconds % 604800 == 0) {
+      return sb.append(seconds / 604800).append('W').toString();
+    }
+    long days = seconds / 86400;
+    long rest = seconds % 86400;
+    if (days != 0) {
+      sb.append(days).append('D');
+    }
+    if (rest != 0 || days == 0) {
+      sb.append('T');
+      if (rest >= 3600) {
+        sb.append(rest / 3600).append('H');
+      }
+      if (rest % 3600 >= 60) {
+        sb.append(rest % 3600 / 60).append('M');
+      }
+      if (rest % 60 != 0 || rest == 0) {
+        sb.append(rest % 60).append('S');
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,164 @@
+package calendaring;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * The answers to {@link CalendarDriver}'s prompts, one per line of standard input.
+ *
+ * Input is read in large blocks and split into lines at the byte level (UTF-8, with or without
+ * CR), and numbers are parsed straight from the line, so a script piping in answers for a hundred
+ * thousand events costs little more than reading it. When stdin is not a terminal nobody is there
+ * to read the prompts: {@link #out()} then discards them, and complaints about an answer go to
+ * stderr with its line number instead, so a bad script says where it went wrong.
+ */
+final class Answers {
+
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+  private final InputStream in;
+  private final boolean interactive;
+  private byte[] buf = new byte[BUFFER_SIZE];
+  private int pos;
+  private int limit;
+  private boolean eof;
+  private long lineNo;
+
+  Answers(InputStream in, boolean interactive) {
+    this.in = in;
+    this.interactive = interactive;
+  }
+
+  /** Answers from stdin, prompting only if it is a terminal. */
+  static Answers stdin() {
+    return new Answers(System.in, System.console() != null);
+  }
+
+  boolean isInteractive() {
+    return interactive;
+  }
+
+  /** Where prompts go: stdout for a person, nowhere for a script. */
+  PrintStream out() {
+    return interactive ? System.out : DISCARD;
+  }
+
+  /** Tells whoever is answering that the last answer was not accepted. */
+  void complain(String message) {
+    if (interactive) {
+      System.out.println(message);
+    }
+    else {
+      System.err.println("stdin:" + lineNo + ": " + message);
+    }
+  }
+
+  /** Like {@link #complain(String)}, counting the rejected answer against {@code field}. */
+  void complain(Metrics.Field field, String message) {
+    Metrics.invalid(field);
+    complain(message);
+  }
+
+  /**
+   * The next line, without its line break.
+   *
+   * @throws NoSuchElementException at the end of the input
+   */
+  String line() {
+    int start = pos;
+    int i = start;
+    while (true) {
+      while (i < limit && buf[i] != '\n') {
+        i++;
+      }
+      if (i < limit || eof) {
+        break;
+      }
+      // keep the partial line and read more behind it
+      int scanned = i - start;
+      fill(start);
+      start = 0;
+      i = scanned;
+    }
+    if (i == start && i == limit) {
+      throw new NoSuchElementException("the input ended before all the answers were given");
+    }
+    pos = i < limit ? i + 1 : i;
+    lineNo++;
+    int end = i;
+    if (end > start && buf[end - 1] == '\r') {
+      end--;
+    }
+    return new String(buf, start, end - start, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * The next line as an integer, ignoring surrounding blanks, or {@code otherwise} if it is not
+   * one; the line is used up either way.
+   */
+  int nextInt(int otherwise) {
+    String line = line();
+    int i = 0;
+    int end = line.length();
+    while (i < end && line.charAt(i) <= ' ') {
+      i++;
+    }
+    while (end > i && line.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    boolean negative = i < end && line.charAt(i) == '-';
+    if (i < end && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+      i++;
+    }
+    if (i == end) {
+      return otherwise;
+    }
+    long value = 0;
+    for (; i < end; i++) {
+      int digit = line.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        return otherwise;
+      }
+      value = value * 10 + digit;
+      if (value > Integer.MAX_VALUE + 1L) {
+        return otherwise;
+      }
+    }
+    value = negative ? -value : value;
+    if (value > Integer.MAX_VALUE) {
+      return otherwise;
+    }
+    return (int) value;
+  }
+
+  // moves buf[from, limit) to the front and reads after it, growing buf for very long lines
+  private void fill(int from) {
+    int kept = limit - from;
+    if (kept == buf.length) {
+      buf = Arrays.copyOf(buf, buf.length * 2);
+    }
+    else {
+      System.arraycopy(buf, from, buf, 0, kept);
+    }
+    pos = 0;
+    limit = kept;
+    try {
+      int n = in.read(buf, limit, buf.length - limit);
+      if (n < 0) {
+        eof = true;
+      }
+      else {
+        limit += n;
+      }
+    }
+    catch (IOException e) {
+      throw new NoSuchElementException("could not read the input: " + e.getMessage());
+    }
+  }
+}
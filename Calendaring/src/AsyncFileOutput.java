@@ -0,0 +1,320 @@
+package calendaring;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An OutputStream that hands its bytes to a background thread for writing to a FileChannel, so
+ * the thread producing them never waits for the disk.
+ *
+ * Bytes are copied into a ring of fixed-size direct buffers. A full buffer (or a partly filled
+ * one, on {@link #flush()}) is published to the writer thread and the producer moves on to the
+ * next. The writer thread takes every buffer published since its last pass and writes them with
+ * one gathering write, then forces the channel as the durability policy asks:
+ *
+ * <ul>
+ * <li>{@link #NEVER}: never, leaving it to the operating system (the data is forced on close only
+ *     if asked for there);</li>
+ * <li>{@link #EVERY_BATCH}: after every gathering write, so once a batch is written it is on disk;</li>
+ * <li>N &gt; 0: at most N ms after the data was written, however many batches that covers.</li>
+ * </ul>
+ *
+ * A producer only waits when every buffer in the ring is still waiting to be written, i.e. when it
+ * is ahead of the disk by the whole ring. If anything was written, closing cuts the file off where
+ * the output ended, so output written over the end of a file leaves nothing of the old end behind. If a write or force fails, the rest of the output is
+ * dropped and the first failure is thrown from the next {@link #write}, {@link #flush()} or
+ * {@link #close()}.
+ */
+final class AsyncFileOutput extends OutputStream {
+
+  /** Never force the channel while writing. */
+  static final long NEVER = -1;
+  /** Force the channel after each batch of buffers. */
+  static final long EVERY_BATCH = 0;
+
+  private static final int SLOTS = 8;
+  private static final int SLOT_SIZE = 1 << 18;
+
+  private final FileChannel channel;
+  private final long forceMillis;
+  private final ByteBuffer[] ring = new ByteBuffer[SLOTS];
+  // the slot the producer is filling
+  private ByteBuffer current;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition published = lock.newCondition();
+  private final Condition written = lock.newCondition();
+  // slots handed to the writer thread and slots it has finished with, counted from the start
+  private long publishedCount;
+  private long writtenCount;
+  private boolean closing;
+  private IOException failure;
+
+  private final Thread thread;
+
+  /**
+   * Writes to {@code channel} from its current position. {@code forceMillis} is {@link #NEVER},
+   * {@link #EVERY_BATCH} or a number of milliseconds.
+   */
+  AsyncFileOutput(FileChannel channel, long forceMillis) {
+    this.channel = channel;
+    this.forceMillis = forceMillis;
+    for (int i = 0; i < SLOTS; i++) {
+      ring[i] = ByteBuffer.allocateDirect(SLOT_SIZE);
+    }
+    current = ring[0];
+    thread = new Thread(this::drain, "ics-writer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Starts {@code path} over, creating it if need be. */
+  static AsyncFileOutput create(Path path, long forceMillis) throws IOException {
+    return new AsyncFileOutput(FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), forceMillis);
+  }
+
+  /**
+   * The durability policy for a command line value: none, batch, or a number of milliseconds;
+   * -2 if it is none of those.
+   */
+  static long forceMillis(String value) {
+    if (value.equals("none")) {
+      return NEVER;
+    }
+    if (value.equals("batch")) {
+      return EVERY_BATCH;
+    }
+    String ms = value.endsWith("ms") ? value.substring(0, value.length() - 2) : value;
+    try {
+      long millis = Long.parseLong(ms);
+      return millis > 0 ? millis : -2;
+    }
+    catch (NumberFormatException e) {
+      return -2;
+    }
+  }
+
+  //=========================================
+  // producer side
+  //=========================================
+
+  @Override
+  public void write(int b) throws IOException {
+    if (!current.hasRemaining()) {
+      publish();
+    }
+    current.put((byte) b);
+  }
+
+  @Override
+  public void write(byte[] bytes, int off, int len) throws IOException {
+    while (len > 0) {
+      if (!current.hasRemaining()) {
+        publish();
+      }
+      int n = Math.min(len, current.remaining());
+      current.put(bytes, off, n);
+      off += n;
+      len -= n;
+    }
+  }
+
+  /** Hands what has been written so far to the writer thread, without waiting for it. */
+  @Override
+  public void flush() throws IOException {
+    if (current.position() > 0) {
+      publish();
+    }
+    else {
+      check();
+    }
+  }
+
+  /**
+   * Waits until everything has been written, truncates the file there if anything was, forces it
+   * to disk unless the policy is {@link #NEVER}, and closes the channel.
+   */
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      if (closing) {
+        return;
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+    try {
+      flush();
+      lock.lock();
+      try {
+        closing = true;
+        published.signal();
+      }
+      finally {
+        lock.unlock();
+      }
+      thread.join();
+      check();
+      if (publishedCount > 0) {
+        channel.truncate(channel.position());
+      }
+      if (forceMillis != NEVER) {
+        long started = System.nanoTime();
+        channel.force(false);
+        Metrics.forced(started);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while closing");
+    }
+    finally {
+      channel.close();
+    }
+  }
+
+  // passes the current slot on and waits, if the ring is full, for the next one to be written
+  private void publish() throws IOException {
+    current.flip();
+    IOException error;
+    lock.lock();
+    try {
+      publishedCount++;
+      published.signal();
+      while (publishedCount - writtenCount == SLOTS && failure == null) {
+        written.awaitUninterruptibly();
+      }
+      error = failure;
+    }
+    finally {
+      lock.unlock();
+    }
+    current = ring[(int) (publishedCount % SLOTS)];
+    current.clear();
+    if (error != null) {
+      throw new IOException(error.getMessage(), error);
+    }
+  }
+
+  private void check() throws IOException {
+    lock.lock();
+    try {
+      if (failure != null) {
+        throw new IOException(failure.getMessage(), failure);
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  //=========================================
+  // writer thread
+  //=========================================
+
+  private void drain() {
+    ByteBuffer[] batch = new ByteBuffer[SLOTS];
+    // when written but unforced data was first left behind, for the timed policy
+    long unforcedSince = -1;
+    while (true) {
+      long from;
+      long to;
+      boolean last;
+      lock.lock();
+      try {
+        while (publishedCount == writtenCount && !closing) {
+          if (unforcedSince < 0) {
+            published.awaitUninterruptibly();
+            continue;
+          }
+          long wait = TimeUnit.MILLISECONDS.toNanos(forceMillis) - (System.nanoTime() - unforcedSince);
+          if (wait <= 0) {
+            break;
+          }
+          try {
+            published.awaitNanos(wait);
+          }
+          catch (InterruptedException e) {
+            // only close stops this thread
+          }
+        }
+        from = writtenCount;
+        to = publishedCount;
+        last = closing && from == to;
+      }
+      finally {
+        lock.unlock();
+      }
+      if (last) {
+        return;
+      }
+
+      IOException error = null;
+      try {
+        int n = 0;
+        for (long slot = from; slot < to; slot++) {
+          batch[n++] = ring[(int) (slot % SLOTS)];
+        }
+        // after a failure the slots are only handed back
+        if (!failureSeen()) {
+          long remaining = 0;
+          for (int i = 0; i < n; i++) {
+            remaining += batch[i].remaining();
+          }
+          while (remaining > 0) {
+            remaining -= channel.write(batch, 0, n);
+          }
+          if (n > 0 && unforcedSince < 0) {
+            unforcedSince = System.nanoTime();
+          }
+          if (unforcedSince >= 0 && (forceMillis == EVERY_BATCH || (forceMillis > 0
+              && System.nanoTime() - unforcedSince >= TimeUnit.MILLISECONDS.toNanos(forceMillis)))) {
+            long started = System.nanoTime();
+            channel.force(false);
+            Metrics.forced(started);
+            unforcedSince = -1;
+          }
+          else if (forceMillis == NEVER) {
+            unforcedSince = -1;
+          }
+        }
+      }
+      catch (IOException e) {
+        error = e;
+      }
+
+      lock.lock();
+      try {
+        if (error != null && failure == null) {
+          failure = error;
+        }
+        writtenCount = to;
+        written.signal();
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private boolean failureSeen() {
+    lock.lock();
+    try {
+      return failure != null;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+}
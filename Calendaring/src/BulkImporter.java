@@ -0,0 +1,658 @@
+package calendaring;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Non-interactive counterpart to the prompts in {@link CalendarDriver}. Reads one event per row
+ * from a CSV or JSON Lines file (or stdin) and streams a VEVENT for each row straight to an
+ * {@link IcsWriter}, so memory stays flat however many rows there are. Every row goes through the same
+ * field rules the prompts enforce; rows that fail are reported on stderr and skipped, and so are
+ * JSONL lines that are not a JSON object.
+ *
+ * CSV input needs a header row naming its columns, JSONL input is one flat object per line.
+ * The recognised columns are tzid (a tz database id such as America/New_York), class (1-3 or PUBLIC/PRIVATE/CONFIDENTIAL), location,
+ * priority (0-9), summary, dtstart and dtend (both YYYYMMDDTHHMMSS) and an optional rrule such as
+ * FREQ=WEEKLY;BYDAY=MO,WE;COUNT=10, plus an optional organizer and attendees (e-mail addresses,
+ * attendees separated by commas, semicolons or spaces) and uid. Rows without a uid get a new one.
+ * An optional alarm column holds reminders as DURATIONs from the start, such as -PT15M, separated
+ * by commas or spaces; each becomes a DISPLAY VALARM.
+ * Unknown columns are ignored.
+ *
+ * Rows are not checked against each other unless --conflicts asks for it: warn reports the rows
+ * that overlap an earlier row, reject skips them as well; see {@link Conflicts} for what counts as
+ * an overlap. Checking keeps every row imported so far in memory, with up to
+ * {@link Conflicts#HORIZON_DAYS} days of occurrences of each recurring row, so memory then grows
+ * with the input; off, the default, keeps it flat.
+ *
+ * With --utc the times are written in UTC rather than with their TZID, apart from recurring events
+ * (see {@link IcsWriter}).
+ *
+ * With --append the events are added to the end of an existing output file (see {@link IcsAppender})
+ * instead of replacing it.
+ *
+ * Values of the columns other than uid, dtstart and dtend repeat from row to row, so each of
+ * those columns keeps a {@link ValueDictionary} of its recent values: a value seen lately is
+ * looked up from the characters read and the String made for it before is used again, which
+ * saves making one per row, and the writer's own dictionaries (see {@link IcsWriter}) then find
+ * it by reference.
+ *
+ * The output is written on a separate thread (see {@link AsyncFileOutput}) so parsing never waits
+ * for the disk. --durability says when it is forced to disk: never, leaving that to the operating
+ * system (none, the default), after every batch of buffers, or at most MS milliseconds after it was
+ * written.
+ *
+ * Usage: --bulk (file|-) [--format csv|jsonl] [--out event.ics] [--append]
+ *   [--conflicts warn|reject|off] [--durability none|batch|MS] [--utc]
+ */
+final class BulkImporter {
+
+  static final int TZID = 0;
+  static final int CLASS = 1;
+  static final int LOCATION = 2;
+  static final int PRIORITY = 3;
+  static final int SUMMARY = 4;
+  static final int DTSTART = 5;
+  static final int DTEND = 6;
+  static final int RRULE = 7;
+  static final int ORGANIZER = 8;
+  static final int ATTENDEES = 9;
+  static final int UID = 10;
+  static final int ALARM = 11;
+  static final int COLUMNS = 12;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final long[] NO_ALARMS = new long[0];
+
+  private final BufferedReader reader;
+  private final IcsWriter writer;
+  private final boolean jsonl;
+  private final String source;
+  // null when conflicts are not checked
+  private final Conflicts conflicts;
+  private final boolean rejectConflicts;
+
+  // reused for every row and for the CSV/JSON scanners
+  private final String[] row = new String[COLUMNS];
+  private final StringBuilder token = new StringBuilder();
+  // recent values of the columns whose values repeat, null for the others
+  private final ValueDictionary<String>[] values = dictionaries();
+  private int[] csvColumns;
+  // why the JSON line just read is not an object of values, or null
+  private String malformed;
+  private long lineNo;
+  // every event of one import gets the same DTSTAMP
+  private final long dtstamp = DateTimes.nowUtc();
+  private String lastRule;
+  private Recurrence lastRecurrence;
+
+  private long written;
+  private long rejected;
+
+  BulkImporter(BufferedReader reader, IcsWriter writer, boolean jsonl, String source) {
+    this(reader, writer, jsonl, source, "off");
+  }
+
+  /** {@code conflicts} is warn, reject or off. */
+  BulkImporter(BufferedReader reader, IcsWriter writer, boolean jsonl, String source,
+      String conflicts) {
+    this.reader = reader;
+    this.writer = writer;
+    this.jsonl = jsonl;
+    this.source = source;
+    this.conflicts = conflicts.equals("off") ? null : new Conflicts();
+    this.rejectConflicts = conflicts.equals("reject");
+  }
+
+  static int run(String[] args) {
+    String input = null;
+    String format = null;
+    String out = "event.ics";
+    String conflicts = "off";
+    boolean append = false;
+    boolean utc = false;
+    long forceMillis = AsyncFileOutput.NEVER;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--format") && i + 1 < args.length) {
+        format = args[++i];
+      }
+      else if (args[i].equals("--out") && i + 1 < args.length) {
+        out = args[++i];
+      }
+      else if (args[i].equals("--append")) {
+        append = true;
+      }
+      else if (args[i].equals("--utc")) {
+        utc = true;
+      }
+      else if (args[i].equals("--conflicts") && i + 1 < args.length) {
+        conflicts = args[++i];
+      }
+      else if (args[i].equals("--durability") && i + 1 < args.length) {
+        forceMillis = AsyncFileOutput.forceMillis(args[++i]);
+        if (forceMillis < AsyncFileOutput.NEVER) {
+          return usage();
+        }
+      }
+      else if (input == null) {
+        input = args[i];
+      }
+      else {
+        return usage();
+      }
+    }
+    if (input == null) {
+      return usage();
+    }
+    if (format == null) {
+      format = input.endsWith(".jsonl") || input.endsWith(".json") ? "jsonl" : "csv";
+    }
+    if (!format.equals("csv") && !format.equals("jsonl")) {
+      return usage();
+    }
+    if (!conflicts.equals("warn") && !conflicts.equals("reject") && !conflicts.equals("off")) {
+      return usage();
+    }
+
+    try {
+      InputStream in = input.equals("-") ? System.in : new FileInputStream(input);
+      try (BufferedReader reader = new BufferedReader(
+              new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+          IcsWriter writer = append ? IcsAppender.open(Paths.get(out), forceMillis)
+              : new IcsWriter(AsyncFileOutput.create(Paths.get(out), forceMillis))) {
+        writer.utcTimes(utc);
+        BulkImporter importer = new BulkImporter(reader, writer, format.equals("jsonl"), input,
+            conflicts);
+        importer.importAll(!append);
+        System.err.println("Wrote " + importer.written + " events to " + out
+            + " (" + importer.rejected + " rows rejected).");
+        return importer.rejected == 0 ? 0 : 1;
+      }
+    }
+    catch (IOException e) {
+      System.err.println("Bulk import failed: " + e.getMessage());
+      return 1;
+    }
+  }
+
+  private static int usage() {
+    System.err.println("Usage: --bulk (file|-) [--format csv|jsonl] [--out event.ics] [--append]"
+        + " [--conflicts warn|reject|off] [--durability none|batch|MS] [--utc]");
+    return 2;
+  }
+
+  void importAll() throws IOException {
+    importAll(true);
+  }
+
+  /** Without {@code begin}, the writer is already inside a calendar, as when appending. */
+  void importAll(boolean begin) throws IOException {
+    if (begin) {
+      writer.beginCalendar();
+    }
+    while (jsonl ? readJsonRow() : readCsvRow()) {
+      String error = malformed != null ? reject(Metrics.Field.ROW, malformed) : writeRow();
+      malformed = null;
+      if (error != null) {
+        rejected++;
+        System.err.println(source + ":" + lineNo + ": " + error);
+      }
+    }
+    writer.endCalendar();
+  }
+
+  //=========================================
+  // field rules, same as the prompts
+  //=========================================
+
+  /** Validates the current row and writes it as a VEVENT. Returns the reason it was rejected, if any. */
+  private String writeRow() throws IOException {
+    String tzid = field(TZID).trim();
+    if (tzid.isEmpty()) {
+      return reject(Metrics.Field.TZID, "tzid is required");
+    }
+    tzid = VTimezones.canonicalId(tzid);
+    if (tzid == null) {
+      return reject(Metrics.Field.TZID, "unknown time zone " + field(TZID).trim());
+    }
+    Classification classification = classification(field(CLASS).trim());
+    if (classification == null) {
+      return reject(Metrics.Field.CLASS, "class must be 1-3 or PUBLIC, PRIVATE, CONFIDENTIAL");
+    }
+    int priority = smallInt(field(PRIORITY).trim());
+    if (!CalendarDriver.isValidPriority(priority)) {
+      return reject(Metrics.Field.PRIORITY, "priority must be a number from 0-9");
+    }
+    String start = field(DTSTART).trim();
+    long startDateTime = DateTimes.parseDateTime(start, 0);
+    if (startDateTime == DateTimes.INVALID) {
+      return reject(Metrics.Field.DTSTART, dateTimeError("dtstart", start));
+    }
+    String end = field(DTEND).trim();
+    long endDateTime = DateTimes.parseDateTime(end, 0);
+    if (endDateTime == DateTimes.INVALID) {
+      return reject(Metrics.Field.DTEND, dateTimeError("dtend", end));
+    }
+    if (endDateTime <= startDateTime) {
+      return reject(Metrics.Field.DTEND, "event can't end before it starts");
+    }
+    String rule = field(RRULE).trim();
+    Recurrence rrule = null;
+    if (!rule.isEmpty()) {
+      try {
+        rrule = recurrence(rule);
+      }
+      catch (IllegalArgumentException e) {
+        return reject(Metrics.Field.RRULE, "rrule: " + e.getMessage());
+      }
+    }
+
+    String organizer = field(ORGANIZER).trim();
+    if (!organizer.isEmpty() && CalendarDriver.addressError(organizer) != null) {
+      return reject(Metrics.Field.ORGANIZER,
+          "organizer: " + CalendarDriver.addressError(organizer));
+    }
+    List<String> attendees = CalendarDriver.addressList(field(ATTENDEES));
+    for (String attendee : attendees) {
+      String error = CalendarDriver.addressError(attendee);
+      if (error != null) {
+        return reject(Metrics.Field.ATTENDEE, "attendees: " + error);
+      }
+    }
+
+    List<String> triggers = row[ALARM] == null ? List.of() : CalendarDriver.addressList(row[ALARM]);
+    long[] offsets = triggers.isEmpty() ? NO_ALARMS : new long[triggers.size()];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = Alarm.parseDuration(triggers.get(i));
+      if (offsets[i] == Alarm.NOT_A_DURATION) {
+        return reject(Metrics.Field.ALARM,
+            "alarm must be a duration such as -PT15M, not " + triggers.get(i));
+      }
+    }
+
+    String uid = field(UID).trim();
+    Event.Builder builder = Event.builder()
+        .uid(uid.isEmpty() ? Event.newUid() : uid)
+        .dtstamp(dtstamp)
+        .tzid(tzid)
+        .classification(classification)
+        .location(field(LOCATION))
+        .priority(priority)
+        .summary(field(SUMMARY))
+        .dtstart(startDateTime)
+        .dtend(endDateTime)
+        .rrule(rrule)
+        .organizer(organizer.isEmpty() ? null : organizer);
+    for (String attendee : attendees) {
+      builder.attendee(attendee);
+    }
+    for (long offset : offsets) {
+      builder.alarm(Alarm.relative("DISPLAY", offset, false));
+    }
+    Event event = builder.build();
+    if (conflicts != null) {
+      int line = conflicts.firstConflict(event);
+      if (line != -1) {
+        if (rejectConflicts) {
+          return reject(Metrics.Field.CONFLICT, "overlaps the event on line " + line);
+        }
+        Metrics.invalid(Metrics.Field.CONFLICT);
+        System.err.println(source + ":" + lineNo + ": warning: overlaps the event on line " + line);
+      }
+      conflicts.add(event, (int) lineNo);
+    }
+    writer.writeEvent(event);
+    written++;
+    return null;
+  }
+
+  private static String reject(Metrics.Field field, String error) {
+    Metrics.invalid(field);
+    return error;
+  }
+
+  // exports tend to repeat the same few rules, so keep the last one parsed
+  private Recurrence recurrence(String rule) {
+    if (!rule.equals(lastRule)) {
+      lastRecurrence = Recurrence.parse(rule);
+      lastRule = rule;
+    }
+    return lastRecurrence;
+  }
+
+  private String field(int column) {
+    return row[column] == null ? "" : row[column];
+  }
+
+  // non-negative number of at most 9 digits, or -1
+  private static int smallInt(String value) {
+    if (value.isEmpty() || value.length() > 9) {
+      return -1;
+    }
+    int result = 0;
+    for (int i = 0; i < value.length(); i++) {
+      int c = value.charAt(i) - '0';
+      if (c < 0 || c > 9) {
+        return -1;
+      }
+      result = result * 10 + c;
+    }
+    return result;
+  }
+
+  private static Classification classification(String value) {
+    if (value.length() == 1) {
+      return Classification.fromMenu(value.charAt(0) - '0');
+    }
+    return Classification.parse(value);
+  }
+
+  // only reached once the fast check has failed, to say what is wrong
+  private static String dateTimeError(String name, String value) {
+    if (value.length() != 15 || value.charAt(8) != 'T') {
+      return name + " must look like YYYYMMDDTHHMMSS";
+    }
+    if (DateTimes.parseDate(value, 0) == DateTimes.INVALID) {
+      return name + " has an invalid date";
+    }
+    String error = CalendarDriver.unitError(CalendarDriver.HOURS, value.substring(9, 11));
+    if (error == null) {
+      error = CalendarDriver.unitError(CalendarDriver.MINS, value.substring(11, 13));
+    }
+    if (error == null) {
+      error = CalendarDriver.unitError(CalendarDriver.SECS, value.substring(13, 15));
+    }
+    return name + ": " + (error == null ? "invalid time" : error);
+  }
+
+  static int columnIndex(String name) {
+    switch (name.trim().toLowerCase()) {
+      case "tzid":
+        return TZID;
+      case "class":
+        return CLASS;
+      case "location":
+        return LOCATION;
+      case "priority":
+        return PRIORITY;
+      case "summary":
+        return SUMMARY;
+      case "dtstart":
+        return DTSTART;
+      case "dtend":
+        return DTEND;
+      case "rrule":
+        return RRULE;
+      case "organizer":
+        return ORGANIZER;
+      case "attendees":
+      case "attendee":
+        return ATTENDEES;
+      case "uid":
+        return UID;
+      case "alarm":
+      case "alarms":
+        return ALARM;
+      default:
+        return -1;
+    }
+  }
+
+  //=========================================
+  // CSV (RFC 4180 quoting, header row first)
+  //=========================================
+
+  private boolean readCsvRow() throws IOException {
+    if (csvColumns == null) {
+      String header = nextLine();
+      if (header == null) {
+        return false;
+      }
+      String[] names = header.split(",", -1);
+      csvColumns = new int[names.length];
+      for (int i = 0; i < names.length; i++) {
+        csvColumns[i] = columnIndex(names[i]);
+      }
+    }
+    String line = nextLine();
+    while (line != null && line.isEmpty()) {
+      line = nextLine();
+    }
+    if (line == null) {
+      return false;
+    }
+    java.util.Arrays.fill(row, null);
+
+    int column = 0;
+    int i = 0;
+    while (true) {
+      token.setLength(0);
+      // the field is chars from start up to end: the unescaped token if quoted, else the line
+      CharSequence chars = token;
+      int start = 0;
+      int end;
+      if (i < line.length() && line.charAt(i) == '"') {
+        i++;
+        while (true) {
+          if (i >= line.length()) {
+            // quoted field runs onto the next line
+            String more = nextLine();
+            if (more == null) {
+              break;
+            }
+            token.append('\n');
+            line = more;
+            i = 0;
+            continue;
+          }
+          char c = line.charAt(i++);
+          if (c == '"') {
+            if (i < line.length() && line.charAt(i) == '"') {
+              token.append('"');
+              i++;
+            }
+            else {
+              break;
+            }
+          }
+          else {
+            token.append(c);
+          }
+        }
+        while (i < line.length() && line.charAt(i) != ',') {
+          i++;
+        }
+        end = token.length();
+      }
+      else {
+        int comma = line.indexOf(',', i);
+        chars = line;
+        start = i;
+        end = comma < 0 ? line.length() : comma;
+        i = end;
+      }
+      if (column < csvColumns.length && csvColumns[column] >= 0) {
+        row[csvColumns[column]] = value(csvColumns[column], chars, start, end);
+      }
+      column++;
+      if (i >= line.length()) {
+        return true;
+      }
+      i++; // skip the comma
+    }
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static ValueDictionary<String>[] dictionaries() {
+    ValueDictionary<String>[] values = new ValueDictionary[COLUMNS];
+    for (int column = 0; column < COLUMNS; column++) {
+      if (column != UID && column != DTSTART && column != DTEND) {
+        values[column] = new ValueDictionary<String>(4096, 256);
+      }
+    }
+    return values;
+  }
+
+  // chars from start up to end as a String, the same one as last time if the column has had
+  // this value lately
+  private String value(int column, CharSequence chars, int start, int end) {
+    ValueDictionary<String> recent = values[column];
+    String value = recent == null ? null : recent.get(chars, start, end);
+    if (value == null) {
+      value = chars.subSequence(start, end).toString();
+      if (recent != null && recent.admit(value)) {
+        recent.put(value, value);
+      }
+    }
+    return value;
+  }
+
+  //=========================================
+  // JSON Lines (one flat object per line)
+  //=========================================
+
+  private boolean readJsonRow() throws IOException {
+    String line = nextLine();
+    while (line != null && line.trim().isEmpty()) {
+      line = nextLine();
+    }
+    if (line == null) {
+      return false;
+    }
+    java.util.Arrays.fill(row, null);
+
+    int i = skipSpace(line, 0);
+    if (i >= line.length() || line.charAt(i) != '{') {
+      return malformed("expected a JSON object");
+    }
+    i = skipSpace(line, i + 1);
+    if (i < line.length() && line.charAt(i) == '}') {
+      return true;
+    }
+    while (true) {
+      i = jsonToken(line, i);
+      if (i < 0) {
+        return true;
+      }
+      int column = columnIndex(token.toString());
+      i = skipSpace(line, i);
+      if (i >= line.length() || line.charAt(i) != ':') {
+        return malformed("expected ':'");
+      }
+      i = jsonToken(line, skipSpace(line, i + 1));
+      if (i < 0) {
+        return true;
+      }
+      if (column >= 0) {
+        row[column] = value(column, token, 0, token.length());
+      }
+      i = skipSpace(line, i);
+      if (i < line.length() && line.charAt(i) == ',') {
+        i = skipSpace(line, i + 1);
+      }
+      else if (i < line.length() && line.charAt(i) == '}') {
+        return true;
+      }
+      else {
+        return malformed("expected ',' or '}'");
+      }
+    }
+  }
+
+  // notes why the row is rejected; the line has been read either way
+  private boolean malformed(String error) {
+    malformed = error;
+    return true;
+  }
+
+  /**
+   * Reads a JSON string, number or literal into {@link #token}. Returns the index after it, or -1
+   * if it is not one, with {@link #malformed} set.
+   */
+  private int jsonToken(String line, int i) {
+    token.setLength(0);
+    if (i < line.length() && line.charAt(i) == '"') {
+      i++;
+      while (i < line.length()) {
+        char c = line.charAt(i++);
+        if (c == '"') {
+          return i;
+        }
+        if (c != '\\') {
+          token.append(c);
+          continue;
+        }
+        if (i >= line.length()) {
+          break;
+        }
+        char e = line.charAt(i++);
+        switch (e) {
+          case 'n':
+            token.append('\n');
+            break;
+          case 't':
+            token.append('\t');
+            break;
+          case 'r':
+            token.append('\r');
+            break;
+          case 'b':
+            token.append('\b');
+            break;
+          case 'f':
+            token.append('\f');
+            break;
+          case 'u':
+            int unit = 0;
+            for (int end = i + 4; i < end; i++) {
+              int digit = i < line.length() ? Character.digit(line.charAt(i), 16) : -1;
+              if (digit < 0) {
+                malformed("bad \\u escape");
+                return -1;
+              }
+              unit = unit * 16 + digit;
+            }
+            token.append((char) unit);
+            break;
+          default:
+            token.append(e);
+        }
+      }
+      malformed("unterminated string");
+      return -1;
+    }
+    int start = i;
+    while (i < line.length() && ",}".indexOf(line.charAt(i)) < 0 && !Character.isWhitespace(line.charAt(i))) {
+      i++;
+    }
+    if (i == start) {
+      malformed("expected a value");
+      return -1;
+    }
+    if (i - start != 4 || !line.regionMatches(start, "null", 0, 4)) {
+      token.append(line, start, i);
+    }
+    return i;
+  }
+
+  private static int skipSpace(String line, int i) {
+    while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private String nextLine() throws IOException {
+    String line = reader.readLine();
+    if (line != null) {
+      lineNo++;
+    }
+    return line;
+  }
+}
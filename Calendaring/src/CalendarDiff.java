@@ -0,0 +1,507 @@
+package calendaring;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares two versions of a calendar and writes only what changed between them, so publishing an
+ * edit does not mean sending the whole calendar again.
+ *
+ * Events are matched by UID and RECURRENCE-ID, and events without a UID by the SHA-256 of their
+ * content, the way {@link CalendarMerge} matches them. A matched event is modified if the SHA-256
+ * of its content lines differs (see {@link RawEvents#contentDigest}), content being everything but
+ * DTSTAMP and SEQUENCE, so a calendar that was only exported again has no changes and an edit to
+ * any property, DESCRIPTION or EXDATE as much as DTSTART, is one. Each version is parsed on a
+ * thread of its own, which hands the events on in chunks to a pool of one thread per core to be
+ * hashed; the chunks are merged back in the order read. Then the comparison is one pass over each
+ * version: the diff is linear in the number of events.
+ *
+ * The delta is an iCalendar stream of one or two calendars (RFC 5545 allows several in a file,
+ * and RFC 5546 allows one METHOD per calendar): a METHOD:PUBLISH calendar with the added and
+ * modified events as they are now, copied from the new version byte for byte, then, if anything
+ * was removed, a METHOD:CANCEL calendar with a cancellation of each removed event. A modified
+ * event whose SEQUENCE was not raised is published with one past the old, so clients that go by
+ * SEQUENCE take the new version.
+ *
+ * Either version may be an {@link EventStore} directory instead of a file. A store holds only
+ * what the event model does, so when one is, both versions are compared by
+ * {@link EventCodec#contentDigest} instead. A store can also say what changed in it since a sync
+ * token it gave out, without the old version at hand; see {@link EventStore#changesSince}.
+ *
+ * Usage: --diff OLD NEW [--out delta.ics]
+ */
+final class CalendarDiff {
+
+  // events hashed per task: enough that a task outweighs handing it over
+  private static final int CHUNK = 1024;
+
+  /** Receives the differences between two versions of a calendar. */
+  interface Changes {
+    void added(Event event) throws IOException;
+
+    void modified(Event old, Event event) throws IOException;
+
+    void removed(Event old) throws IOException;
+
+    /** An event added to a calendar file, {@code vevent} being its bytes there. */
+    default void added(Event event, byte[] vevent) throws IOException {
+      added(event);
+    }
+
+    /** An event modified in a calendar file, {@code vevent} being its bytes there now. */
+    default void modified(Event old, Event event, byte[] vevent) throws IOException {
+      modified(old, event);
+    }
+
+    /** An event removed from a calendar file, with its {@link IcsParser#recurrenceId()}. */
+    default void removed(Event old, String recurrenceId) throws IOException {
+      removed(old);
+    }
+  }
+
+  // an event in one version, kept small: a version of a large calendar is a great many live
+  // objects as Events, and the collector would spend more time on them than the diff takes. One
+  // in a file is read back from there when it is needed; one in a store is kept encoded
+  private static final class Version {
+    // where the VEVENT starts in its file, or -1 in a store
+    final long offset;
+    // the event encoded, in a store; null in a file
+    final byte[] body;
+    // the first 128 bits of the content digest
+    final long digestHigh;
+    final long digestLow;
+    final int sequence;
+    final long dtstamp;
+
+    Version(long offset, byte[] body, byte[] digest, int sequence, long dtstamp) {
+      this.offset = offset;
+      this.body = body;
+      ByteBuffer bits = ByteBuffer.wrap(digest);
+      this.digestHigh = bits.getLong();
+      this.digestLow = bits.getLong();
+      this.sequence = sequence;
+      this.dtstamp = dtstamp;
+    }
+
+    boolean sameContent(Version other) {
+      return digestHigh == other.digestHigh && digestLow == other.digestLow;
+    }
+  }
+
+  // an event as it was read, waiting to be hashed
+  private static final class Read {
+    final Event event;
+    // its bytes, when those are what is hashed
+    final byte[] vevent;
+    final long offset;
+    final String recurrenceId;
+
+    Read(Event event, byte[] vevent, long offset, String recurrenceId) {
+      this.event = event;
+      this.vevent = vevent;
+      this.offset = offset;
+      this.recurrenceId = recurrenceId;
+    }
+  }
+
+  private CalendarDiff() {
+  }
+
+  static int run(String[] args) {
+    Path out = Paths.get("delta.ics");
+    List<Path> versions = new ArrayList<Path>();
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--out") && i + 1 < args.length) {
+        out = Paths.get(args[++i]);
+      }
+      else {
+        versions.add(Paths.get(args[i]));
+      }
+    }
+    if (versions.size() != 2) {
+      return usage();
+    }
+
+    long started = System.nanoTime();
+    try (IcsWriter writer = new IcsWriter(AsyncFileOutput.create(out, AsyncFileOutput.NEVER))) {
+      Delta delta = new Delta(writer);
+      diff(versions.get(0), versions.get(1), delta);
+      delta.finish();
+      System.err.println("Wrote " + delta + " to " + out + " in "
+          + (System.nanoTime() - started) / 1000000 + " ms.");
+      return 0;
+    }
+    catch (IOException e) {
+      System.err.println("Diff failed: " + e.getMessage());
+      return 1;
+    }
+  }
+
+  private static int usage() {
+    System.err.println("Usage: --diff OLD NEW [--out delta.ics]");
+    return 2;
+  }
+
+  //=========================================
+  // comparing
+  //=========================================
+
+  /**
+   * Passes what changed from {@code oldPath} to {@code newPath}, each an .ics file or an event
+   * store, to {@code changes}: added and modified events in the order of the new version, then
+   * removed ones in the order of the old. Events of a file are passed with their bytes.
+   */
+  static void diff(Path oldPath, Path newPath, Changes changes) throws IOException {
+    // a store has no bytes to compare, only the model
+    boolean raw = !Files.isDirectory(oldPath) && !Files.isDirectory(newPath);
+    Map<String, Version> before;
+    Map<String, Version> after;
+    ExecutorService reader = Executors.newSingleThreadExecutor();
+    ExecutorService hashers = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors());
+    try {
+      Future<Map<String, Version>> reading = reader.submit(() -> read(oldPath, raw, hashers));
+      after = read(newPath, raw, hashers);
+      before = reading.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted");
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    finally {
+      reader.shutdownNow();
+      hashers.shutdownNow();
+    }
+
+    try (Events was = new Events(oldPath); Events now = new Events(newPath)) {
+      for (Map.Entry<String, Version> entry : after.entrySet()) {
+        Version version = entry.getValue();
+        Version old = before.remove(entry.getKey());
+        if (old == null) {
+          now.read(version);
+          if (now.vevent != null) {
+            changes.added(now.event, now.vevent);
+          }
+          else {
+            changes.added(now.event);
+          }
+        }
+        else if (!old.sameContent(version)) {
+          was.read(old);
+          now.read(version);
+          if (now.vevent != null) {
+            changes.modified(was.event, now.event, now.vevent);
+          }
+          else {
+            changes.modified(was.event, now.event);
+          }
+        }
+      }
+      // what is left was not matched
+      for (Version old : before.values()) {
+        was.read(old);
+        if (was.vevent != null) {
+          changes.removed(was.event, was.recurrenceId);
+        }
+        else {
+          changes.removed(was.event);
+        }
+      }
+    }
+  }
+
+  // reads the events of one version back as they are needed
+  private static final class Events implements Closeable {
+    private final Path path;
+    private IcsParser parser;
+    Event event;
+    // the bytes and RECURRENCE-ID of an event in a file; null in a store
+    byte[] vevent;
+    String recurrenceId;
+
+    Events(Path path) {
+      this.path = path;
+    }
+
+    void read(Version version) throws IOException {
+      if (version.body != null) {
+        event = EventCodec.decode(ByteBuffer.wrap(version.body));
+        vevent = null;
+        recurrenceId = null;
+        return;
+      }
+      if (parser == null) {
+        parser = new IcsParser(path);
+      }
+      parser.seek(version.offset);
+      if (parser.next() != IcsParser.Kind.EVENT) {
+        throw new IOException(path + " changed while it was being compared");
+      }
+      event = parser.event();
+      vevent = parser.bytes();
+      recurrenceId = parser.recurrenceId();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (parser != null) {
+        parser.close();
+      }
+    }
+  }
+
+  // every event of one version by its key, in the order read, hashed on hashers; by the digest
+  // of its bytes if raw is set, of its model otherwise
+  private static Map<String, Version> read(Path path, boolean raw, ExecutorService hashers)
+      throws IOException {
+    Chunks chunks = new Chunks(hashers, raw);
+    if (Files.isDirectory(path)) {
+      // a directory that is not a store would otherwise be made one
+      if (!Files.exists(path.resolve(EventStore.LOG))) {
+        throw new IOException(path + " is not an event store");
+      }
+      try (EventStore store = EventStore.open(path)) {
+        store.forEach(event -> {
+          try {
+            chunks.add(new Read(event, null, -1, null));
+          }
+          catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      }
+      catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      return chunks.finish();
+    }
+    try (IcsParser parser = new IcsParser(path)) {
+      while (parser.next() != null) {
+        Event event = parser.event();
+        if (event != null) {
+          chunks.add(new Read(event, raw ? parser.bytes() : null, parser.start(),
+              parser.recurrenceId()));
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new IOException("Could not read " + path + ": " + e.getMessage(), e);
+    }
+    return chunks.finish();
+  }
+
+  // the events of one chunk by their keys, in the order given
+  private static Map<String, Version> hash(List<Read> reads, boolean raw) {
+    Map<String, Version> versions = new LinkedHashMap<String, Version>();
+    MessageDigest sha = EventCodec.sha256();
+    ByteBuffer buffer = ByteBuffer.allocate(4096);
+    for (Read read : reads) {
+      Event event = read.event;
+      byte[] digest;
+      if (raw) {
+        digest = RawEvents.contentDigest(read.vevent, sha);
+      }
+      else {
+        digest = EventCodec.contentDigest(event, sha, buffer);
+        buffer.clear();
+      }
+      byte[] body = null;
+      if (read.offset < 0) {
+        buffer = EventCodec.encode(event, buffer);
+        body = Arrays.copyOf(buffer.array(), buffer.position());
+        buffer.clear();
+      }
+      String key = event.getUid() != null ? CalendarMerge.key(event.getUid(), read.recurrenceId)
+          : CalendarMerge.contentKey(digest);
+      versions.merge(key,
+          new Version(read.offset, body, digest, event.getSequence(), event.getDtstamp()),
+          CalendarDiff::newer);
+    }
+    return versions;
+  }
+
+  // of two copies of an event in one version, the one a merge would keep
+  private static Version newer(Version a, Version b) {
+    if (a.sequence != b.sequence) {
+      return a.sequence > b.sequence ? a : b;
+    }
+    return b.dtstamp > a.dtstamp ? b : a;
+  }
+
+  // the events of one version as they are read, hashed in chunks on a pool; a chunk is merged
+  // into the version once it and every chunk before it are done, so the order read is kept
+  private static final class Chunks {
+    private final ExecutorService pool;
+    // chunks handed over and not yet merged, beyond which the reader waits for the oldest
+    // rather than let parsed events pile up
+    private final int limit;
+    private final boolean raw;
+    private final ArrayDeque<Future<Map<String, Version>>> pending =
+        new ArrayDeque<Future<Map<String, Version>>>();
+    private final Map<String, Version> versions = new LinkedHashMap<String, Version>();
+    private List<Read> chunk = new ArrayList<Read>(CHUNK);
+
+    Chunks(ExecutorService pool, boolean raw) {
+      this.pool = pool;
+      this.raw = raw;
+      this.limit = 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    void add(Read read) throws IOException {
+      chunk.add(read);
+      if (chunk.size() == CHUNK) {
+        handOver();
+        while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() > limit)) {
+          mergeOldest();
+        }
+      }
+    }
+
+    // every event added, by its key
+    Map<String, Version> finish() throws IOException {
+      if (!chunk.isEmpty()) {
+        handOver();
+      }
+      while (!pending.isEmpty()) {
+        mergeOldest();
+      }
+      return versions;
+    }
+
+    private void handOver() {
+      List<Read> reads = chunk;
+      pending.add(pool.submit(() -> hash(reads, raw)));
+      chunk = new ArrayList<Read>(CHUNK);
+    }
+
+    private void mergeOldest() throws IOException {
+      try {
+        for (Map.Entry<String, Version> entry : pending.remove().get().entrySet()) {
+          versions.merge(entry.getKey(), entry.getValue(), CalendarDiff::newer);
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted");
+      }
+      catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+    }
+  }
+
+  //=========================================
+  // the delta
+  //=========================================
+
+  /**
+   * Writes changes as a delta: a METHOD:PUBLISH calendar with the added and modified events, then
+   * a METHOD:CANCEL calendar for the removed ones if there are any. Events passed with their
+   * bytes are copied as they are. Removed events without a UID cannot be cancelled and are only
+   * counted.
+   */
+  static final class Delta implements Changes {
+    private final IcsWriter writer;
+    private final long dtstamp = DateTimes.nowUtc();
+    private final List<Event> removed = new ArrayList<Event>();
+    // the RECURRENCE-ID of each removed event, null for a whole one
+    private final List<String> recurrenceIds = new ArrayList<String>();
+    private int added;
+    private int modified;
+    private int anonymous;
+
+    /** Starts the PUBLISH calendar on {@code writer}. */
+    Delta(IcsWriter writer) throws IOException {
+      this.writer = writer;
+      writer.beginCalendar("PUBLISH");
+    }
+
+    @Override
+    public void added(Event event) throws IOException {
+      writer.writeEvent(event);
+      added++;
+    }
+
+    @Override
+    public void modified(Event old, Event event) throws IOException {
+      if (event.getSequence() <= old.getSequence()) {
+        event = event.toBuilder().sequence(old.getSequence() + 1).build();
+      }
+      writer.writeEvent(event);
+      modified++;
+    }
+
+    @Override
+    public void removed(Event old) throws IOException {
+      removed(old, null);
+    }
+
+    @Override
+    public void added(Event event, byte[] vevent) throws IOException {
+      writer.copyEvent(event, vevent);
+      added++;
+    }
+
+    @Override
+    public void modified(Event old, Event event, byte[] vevent) throws IOException {
+      if (event.getSequence() <= old.getSequence()) {
+        vevent = RawEvents.replace(vevent, "SEQUENCE", "SEQUENCE:" + (old.getSequence() + 1),
+            true);
+      }
+      writer.copyEvent(event, vevent);
+      modified++;
+    }
+
+    @Override
+    public void removed(Event old, String recurrenceId) throws IOException {
+      if (old.getUid() == null) {
+        anonymous++;
+      }
+      else {
+        removed.add(old);
+        recurrenceIds.add(recurrenceId);
+      }
+    }
+
+    /** Ends the PUBLISH calendar and writes the CANCEL one. */
+    void finish() throws IOException {
+      writer.endCalendar();
+      if (!removed.isEmpty()) {
+        writer.beginCalendar("CANCEL");
+        for (int i = 0; i < removed.size(); i++) {
+          writer.writeCancel(removed.get(i), recurrenceIds.get(i), dtstamp);
+        }
+        writer.endCalendar();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return added + " added, " + modified + " modified and " + (removed.size() + anonymous)
+          + " removed events" + (anonymous == 0 ? ""
+              : " (" + anonymous + " removed without a UID, which cannot be cancelled)");
+    }
+  }
+}
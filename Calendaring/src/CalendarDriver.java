@@ -1,11 +1,12 @@
 package calendaring;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.InputMismatchException;
-import java.util.Scanner;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.TimeZone;
 import java.util.Calendar;
 import java.text.*;
@@ -72,67 +73,122 @@ public class CalendarDriver {
 //    HOUR, MINUTE, SECOND;
 //  }
   
-  private final static int HOURS = 0;
-  private final static int MINS = 1;
-  private final static int SECS = 2;
+  final static int HOURS = 0;
+  final static int MINS = 1;
+  final static int SECS = 2;
 
-  private static boolean isValidDateStr(String date) {
+  static boolean isValidDateStr(String date) {
+    return parseDateStr(date) != DateTimes.INVALID;
+  }
+
+  /**
+   * The packed yyyyMMdd for a date string the prompts accept, or DateTimes.INVALID.
+   */
+  static int parseDateStr(String date) {
+    // well formed input never reaches SimpleDateFormat; anything else keeps its exact
+    // (and rather forgiving) non-lenient behavior
+    if (isAsciiDigits(date, 8)) {
+      return DateTimes.parseDate(date, 0);
+    }
+    return parseDateStrLegacy(date);
+  }
+
+  private static int parseDateStrLegacy(String date) {
     try {
       SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
       sdf.setLenient(false);
-      sdf.parse(date);
+      return DateTimes.parseDate(sdf.format(sdf.parse(date)), 0);
     }
     catch (ParseException e) {
-      return false;
+      return DateTimes.INVALID;
     }
     catch (IllegalArgumentException e) {
+      return DateTimes.INVALID;
+    }
+  }
+
+  /** Packs hour, minute and second strings that passed isValidUnitStr into HHmmss. */
+  private static int unitTime(String hourStr, String minuteStr, String secondStr) {
+    return DateTimes.unitValue(hourStr) * 10000 + DateTimes.unitValue(minuteStr) * 100
+        + DateTimes.unitValue(secondStr);
+  }
+
+  private static boolean isAsciiDigits(String s, int length) {
+    if (s.length() != length) {
       return false;
     }
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
     return true;
   }
   
-  private static boolean isValidUnitStr(int unitTime, String unitStr) {
-    
-      if(unitStr.length() != 2){
-        System.out.println("Please follow the format (HH),(MM),(SS).");
-        return false;
-      }
-      try{
-      int unitAmt = Integer.parseInt(unitStr);
-      
-      switch (unitTime){
-        case HOURS:
-          if (unitAmt < 0 || unitAmt >= 24) {
-                System.out.println("Hours are only form 00 - 23. Please try again.");
-                return false;
-          }
-          break;
-        case MINS:
-          if (unitAmt < 0 || unitAmt >= 60) {
-                  System.out.println("Minutes are only form 00 - 59. Please try again.");
-                  return false;
-          }
-            break;
-        case SECS:
-          if (unitAmt < 0 || unitAmt >= 60) {
-                  System.out.println("Seconds are only form 00 - 59. Please try again.");
-                  return false;
-          }
-            break;
-        default:
-          System.out.println("Invalid Unit Time provided.  This should not occur.");
-          System.exit(1);
-      }
-          
-    }catch(NumberFormatException e){
-      System.out.println("Invald input.  Please try again.");
+  static boolean isValidUnitStr(int unitTime, String unitStr) {
+    if (unitTime != HOURS && unitTime != MINS && unitTime != SECS) {
+      System.out.println("Invalid Unit Time provided.  This should not occur.");
+      System.exit(1);
+    }
+    String error = unitError(unitTime, unitStr);
+    if (error != null) {
+      System.out.println(error);
       return false;
     }
-      
-      return true;
+    return true;
   }
-  
-  private static void version(BufferedWriter writer, Scanner scanner)
+
+  /**
+   * Checks a two digit hour, minute or second string. Returns the message to show the user, or
+   * null if the value is fine. Shared by the prompts and {@link BulkImporter}.
+   */
+  static String unitError(int unitTime, String unitStr) {
+    if (unitStr.length() != 2) {
+      return "Please follow the format (HH),(MM),(SS).";
+    }
+    int unitAmt = DateTimes.unitValue(unitStr);
+    if (unitAmt == DateTimes.NOT_A_NUMBER) {
+      return "Invald input.  Please try again.";
+    }
+    switch (unitTime) {
+      case HOURS:
+        if (unitAmt < 0 || unitAmt >= 24) {
+          return "Hours are only form 00 - 23. Please try again.";
+        }
+        break;
+      case MINS:
+        if (unitAmt < 0 || unitAmt >= 60) {
+          return "Minutes are only form 00 - 59. Please try again.";
+        }
+        break;
+      case SECS:
+        if (unitAmt < 0 || unitAmt >= 60) {
+          return "Seconds are only form 00 - 59. Please try again.";
+        }
+        break;
+      default:
+        return "Invalid Unit Time provided.";
+    }
+    return null;
+  }
+
+  // like isValidUnitStr, but tells whoever is answering
+  private static boolean validUnit(Answers answers, Metrics.Field field, int unitTime,
+      String unitStr) {
+    String error = unitError(unitTime, unitStr);
+    if (error != null) {
+      answers.complain(field, error);
+      return false;
+    }
+    return true;
+  }
+
+  static boolean isValidPriority(int priority) {
+    return priority >= 0 && priority <= 9;
+  }
+
+  private static void version(Answers answers)
   {
     
     //=========================================
@@ -141,142 +197,99 @@ public class CalendarDriver {
     boolean invalidInput;
     int versionNum;
     
-    try {
-      writer.write("VERSION:");
-    
-    
     invalidInput = true;
     while(invalidInput){
-      System.out.println("Version"
+      answers.out().println("Version"
               + "\n\t1) 1.0 - vCalendar Format"
               + "\n\t2) 2.0 - iCalendar Format: ");
 
-      versionNum = scanner.nextInt();
-      scanner.nextLine();
+      versionNum = answers.nextInt(-1);
           
       // error checking
       invalidInput=false;
       switch(versionNum){
         case 1:
-          System.out.println("Sorry we do not support vCalendar Format, "
+          answers.complain(Metrics.Field.VERSION, "Sorry we do not support vCalendar Format, "
               + "please select a different version.");
           invalidInput=true;
           break;
         case 2:
-          writer.write("2.0");
+          // IcsWriter always writes VERSION:2.0
           break;
         default:
-          System.out.println("Invalid Version selected.  Please select a number from 1-2.");
+          answers.complain(Metrics.Field.VERSION,
+              "Invalid Version selected.  Please select a number from 1-2.");
           invalidInput=true;
           break;
       }
     }
-    writer.newLine();
-    System.out.println();
-    }
-    catch (IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    }
+    answers.out().println();
   }
   
-  private static void tzid(BufferedWriter writer, Scanner scanner) {
+  private static String tzid(Answers answers) {
   //=========================================
     // Time zone identifier (3.8.3.1)
     //=========================================
-    try {
-      writer.write("BEGIN:VTIMEZONE\n");
-
-    //TODO use TZDB
-    System.out.println("Time Zone, country? ex. America");
-    String country = scanner.nextLine();
-    System.out.println("Time Zone, region? (replace space with '_' ex. New_york");
-    String region = scanner.nextLine();
-    writer.write("TZID:" + country + "/" + region + "\n");
-    
-    writer.write("BEGIN:STANDARD\n");
-    writer.write("TZOFFSETFROM:-1000\n" 
-        + "TZOFFSETTO:-1000\n"
-        + "DTSTART:19700101T000000\n");
-    writer.write("END:STANDARD\n");
-    writer.write("END:VTIMEZONE\n");
-    writer.write("BEGIN:VEVENT\n");
-    }
-    catch (IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+    String tzid = null;
+    while (tzid == null) {
+      answers.out().println("Time Zone, country? ex. America");
+      String country = answers.line();
+      answers.out().println("Time Zone, region? (replace space with '_' ex. New_york");
+      String region = answers.line();
+      // checked against the tz database, ignoring case
+      tzid = VTimezones.canonicalId(country + "/" + region);
+      if (tzid == null) {
+        answers.complain(Metrics.Field.TZID,
+            "Unknown time zone " + country + "/" + region + ". Please try again.");
+      }
     }
+    answers.out().println();
+    return tzid;
   }
 
-  private static void classification(BufferedWriter writer, Scanner scanner)
+  private static Classification classification(Answers answers)
   {
   //=========================================
     // Classification (3.8.1.3).
     //=========================================
     boolean invalidInput;
     int classNum;
-    
-    try {
-      writer.write("CLASS:");
+    Classification classification = null;
     
     invalidInput = true;
     while (invalidInput) {
       invalidInput = false;
 
-      System.out.println("Classification\n" 
+      answers.out().println("Classification\n" 
                 + "\t1)PUBLIC\n" 
                 + "\t2)PRIVATE\n" 
                 + "\t3)CONFIDENTIAL: ");
-      classNum = scanner.nextInt();
-      // must get rid of trailing newline in scanner...
-      scanner.nextLine();
+      classNum = answers.nextInt(-1);
 
-      switch (classNum) {
-      case 1:
-        writer.write("PUBLIC");
-        break;
-      case 2:
-        writer.write("PRIVATE");
-        break;
-      case 3:
-        writer.write("CONFIDENTIAL");
-        break;
-      default:
-        System.out.println("Invalid classification selected.  Please provide a number from 1-3.");
+      classification = Classification.fromMenu(classNum);
+      if (classification == null) {
+        answers.complain(Metrics.Field.CLASS,
+            "Invalid classification selected.  Please provide a number from 1-3.");
         invalidInput = true;
       }
     }
-    writer.newLine();
-    System.out.println();
-    }
-    catch (IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    }
+    answers.out().println();
+    return classification;
   }
   
-  private static boolean location(BufferedWriter writer, Scanner scanner)
+  private static String location(Answers answers)
   {
   //=========================================
     // Location (3.8.1.7)
     //=========================================
     String location;
-    System.out.println("Location: ");
-    location = scanner.nextLine();
-
-    try {
-      writer.write("LOCATION:" + location);
-      writer.newLine();
-    }
-    catch (IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    }
-    System.out.println();
-    return true;
+    answers.out().println("Location: ");
+    location = answers.line();
+    answers.out().println();
+    return location;
   }
   
-  private static void priority(BufferedWriter writer, Scanner scanner)
+  private static int priority(Answers answers)
   {
     //=========================================
     // Priority (3.8.1.9)
@@ -285,56 +298,102 @@ public class CalendarDriver {
     int priority = 0;
     invalidInput = true;
     while (invalidInput) {
-      try {
-        invalidInput = false;
-        System.out.println("PRIORITY (1-highest, 9-lowest, 0-undefined): ");
-        priority = scanner.nextInt();
-        if (priority < 0 || priority > 9) {
-          System.out.println("Invalid input. Please try again.");
-          invalidInput = true;
-        }
-      }
-      catch (InputMismatchException e) {
-        System.out.println("Invalid input.  Please try again.");
-        priority = -1;
-        scanner.nextLine();
+      invalidInput = false;
+      answers.out().println("PRIORITY (1-highest, 9-lowest, 0-undefined): ");
+      priority = answers.nextInt(-1);
+      if (!isValidPriority(priority)) {
+        answers.complain(Metrics.Field.PRIORITY, "Invalid input. Please try again.");
         invalidInput = true;
       }
     }
-    try {
-      writer.write("PRIORITY:" + priority);
-      writer.newLine();
-    }
-    catch (IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    }
-    System.out.println();
+    answers.out().println();
+    return priority;
   }
   
-  private static void summary(BufferedWriter writer, Scanner scanner)
+  private static String summary(Answers answers)
   {
     //=========================================
     // Summary (3.8.1.12)
     //=========================================
-    System.out.println("SUMMARY: ");
-    scanner.nextLine();
-    String summary = scanner.nextLine();
-    
-    try {
-      writer.write("SUMMARY:" + summary);
-      writer.newLine();
+    answers.out().println("SUMMARY: ");
+    String summary = answers.line();
+    answers.out().println();
+    return summary;
+  }
+  
+  private static String organizer(Answers answers)
+  {
+    //=========================================
+    // Organizer (3.8.4.3)
+    //=========================================
+    while (true) {
+      answers.out().println("ORGANIZER (e-mail address, blank for none): ");
+      String organizer = answers.line().trim();
+      String error = organizer.isEmpty() ? null : addressError(organizer);
+      if (error == null) {
+        answers.out().println();
+        return organizer.isEmpty() ? null : organizer;
+      }
+      answers.complain(Metrics.Field.ORGANIZER, error + " Please try again.");
     }
-    catch (IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+  }
+
+  private static List<String> attendees(Answers answers)
+  {
+    //=========================================
+    // Attendees (3.8.4.1)
+    //=========================================
+    while (true) {
+      answers.out().println("ATTENDEES (e-mail addresses separated by commas, blank for none): ");
+      List<String> attendees = addressList(answers.line());
+      String error = null;
+      for (String attendee : attendees) {
+        if (error == null) {
+          error = addressError(attendee);
+        }
+      }
+      if (error == null) {
+        answers.out().println();
+        return attendees;
+      }
+      answers.complain(Metrics.Field.ATTENDEE, error + " Please try again.");
     }
-    System.out.println();
+  }
 
-   
+  /** Splits a list of addresses separated by commas, semicolons or spaces. */
+  static List<String> addressList(String value) {
+    List<String> addresses = new ArrayList<String>();
+    if (value.trim().isEmpty()) {
+      return addresses;
+    }
+    for (String address : value.split("[,;\\s]+")) {
+      if (!address.isEmpty()) {
+        addresses.add(address);
+      }
+    }
+    return addresses;
   }
-  
-  private static String dtstart(BufferedWriter writer, Scanner scanner)
+
+  /**
+   * Null for a usable calendar address (an e-mail address or a URI such as mailto:a@example.com),
+   * otherwise what is wrong with it.
+   */
+  static String addressError(String address) {
+    for (int i = 0; i < address.length(); i++) {
+      if (address.charAt(i) <= ' ' || address.charAt(i) == 0x7F) {
+        return "Addresses can't contain spaces or control characters.";
+      }
+    }
+    int at = address.indexOf('@');
+    if (at <= 0 || at == address.length() - 1) {
+      if (address.indexOf(':') <= 0) {
+        return "Invalid address " + address + ".";
+      }
+    }
+    return null;
+  }
+
+  private static long dtstart(Answers answers)
   {
     
     //=========================================
@@ -344,53 +403,32 @@ public class CalendarDriver {
     //check for a valid starting date
     boolean invalidInput;
     String startDate = null;
-    int iStartDate;
+    int iStartDate = 0;
     
     invalidInput = true;
     while (invalidInput) {
-      try {
-        invalidInput = false;
-        System.out.println("START DATE (YYYYMMDD): ");
-        startDate = scanner.nextLine();
-        if (!isValidDateStr(startDate)) {
-          System.out.println("Invalid date! Try again.");
-          invalidInput = true;
-        }
-        else
-        {
-          iStartDate = Integer.parseInt(startDate);
-        }
-      }
-      catch (InputMismatchException e) {
-        System.out.println("Invalid input.  Please try again.");
-        scanner.nextLine();
-        invalidInput = true;
-      }catch (NumberFormatException e){
-        System.out.println("Invalid input.  Please try again.");
-        scanner.nextLine();
+      invalidInput = false;
+      answers.out().println("START DATE (YYYYMMDD): ");
+      startDate = answers.line();
+      iStartDate = parseDateStr(startDate);
+      if (iStartDate == DateTimes.INVALID) {
+        answers.complain(Metrics.Field.DTSTART, "Invalid date! Try again.");
         invalidInput = true;
       }
     }
 
     //check for a valid start time
-    System.out.println("START TIME (Military Time):");
+    answers.out().println("START TIME (Military Time):");
    
     // get hour input
     String hourStr = null;
     invalidInput = true;
             while (invalidInput) {
-      try {
-        invalidInput = false;
-        System.out.print("\tHOURS (HH): ");
-        hourStr = scanner.nextLine();
-        
-        if(!isValidUnitStr(HOURS,hourStr)){
-          invalidInput = true;
-        }
-      }
-      catch (InputMismatchException e) {
-        System.out.println("Invalid input.  Please try again.");
-        scanner.nextLine();
+      invalidInput = false;
+      answers.out().print("\tHOURS (HH): ");
+      hourStr = answers.line();
+      
+      if (!validUnit(answers, Metrics.Field.DTSTART, HOURS, hourStr)) {
         invalidInput = true;
       }
     }
@@ -399,18 +437,11 @@ public class CalendarDriver {
     String minuteStr = null;
     invalidInput = true;
     while (invalidInput) {
-      try {
-        invalidInput = false;
-        System.out.print("\tMINUTES (MM): ");
-        minuteStr = scanner.nextLine();
+      invalidInput = false;
+      answers.out().print("\tMINUTES (MM): ");
+      minuteStr = answers.line();
 
-        if(!isValidUnitStr(MINS,minuteStr)){
-          invalidInput = true;
-        }
-      }
-      catch (InputMismatchException e) {
-        System.out.println("Invalid input.  Please try again.");
-        scanner.nextLine();
+      if (!validUnit(answers, Metrics.Field.DTSTART, MINS, minuteStr)) {
         invalidInput = true;
       }
     }
@@ -419,130 +450,80 @@ public class CalendarDriver {
     String secondStr = null;
     invalidInput = true;
     while (invalidInput) {
-      try {
-        invalidInput = false;
-        System.out.print("\tSECONDS (SS): ");
-        secondStr = scanner.nextLine();
+      invalidInput = false;
+      answers.out().print("\tSECONDS (SS): ");
+      secondStr = answers.line();
 
-        if(!isValidUnitStr(SECS,secondStr)){
-          invalidInput = true;
-        }
-      }
-      catch (InputMismatchException e) {
-        System.out.println("Invalid input.  Please try again.");
-        scanner.nextLine();
+      if (!validUnit(answers, Metrics.Field.DTSTART, SECS, secondStr)) {
         invalidInput = true;
       }
     }
     
-    String startTime;
-    int iStartTime;
-    
-    startTime = hourStr + minuteStr + secondStr;
-    iStartTime = Integer.parseInt(startTime);
-    
-    try {
-      writer.write("DTSTART:" + startDate + "T" + startTime);
-      writer.newLine();
-    }
-      catch (IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    }
-    System.out.println();
-    return startDate + "T" + startTime;
-
+    answers.out().println();
+    return DateTimes.pack(iStartDate, unitTime(hourStr, minuteStr, secondStr));
   }
   
-  private static void dtend(String dtstart, BufferedWriter writer, Scanner scanner)
+  private static long dtend(long dtstart, Answers answers)
   {
   //=========================================
     // DTEND (3.8.2.2)
     //=========================================
     
     //check for valid ending date
-    String[] start = dtstart.split("T");
-    String startDate = start[0];
-    String startTime = start[1];
-    int iStartDate = Integer.parseInt(startDate);
-    int iStartTime = Integer.parseInt(startTime);
+    int iStartDate = DateTimes.date(dtstart);
     boolean invalidInput;
-    String endDate;
+    String endDate = null;
     int iEndDate = 0;
     invalidInput = true;
     while (invalidInput) {
-      try {
-        invalidInput = false;
-        System.out.println("END DATE (YYYYMMDD): ");
-        endDate = scanner.nextLine();
-        if (!isValidDateStr(endDate)) {
-          System.out.println("Invalid date! Try again.");
-          invalidInput = true;
-        }
-        else
-        {
-          iEndDate = Integer.parseInt(endDate);
-          // make sure end date is after start date
-          if (iEndDate < iStartDate)
-          {
-            System.out.println("Can't have the event end before it starts! Enter a later date.");
-            invalidInput = true;
-          }
-        }
-      }
-      catch (InputMismatchException e) {
-        System.out.println("Invalid input.  Please try again.");
-        scanner.nextLine();
+      invalidInput = false;
+      answers.out().println("END DATE (YYYYMMDD): ");
+      endDate = answers.line();
+      iEndDate = parseDateStr(endDate);
+      if (iEndDate == DateTimes.INVALID) {
+        answers.complain(Metrics.Field.DTEND, "Invalid date! Try again.");
         invalidInput = true;
-      }catch (NumberFormatException e){
-          System.out.println("Invalid input.  Please try again.");
-          scanner.nextLine();
+      }
+      else
+      {
+        // make sure end date is after start date
+        if (iEndDate < iStartDate)
+        {
+          answers.complain(Metrics.Field.DTEND,
+              "Can't have the event end before it starts! Enter a later date.");
           invalidInput = true;
+        }
       }
     }
     
     // check for a valid end time
     String minuteStr = null;
-    String endTime = null;
     String secondStr = null;
+    long dtend = DateTimes.INVALID;
     invalidInput = true;
     while(invalidInput){
-      System.out.println("END TIME (Military Time):");
+      answers.out().println("END TIME (Military Time):");
       // get hour input
       String hourStr = null;
       invalidInput = true;
               while (invalidInput) {
-        try {
-          invalidInput = false;
-          System.out.print("\tHOURS (HH): ");
-          hourStr = scanner.nextLine();
-          
-          if(!isValidUnitStr(HOURS,hourStr)){
-            invalidInput = true;
-          } 
-        }
-        catch (InputMismatchException e) {
-          System.out.println("Invalid input.  Please try again.");
-          scanner.nextLine();
+        invalidInput = false;
+        answers.out().print("\tHOURS (HH): ");
+        hourStr = answers.line();
+        
+        if (!validUnit(answers, Metrics.Field.DTEND, HOURS, hourStr)) {
           invalidInput = true;
-        }
+        } 
       }
       
       //get minute input
       invalidInput = true;
       while (invalidInput) {
-        try {
-          invalidInput = false;
-          System.out.print("\tMINUTES (MM): ");
-          minuteStr = scanner.nextLine();
+        invalidInput = false;
+        answers.out().print("\tMINUTES (MM): ");
+        minuteStr = answers.line();
 
-          if(!isValidUnitStr(MINS,minuteStr)){
-            invalidInput = true;
-          }
-        }
-        catch (InputMismatchException e) {
-          System.out.println("Invalid input.  Please try again.");
-          scanner.nextLine();
+        if (!validUnit(answers, Metrics.Field.DTEND, MINS, minuteStr)) {
           invalidInput = true;
         }
       }
@@ -550,46 +531,88 @@ public class CalendarDriver {
       //get second input
       invalidInput = true;
       while (invalidInput) {
-        try {
-          invalidInput = false;
-          System.out.print("\tSECONDS (SS): ");
-          secondStr = scanner.nextLine();
+        invalidInput = false;
+        answers.out().print("\tSECONDS (SS): ");
+        secondStr = answers.line();
 
-          if(!isValidUnitStr(SECS,secondStr)){
-            invalidInput = true;
-          }
-        }
-        catch (InputMismatchException e) {
-          System.out.println("Invalid input.  Please try again.");
-          scanner.nextLine();
+        if (!validUnit(answers, Metrics.Field.DTEND, SECS, secondStr)) {
           invalidInput = true;
         }
       }
       
-      int iEndTime;
-      endTime = hourStr + minuteStr + secondStr;
-      iEndTime = Integer.parseInt(endTime);
+      dtend = DateTimes.pack(iEndDate, unitTime(hourStr, minuteStr, secondStr));
       
       invalidInput = false;
-      if(iStartTime>=iEndTime){
-        System.out.println("Can't have the event end before it starts! Enter a later time.");
+      if(dtend <= dtstart){
+        answers.complain(Metrics.Field.DTEND,
+            "Can't have the event end before it starts! Enter a later time.");
         invalidInput = true;
       }
     }
     
-    try {
-      writer.write("DTEND:" + iEndDate + "T" + endTime);
-    
-    writer.newLine();
-    System.out.println();
+    answers.out().println();
+    return dtend;
+  }
+  
+  private static Recurrence rrule(Answers answers)
+  {
+    //=========================================
+    // RRULE (3.8.5.3)
+    //=========================================
+    Recurrence rrule = null;
+    boolean invalidInput = true;
+    while (invalidInput) {
+      invalidInput = false;
+      answers.out().println("REPEAT (RRULE such as FREQ=WEEKLY;BYDAY=MO,WE;COUNT=10, blank for none): ");
+      String rule = answers.line().trim();
+      if (!rule.isEmpty()) {
+        try {
+          rrule = Recurrence.parse(rule);
+        }
+        catch (IllegalArgumentException e) {
+          answers.complain(Metrics.Field.RRULE, e.getMessage() + ". Please try again.");
+          invalidInput = true;
+        }
+      }
     }
-    catch (IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+    answers.out().println();
+    return rrule;
+  }
+
+  /**
+   * Lists the events entered earlier that {@code event} overlaps, if any, and asks whether to
+   * keep its times anyway. True when there is no overlap or the answer is yes.
+   */
+  private static boolean keepConflicts(Event event, Conflicts conflicts, List<String> summaries,
+      Answers answers)
+  {
+    BitSet overlaps = new BitSet();
+    conflicts.forEachConflict(event, overlaps::set);
+    if (overlaps.isEmpty()) {
+      return true;
+    }
+    StringBuilder warning = new StringBuilder("Warning: this event overlaps");
+    for (int i = overlaps.nextSetBit(0); i >= 0; i = overlaps.nextSetBit(i + 1)) {
+      warning.append("\n\t").append(i + 1).append(") ").append(summaries.get(i));
+    }
+    Metrics.invalid(Metrics.Field.CONFLICT);
+    answers.complain(warning.toString());
+    while (true) {
+      answers.out().print("Keep these times anyway? (y/n):");
+      String answer = answers.line();
+      if (answer.equals("y")) {
+        answers.out().println();
+        return true;
+      }
+      if (answer.equals("n")) {
+        answers.out().println();
+        return false;
+      }
+      answers.complain(Metrics.Field.ANSWER, "Invalid input.  Please provide either 'y' or 'n'.");
     }
   }
-  
-  private static boolean prompt(BufferedWriter writer, Scanner scanner)
+
+  private static boolean prompt(Answers answers)
   {
   //=========================================
     // prompt if the user would like to add another event
@@ -601,8 +624,8 @@ public class CalendarDriver {
     invalidInput = true;
     while (invalidInput) {
       invalidInput = false;
-      System.out.print("\nWould you like to add another event? (y/n):");
-      newEventStr = scanner.nextLine();
+      answers.out().print("\nWould you like to add another event? (y/n):");
+      newEventStr = answers.line();
       if (newEventStr.equals("y")) {
         anotherEvent = true;
       }
@@ -610,18 +633,70 @@ public class CalendarDriver {
         anotherEvent = false;
       }
       else {
-        System.out.println("Invalid input.  Please provide either 'y' or 'n'.");
+        answers.complain(Metrics.Field.ANSWER, "Invalid input.  Please provide either 'y' or 'n'.");
         invalidInput = true;
       }
     }
 
-    System.out.println();
+    answers.out().println();
     return anotherEvent;
   }
 
   public static void main(String[] args) {
+    // --metrics (-|FILE) goes before everything else and reports when the program exits
+    if (args.length > 1 && args[0].equals("--metrics")) {
+      Metrics.reportAtExit(args[1]);
+      args = Arrays.copyOfRange(args, 2, args.length);
+    }
+
+    //=========================================
+    // non-interactive modes
+    //=========================================
+    if (args.length > 0 && args[0].equals("--bulk")) {
+      System.exit(BulkImporter.run(args));
+    }
+    if (args.length > 0 && args[0].equals("--read")) {
+      System.exit(IcsParser.run(args));
+    }
+    if (args.length > 0 && args[0].equals("--freebusy")) {
+      System.exit(FreeBusy.run(args));
+    }
+    if (args.length > 0 && args[0].equals("--slot")) {
+      System.exit(SlotFinder.run(args));
+    }
+    if (args.length > 0 && args[0].equals("--store")) {
+      System.exit(EventStore.run(args));
+    }
+    if (args.length > 0 && args[0].equals("--query")) {
+      System.exit(EventIndex.run(args));
+    }
+    if (args.length > 0 && args[0].equals("--merge")) {
+      System.exit(CalendarMerge.run(args));
+    }
+    if (args.length > 0 && args[0].equals("--lint")) {
+      System.exit(IcsLinter.run(args));
+    }
+    if (args.length > 0 && args[0].equals("--diff")) {
+      System.exit(CalendarDiff.run(args));
+    }
+    if (args.length > 0 && args[0].equals("--serve")) {
+      System.exit(FeedServer.run(args));
+    }
+    if (args.length > 0 && args[0].equals("--remind")) {
+      System.exit(Reminders.run(args));
+    }
+    if (args.length > 0 && args[0].equals("--stats")) {
+      System.exit(EventColumns.run(args));
+    }
+    if (args.length > 0 && args[0].equals("--split")) {
+      System.exit(CalendarSplitter.run(args));
+    }
+
+    // prompts are only shown to a person at a terminal; a script just pipes in the answers
+    Answers answers = Answers.stdin();
+
     // print description of program
-  System.out.println(DESC_STR);
+  answers.out().println(DESC_STR);
     
 //    Calendar calendar = Calendar.getInstance();
 //    int thisYear = calendar.get(Calendar.YEAR)*10000;
@@ -633,83 +708,120 @@ public class CalendarDriver {
 //    int thisDate = thisYear+thisMonth+thisDay;
 //    System.out.println("this date is: " + thisDate);
     
-    Scanner scanner = new Scanner(System.in);
-    BufferedWriter writer; 
     //TODO
     //make prudier commenting
     
     
-    System.out.println("Please provide the following information...\n");
+    answers.out().println("Please provide the following information...\n");
+
+    // --append adds to an existing event.ics instead of starting it over. When someone is typing,
+    // each event is handed to the writer thread as soon as it is entered and is on disk shortly
+    // after.
+    boolean append = args.length > 0 && args[0].equals("--append");
+    try (IcsWriter writer = append ? IcsAppender.open(Paths.get("event.ics"), AsyncFileOutput.EVERY_BATCH)
+        : new IcsWriter(AsyncFileOutput.create(Paths.get("event.ics"), AsyncFileOutput.EVERY_BATCH))) {
+        if (!append) {
+          writer.beginCalendar();
+          // a session cut short still leaves a whole calendar that --append can add to
+          writer.endOnClose();
+        }
 
-    try {
-        // creating output file
-        writer = new BufferedWriter(new FileWriter(new File("event.ics")));
-        writer.write("BEGIN:VCALENDAR\n");
-      
         //=========================================
         //Version (section  3.7.4  of  RFC  5545) 
         //=========================================
-        version(writer, scanner);
-      
-        //=========================================
-        // Time zone identifier (3.8.3.1)
-        //=========================================
-        tzid(writer, scanner);
-
-        //=========================================
-        // Classification (3.8.1.3).
-        //=========================================
-        classification(writer, scanner);
-        // TODO what is iana-name and x-name?????
-
-        //=========================================
-        // Location (3.8.1.7)
-        //=========================================
-        location(writer, scanner);
-
-        //=========================================
-        // Priority (3.8.1.9)
-        //=========================================
-        priority(writer, scanner);
-        
-        //=========================================
-        // Summary (3.8.1.12)
-        //=========================================
-        summary(writer, scanner);
-        
-        //=========================================
-        // DTSTART (3.8.2.4)
-        //=========================================
-        String start = dtstart(writer, scanner);
+        version(answers);
+
+        // events entered so far, to warn about double bookings
+        Conflicts conflicts = new Conflicts();
+        List<String> summaries = new ArrayList<String>();
+        boolean another = true;
+        while (another) {
+          Event.Builder event = Event.builder()
+              .uid(Event.newUid())
+              .dtstamp(DateTimes.nowUtc());
+
+          //=========================================
+          // Time zone identifier (3.8.3.1)
+          //=========================================
+          event.tzid(tzid(answers));
+
+          //=========================================
+          // Classification (3.8.1.3).
+          //=========================================
+          event.classification(classification(answers));
+          // TODO what is iana-name and x-name?????
+
+          //=========================================
+          // Location (3.8.1.7)
+          //=========================================
+          event.location(location(answers));
+
+          //=========================================
+          // Priority (3.8.1.9)
+          //=========================================
+          event.priority(priority(answers));
+
+          //=========================================
+          // Summary (3.8.1.12)
+          //=========================================
+          event.summary(summary(answers));
+
+          //=========================================
+          // Organizer (3.8.4.3) and attendees (3.8.4.1)
+          //=========================================
+          event.organizer(organizer(answers));
+          for (String attendee : attendees(answers)) {
+            event.attendee(attendee);
+          }
 
-        //=========================================
-        // DTEND (3.8.2.2)
-        //=========================================
-        dtend(start, writer, scanner);
+          boolean overlapping = true;
+          while (overlapping) {
+            //=========================================
+            // DTSTART (3.8.2.4)
+            //=========================================
+            long start = dtstart(answers);
+            event.dtstart(start);
+
+            //=========================================
+            // DTEND (3.8.2.2)
+            //=========================================
+            event.dtend(dtend(start, answers));
+
+            //=========================================
+            // RRULE (3.8.5.3)
+            //=========================================
+            event.rrule(rrule(answers));
+
+            overlapping = !keepConflicts(event.build(), conflicts, summaries, answers);
+          }
 
-        // end this event
-        writer.write("END:VEVENT\n");
+          // end this event
+          Event built = event.build();
+          conflicts.add(built, summaries.size());
+          summaries.add(built.getSummary());
+          writer.writeEvent(built);
+          if (answers.isInteractive()) {
+            writer.flush();
+          }
 
-        //=========================================
-        // prompt if the user would like to add another event
-        //=========================================
-        boolean another = prompt(writer, scanner);
+          //=========================================
+          // prompt if the user would like to add another event
+          //=========================================
+          another = prompt(answers);
+        }
         
-        System.out.println("BYE BYE!");
-
-        writer.write("END:VCALENDAR\n");
-        writer.close();
+        answers.out().println("BYE BYE!");
 
+        writer.endCalendar();
     }
-    catch (InputMismatchException e) {
-      System.out.println("Invalid input.  Please try again.\n");
-      System.err.println(e.getMessage());
+    catch (NoSuchElementException e) {
+      System.err.println("Stopped: " + e.getMessage() + ".");
+      System.exit(1);
     }
     catch (IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      System.err.println("Could not write event.ics: " + e.getMessage());
+      System.exit(1);
     }
-    scanner.close();
 
   }
 
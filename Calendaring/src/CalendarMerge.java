@@ -0,0 +1,515 @@
+package calendaring;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Merges calendars into one with every event once, ordered by DTSTART.
+ *
+ * Events are the same event if they have the same UID and RECURRENCE-ID, so a recurring event
+ * and the occurrences moved or changed on their own are all kept; of those the one with the
+ * highest SEQUENCE wins, then the latest DTSTAMP, then the one read first. Events without a UID
+ * are the same if everything but DTSTAMP and SEQUENCE is equal, compared by a SHA-256 of their
+ * content lines (see {@link RawEvents#contentDigest}). The winners are copied from their input
+ * as they are, so DESCRIPTION, EXDATE and everything else the event model leaves out is kept.
+ *
+ * The inputs do not have to fit in memory. The merge is two external sorts in a row:
+ *
+ * <ol>
+ * <li>The inputs are read in parallel, one file per thread. Each thread keeps a small entry per
+ *     event, its key, start, SEQUENCE, DTSTAMP and where it is in which input, until it holds its
+ *     share of the memory budget, then sorts them by key and spills them to a run file. A k-way
+ *     merge of all the runs brings the versions of each event together, and only the winner goes
+ *     on.</li>
+ * <li>The winners are collected the same way, sorted by start and spilled when the budget is
+ *     used up, and a second k-way merge streams them to the output in order, each read back from
+ *     its input.</li>
+ * </ol>
+ *
+ * Whatever is still in memory at the end of a phase is merged as it is, so inputs that fit in the
+ * budget never touch the disk. Runs go to a temporary directory next to the output unless --tmp
+ * says otherwise, and are deleted when the merge is done. The budget is a quarter of the heap
+ * unless --memory gives it in MB. --utc writes local times in UTC (see {@link IcsWriter}).
+ *
+ * The output is written next to itself under another name and only moved over it once the merge
+ * is done, so it can be one of the inputs, and a merge that fails leaves it as it was.
+ *
+ * Usage: --merge out.ics calendar.ics... [--tmp DIR] [--memory MB] [--utc]
+ */
+final class CalendarMerge {
+
+  // rough heap cost of an entry beyond its key
+  private static final int ENTRY_OVERHEAD = 96;
+  private static final int IO_BUFFER = 1 << 16;
+  // an entry's source is the input's number above these bits and the VEVENT's offset in them
+  private static final int FILE_SHIFT = 40;
+  private static final long OFFSET_MASK = (1L << FILE_SHIFT) - 1;
+
+  private static final Comparator<Entry> BY_KEY = (a, b) -> {
+    int c = a.key.compareTo(b.key);
+    if (c != 0) {
+      return c;
+    }
+    // the version to keep sorts first
+    c = Integer.compare(b.sequence, a.sequence);
+    if (c != 0) {
+      return c;
+    }
+    c = Long.compare(b.dtstamp, a.dtstamp);
+    return c != 0 ? c : Long.compare(a.source, b.source);
+  };
+
+  private static final Comparator<Entry> BY_START = (a, b) -> {
+    int c = Long.compare(a.start, b.start);
+    return c != 0 ? c : Long.compare(a.source, b.source);
+  };
+
+  private final Path tmp;
+  private final long budget;
+  private long spilled;
+  // bytes of unspilled runs held over from the first phase
+  private long held;
+  private long read;
+  private long kept;
+
+  /** Spills runs to {@code tmp}, keeping about {@code budget} bytes of events in memory. */
+  CalendarMerge(Path tmp, long budget) {
+    this.tmp = tmp;
+    this.budget = budget;
+  }
+
+  static int run(String[] args) {
+    Path out = null;
+    Path tmpParent = null;
+    long budget = Runtime.getRuntime().maxMemory() / 4;
+    List<Path> calendars = new ArrayList<Path>();
+    boolean utc = false;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--utc")) {
+        utc = true;
+      }
+      else if (args[i].equals("--tmp") && i + 1 < args.length) {
+        tmpParent = Paths.get(args[++i]);
+      }
+      else if (args[i].equals("--memory") && i + 1 < args.length) {
+        try {
+          budget = Long.parseLong(args[++i]) << 20;
+        }
+        catch (NumberFormatException e) {
+          return usage();
+        }
+        if (budget <= 0) {
+          return usage();
+        }
+      }
+      else if (out == null) {
+        out = Paths.get(args[i]);
+      }
+      else {
+        calendars.add(Paths.get(args[i]));
+      }
+    }
+    if (calendars.isEmpty()) {
+      return usage();
+    }
+    if (tmpParent == null) {
+      tmpParent = out.toAbsolutePath().getParent();
+    }
+
+    long started = System.nanoTime();
+    Path tmp = null;
+    Path partial = out.resolveSibling(out.getFileName() + ".tmp");
+    try {
+      tmp = Files.createTempDirectory(tmpParent, "merge");
+      CalendarMerge merge = new CalendarMerge(tmp, budget);
+      try (IcsWriter writer = new IcsWriter(
+          AsyncFileOutput.create(partial, AsyncFileOutput.NEVER))) {
+        writer.utcTimes(utc);
+        merge.merge(calendars, writer);
+      }
+      Files.move(partial, out, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      System.err.println("Wrote " + merge.kept + " events to " + out + " from " + merge.read
+          + " in " + calendars.size() + " calendars (" + (merge.read - merge.kept)
+          + " duplicates dropped, " + merge.spilled + " runs spilled) in "
+          + (System.nanoTime() - started) / 1000000 + " ms.");
+      return 0;
+    }
+    catch (IOException e) {
+      System.err.println("Merge failed: " + e.getMessage());
+      return 1;
+    }
+    finally {
+      if (tmp != null) {
+        delete(tmp);
+      }
+      try {
+        Files.deleteIfExists(partial);
+      }
+      catch (IOException e) {
+        System.err.println("Could not remove " + partial + ": " + e.getMessage());
+      }
+    }
+  }
+
+  private static int usage() {
+    System.err.println("Usage: --merge out.ics calendar.ics... [--tmp DIR] [--memory MB] [--utc]");
+    return 2;
+  }
+
+  private static void delete(Path dir) {
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.deleteIfExists(file);
+      }
+      Files.deleteIfExists(dir);
+    }
+    catch (IOException e) {
+      System.err.println("Could not remove " + dir + ": " + e.getMessage());
+    }
+  }
+
+  //=========================================
+  // merging
+  //=========================================
+
+  /** Writes the merged events of {@code calendars} as a whole calendar to {@code writer}. */
+  void merge(List<Path> calendars, IcsWriter writer) throws IOException {
+    // phase one: every version of every event, runs sorted by key
+    int threads = Math.min(calendars.size(), Runtime.getRuntime().availableProcessors());
+    List<Cursor> byKey = new ArrayList<Cursor>();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<List<Cursor>>> reads = new ArrayList<Future<List<Cursor>>>();
+      for (int i = 0; i < calendars.size(); i++) {
+        int file = i;
+        reads.add(pool.submit(() -> read(calendars.get(file), file, budget / 2 / threads)));
+      }
+      for (Future<List<Cursor>> future : reads) {
+        byKey.addAll(future.get());
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted");
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    finally {
+      pool.shutdownNow();
+    }
+
+    // phase two: the winners, runs sorted by start
+    Runs byStart = new Runs(BY_START, budget / 2);
+    String[] lastKey = {null};
+    kWayMerge(byKey, BY_KEY, entry -> {
+      read++;
+      if (!entry.key.equals(lastKey[0])) {
+        lastKey[0] = entry.key;
+        byStart.add(entry);
+      }
+    });
+    // the runs phase one kept in memory are all used up
+    held = 0;
+
+    List<IcsParser> inputs = new ArrayList<IcsParser>();
+    try {
+      for (Path calendar : calendars) {
+        inputs.add(new IcsParser(calendar));
+      }
+      writer.beginCalendar();
+      kWayMerge(byStart.finish(), BY_START, entry -> {
+        kept++;
+        int file = (int) (entry.source >>> FILE_SHIFT);
+        IcsParser parser = inputs.get(file);
+        parser.seek(entry.source & OFFSET_MASK);
+        if (parser.next() != IcsParser.Kind.EVENT) {
+          throw new IOException(calendars.get(file) + " changed while it was being merged");
+        }
+        writer.copyEvent(parser.event(), parser.bytes());
+      });
+      writer.endCalendar();
+    }
+    finally {
+      for (IcsParser parser : inputs) {
+        parser.close();
+      }
+    }
+  }
+
+  // reads one calendar into runs sorted by key
+  private List<Cursor> read(Path calendar, int file, long share) throws IOException {
+    Runs runs = new Runs(BY_KEY, share);
+    MessageDigest sha = EventCodec.sha256();
+    try (IcsParser parser = new IcsParser(calendar)) {
+      if (parser.size() > OFFSET_MASK) {
+        throw new IOException("too big to merge");
+      }
+      while (parser.next() != null) {
+        Event event = parser.event();
+        if (event == null) {
+          continue;
+        }
+        String key = event.getUid() != null ? key(event.getUid(), parser.recurrenceId())
+            : contentKey(RawEvents.contentDigest(parser.bytes(), sha));
+        runs.add(new Entry(key, start(event), event.getSequence(), event.getDtstamp(),
+            (long) file << FILE_SHIFT | parser.start()));
+      }
+    }
+    catch (IOException e) {
+      throw new IOException("Could not read " + calendar + ": " + e.getMessage(), e);
+    }
+    return runs.finish();
+  }
+
+  /**
+   * The key of an event with a UID: the UID, then the RECURRENCE-ID on a line of its own if the
+   * event is one occurrence of a series (see {@link IcsParser#recurrenceId()}).
+   */
+  static String key(String uid, String recurrenceId) {
+    return recurrenceId == null ? uid : uid + '\n' + recurrenceId;
+  }
+
+  /** The key of an event without a UID: "#" and its {@link RawEvents#contentDigest} in hex. */
+  static String contentKey(byte[] digest) {
+    StringBuilder key = new StringBuilder(1 + digest.length * 2).append('#');
+    for (byte b : digest) {
+      key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return key.toString();
+  }
+
+  // DTSTART in epoch seconds, the way Spans reads it; events without one go last
+  private static long start(Event event) {
+    if (event.getDtstart() == DateTimes.INVALID) {
+      return Long.MAX_VALUE;
+    }
+    return VTimezones.toEpochSecond(event.isUtc() ? null : event.getTzid(), event.getDtstart());
+  }
+
+  private interface Sink {
+    void accept(Entry entry) throws IOException;
+  }
+
+  // passes the entries of all the cursors to sink in comparator order, closing the cursors
+  private static void kWayMerge(List<Cursor> cursors, Comparator<Entry> order, Sink sink)
+      throws IOException {
+    PriorityQueue<Cursor> heads = new PriorityQueue<Cursor>(Math.max(1, cursors.size()),
+        (a, b) -> order.compare(a.head, b.head));
+    try {
+      for (Cursor cursor : cursors) {
+        if (cursor.advance()) {
+          heads.add(cursor);
+        }
+        else {
+          cursor.close();
+        }
+      }
+      while (!heads.isEmpty()) {
+        Cursor cursor = heads.poll();
+        sink.accept(cursor.head);
+        if (cursor.advance()) {
+          heads.add(cursor);
+        }
+        else {
+          cursor.close();
+        }
+      }
+    }
+    finally {
+      for (Cursor cursor : heads) {
+        cursor.close();
+      }
+    }
+  }
+
+  //=========================================
+  // runs
+  //=========================================
+
+  /** One event on its way through the merge. */
+  private static final class Entry {
+    // UID and RECURRENCE-ID, or "#" and a content hash
+    final String key;
+    final long start;
+    final int sequence;
+    final long dtstamp;
+    // input file and offset of the VEVENT in it, which also breaks ties the same way every time
+    final long source;
+
+    Entry(String key, long start, int sequence, long dtstamp, long source) {
+      this.key = key;
+      this.start = start;
+      this.sequence = sequence;
+      this.dtstamp = dtstamp;
+      this.source = source;
+    }
+
+    long size() {
+      return 2L * key.length() + ENTRY_OVERHEAD;
+    }
+  }
+
+  /** Collects entries, spilling them to a sorted run file whenever they reach the budget. */
+  private final class Runs {
+    private final Comparator<Entry> order;
+    private final long limit;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private long size;
+    private final List<Cursor> runs = new ArrayList<Cursor>();
+
+    Runs(Comparator<Entry> order, long limit) {
+      this.order = order;
+      this.limit = limit;
+    }
+
+    void add(Entry entry) throws IOException {
+      entries.add(entry);
+      size += entry.size();
+      if (size >= limit) {
+        spill();
+      }
+    }
+
+    private void spill() throws IOException {
+      entries.sort(order);
+      Path file = Files.createTempFile(tmp, "run", ".bin");
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(file), IO_BUFFER))) {
+        for (Entry entry : entries) {
+          byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+          out.writeInt(key.length);
+          out.write(key);
+          out.writeLong(entry.start);
+          out.writeInt(entry.sequence);
+          out.writeLong(entry.dtstamp);
+          out.writeLong(entry.source);
+        }
+      }
+      runs.add(new FileCursor(file));
+      entries.clear();
+      size = 0;
+      synchronized (CalendarMerge.this) {
+        spilled++;
+      }
+    }
+
+    /**
+     * Every run, with whatever was not spilled as one more run in memory if it fits in what is
+     * left of the budget.
+     */
+    List<Cursor> finish() throws IOException {
+      boolean fits;
+      synchronized (CalendarMerge.this) {
+        fits = held + size <= budget / 2;
+        if (fits) {
+          held += size;
+        }
+      }
+      if (!fits) {
+        spill();
+      }
+      entries.sort(order);
+      runs.add(new ListCursor(new ArrayList<Entry>(entries)));
+      entries.clear();
+      return runs;
+    }
+  }
+
+  /** The entries of one sorted run, one at a time. */
+  private abstract static class Cursor implements Closeable {
+    Entry head;
+
+    /** Moves {@link #head} to the next entry; false at the end of the run. */
+    abstract boolean advance() throws IOException;
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+
+  private static final class ListCursor extends Cursor {
+    private final List<Entry> entries;
+    private int next;
+
+    ListCursor(List<Entry> entries) {
+      this.entries = entries;
+    }
+
+    @Override
+    boolean advance() {
+      if (next == entries.size()) {
+        head = null;
+        return false;
+      }
+      head = entries.get(next);
+      // let the entries already merged be collected
+      entries.set(next++, null);
+      return true;
+    }
+  }
+
+  private static final class FileCursor extends Cursor {
+    private final Path file;
+    private DataInputStream in;
+
+    FileCursor(Path file) {
+      this.file = file;
+    }
+
+    @Override
+    boolean advance() throws IOException {
+      if (in == null) {
+        in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), IO_BUFFER));
+      }
+      int keyLength;
+      try {
+        keyLength = in.readInt();
+      }
+      catch (EOFException e) {
+        head = null;
+        return false;
+      }
+      byte[] key = new byte[keyLength];
+      in.readFully(key);
+      long start = in.readLong();
+      int sequence = in.readInt();
+      long dtstamp = in.readLong();
+      long source = in.readLong();
+      head = new Entry(new String(key, StandardCharsets.UTF_8), start, sequence, dtstamp, source);
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (in != null) {
+        in.close();
+      }
+      Files.deleteIfExists(file);
+    }
+  }
+}
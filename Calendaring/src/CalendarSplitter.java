@@ -0,0 +1,602 @@
+package calendaring;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a calendar into smaller ones: one per month of DTSTART, one per ORGANIZER, or as many
+ * as it takes to keep each under a size. Every part is a calendar of its own, with the input's
+ * calendar properties (PRODID, VERSION, METHOD, X-WR-CALNAME and so on, copied as they are), the
+ * VEVENTs that fall in it, and a VTIMEZONE for each TZID those events use.
+ *
+ * Events are not parsed back into bytes: each is copied from the input as it is, folding,
+ * unknown properties, VALARMs and all, with {@link FileChannel#transferTo}, which the kernel can
+ * do without the bytes passing through the Java heap. Events that are next to each other in the
+ * input and go to the same part are copied as one range, so a calendar sorted by start splits by
+ * month with a handful of transfers per part. A VTIMEZONE is copied from the input as well, or
+ * rendered from the tz database when the input lacks it.
+ *
+ * The input is read in pieces on a pool of threads, each piece starting at a line that starts
+ * BEGIN:VEVENT, so every event is read whole by one thread; a piece notes the byte ranges of its
+ * events by part and the VTIMEZONEs it comes across. Once every piece is read, the parts are
+ * written on the same pool, each from start to end by one thread, the largest first. Only a part
+ * being written has its file open, so splitting by ORGANIZER into thousands of calendars does
+ * not take thousands of threads or file handles.
+ *
+ * An event goes by its first DTSTART, in its own time: a weekly series that starts in March is
+ * in the March part with all its occurrences. Events without a valid DTSTART go to an "undated"
+ * part, events without an ORGANIZER to a "none" part. Organizers are named by their address,
+ * without "mailto:", in lower case, and with anything but letters, digits and ".-_@" made '_'.
+ * By size, a part is closed before the event that would take it over the size, counting its
+ * header and VTIMEZONEs; an event bigger than that on its own gets a part to itself.
+ *
+ * Only VEVENTs are carried over. Other components, such as VTODO, are left out, and so is a
+ * VTIMEZONE that only properties other than DTSTART and DTEND refer to.
+ *
+ * Usage: --split calendar.ics OUTDIR (--by month|organizer | --size MB) [--threads N]
+ */
+final class CalendarSplitter {
+
+  /** What an event's part is decided by. */
+  enum Partition {
+    MONTH, ORGANIZER, SIZE
+  }
+
+  // the input is read in pieces of about this size, or smaller if that leaves threads idle
+  private static final long MAX_PIECE = 8 << 20;
+  private static final long MIN_PIECE = 1 << 20;
+  private static final byte[] EVENT_BOUNDARY = "\nBEGIN:VEVENT".getBytes(StandardCharsets.US_ASCII);
+  // how far to look for a boundary at a time
+  private static final int SEARCH = 1 << 16;
+  // the calendar properties have to be in this many bytes
+  private static final int MAX_HEADER = 1 << 20;
+  private static final byte[] END = "END:VCALENDAR\r\n".getBytes(StandardCharsets.US_ASCII);
+  // keys of the parts without a DTSTART or an ORGANIZER
+  private static final Object UNDATED = "undated";
+  private static final Object NONE = "none";
+
+  private final Path input;
+  private final FileChannel channel;
+  private final Partition partition;
+  private final long maxBytes;
+  private final String base;
+
+  private byte[] header;
+  // TZID -> {start, end} of its VTIMEZONE in the input
+  private final Map<String, long[]> timezones = new HashMap<String, long[]>();
+  // TZID -> {first year, last year} used, for the zones the input has no VTIMEZONE for
+  private final Map<String, int[]> years = new HashMap<String, int[]>();
+
+  /**
+   * A splitter of {@code input}, read through {@code channel}; {@code maxBytes} is the size of a
+   * part when splitting by SIZE.
+   */
+  CalendarSplitter(Path input, FileChannel channel, Partition partition, long maxBytes) {
+    this.input = input;
+    this.channel = channel;
+    this.partition = partition;
+    this.maxBytes = maxBytes;
+    String name = input.getFileName().toString();
+    this.base = name.toLowerCase().endsWith(".ics") ? name.substring(0, name.length() - 4) : name;
+  }
+
+  static int run(String[] args) {
+    if (args.length < 5) {
+      return usage();
+    }
+    Partition partition = null;
+    long maxBytes = 0;
+    int threads = Runtime.getRuntime().availableProcessors();
+    for (int i = 3; i < args.length; i += 2) {
+      if (i + 1 == args.length) {
+        return usage();
+      }
+      if (args[i].equals("--by") && partition == null) {
+        if (args[i + 1].equals("month")) {
+          partition = Partition.MONTH;
+        }
+        else if (args[i + 1].equals("organizer")) {
+          partition = Partition.ORGANIZER;
+        }
+        else {
+          return usage();
+        }
+        continue;
+      }
+      if (!args[i].equals("--threads") && !(args[i].equals("--size") && partition == null)) {
+        return usage();
+      }
+      int value;
+      try {
+        value = Integer.parseInt(args[i + 1]);
+      }
+      catch (NumberFormatException e) {
+        return usage();
+      }
+      if (value < 1) {
+        return usage();
+      }
+      if (args[i].equals("--threads")) {
+        threads = value;
+      }
+      else {
+        partition = Partition.SIZE;
+        maxBytes = (long) value << 20;
+      }
+    }
+    if (partition == null) {
+      return usage();
+    }
+
+    long started = System.nanoTime();
+    Path input = Paths.get(args[1]);
+    Path outDir = Paths.get(args[2]);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Part> parts;
+    try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+      Files.createDirectories(outDir);
+      CalendarSplitter splitter = new CalendarSplitter(input, channel, partition, maxBytes);
+      parts = splitter.split(outDir, pool, threads);
+    }
+    catch (IOException e) {
+      System.err.println("Could not split " + input + ": " + e.getMessage());
+      return 1;
+    }
+    finally {
+      pool.shutdownNow();
+    }
+    long events = 0;
+    for (Part part : parts) {
+      System.out.println(outDir.resolve(part.name) + " " + part.events);
+      events += part.events;
+    }
+    System.err.println("Split " + events + " events into " + parts.size() + " calendars in "
+        + (System.nanoTime() - started) / 1000000 + " ms.");
+    return 0;
+  }
+
+  private static int usage() {
+    System.err.println("Usage: --split calendar.ics OUTDIR (--by month|organizer | --size MB)"
+        + " [--threads N]");
+    return 2;
+  }
+
+  /**
+   * Reads the input and writes its parts into {@code outDir}, on {@code pool} of {@code threads}.
+   * Returns the parts written, sorted by file name.
+   */
+  List<Part> split(Path outDir, ExecutorService pool, int threads) throws IOException {
+    long size = channel.size();
+    long piece = Math.max(MIN_PIECE, Math.min(MAX_PIECE, size / (4L * threads)));
+    List<Future<Scan>> reads = new ArrayList<Future<Scan>>();
+    for (long from = 0; from < size; ) {
+      long start = from;
+      long to = boundary(from + piece, size);
+      reads.add(pool.submit(() -> scan(start, to)));
+      from = to;
+    }
+    List<Scan> scans = new ArrayList<Scan>();
+    for (Future<Scan> read : reads) {
+      scans.add(get(read));
+    }
+
+    long first = -1;
+    for (Scan scan : scans) {
+      for (Map.Entry<String, long[]> timezone : scan.timezones.entrySet()) {
+        timezones.putIfAbsent(timezone.getKey(), timezone.getValue());
+      }
+      for (Map.Entry<String, int[]> zone : scan.years.entrySet()) {
+        int[] seen = years.computeIfAbsent(zone.getKey(),
+            k -> new int[] {Integer.MAX_VALUE, Integer.MIN_VALUE});
+        seen[0] = Math.min(seen[0], zone.getValue()[0]);
+        seen[1] = Math.max(seen[1], zone.getValue()[1]);
+      }
+      if (first < 0) {
+        first = scan.first;
+      }
+    }
+    if (first < 0) {
+      return new ArrayList<Part>();
+    }
+    header = header(first);
+
+    List<Part> parts = partition == Partition.SIZE ? bySize(scans) : byKey(scans);
+    List<Part> largestFirst = new ArrayList<Part>(parts);
+    largestFirst.sort(Comparator.comparingLong((Part part) -> part.bytes).reversed());
+    List<Future<?>> writes = new ArrayList<Future<?>>();
+    for (Part part : largestFirst) {
+      writes.add(pool.submit(() -> {
+        write(part, outDir.resolve(part.name));
+        return null;
+      }));
+    }
+    for (Future<?> write : writes) {
+      get(write);
+    }
+    return parts;
+  }
+
+  private static <T> T get(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted");
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  //=========================================
+  // reading
+  //=========================================
+
+  // what one piece of the input holds
+  private static final class Scan {
+    // by month or organizer: the events of each part, by key
+    final Map<Object, Part> parts = new HashMap<Object, Part>();
+    // by size: every event on its own, and the zone of each as an index into zoneNames, or -1
+    final Part events = new Part(null);
+    int[] eventZones = new int[16];
+    final List<String> zoneNames = new ArrayList<String>();
+    final Map<String, Integer> zoneCodes = new HashMap<String, Integer>();
+
+    final Map<String, long[]> timezones = new HashMap<String, long[]>();
+    final Map<String, int[]> years = new HashMap<String, int[]>();
+    // offset of the first component, or -1
+    long first = -1;
+  }
+
+  // the components that start in [from, to)
+  private Scan scan(long from, long to) throws IOException {
+    Scan scan = new Scan();
+    try (IcsParser parser = new IcsParser(input)) {
+      parser.seek(from);
+      IcsParser.Kind kind;
+      while ((kind = parser.next()) != null && parser.start() < to) {
+        if (scan.first < 0) {
+          scan.first = parser.start();
+        }
+        if (kind == IcsParser.Kind.TIMEZONE) {
+          if (parser.tzid() != null) {
+            scan.timezones.putIfAbsent(parser.tzid(), new long[] {parser.start(), parser.end()});
+          }
+          continue;
+        }
+        Event event = parser.event();
+        String tzid = event.getTzid();
+        if (tzid != null) {
+          useZone(scan, event);
+        }
+        if (partition == Partition.SIZE) {
+          int n = scan.events.events;
+          scan.events.add(parser.start(), parser.end(), false);
+          if (n == scan.eventZones.length) {
+            scan.eventZones = Arrays.copyOf(scan.eventZones, n * 2);
+          }
+          int zone = -1;
+          if (tzid != null) {
+            Integer code = scan.zoneCodes.get(tzid);
+            if (code == null) {
+              code = scan.zoneNames.size();
+              scan.zoneNames.add(tzid);
+              scan.zoneCodes.put(tzid, code);
+            }
+            zone = code;
+          }
+          scan.eventZones[n] = zone;
+          continue;
+        }
+        Object key = key(event);
+        Part part = scan.parts.get(key);
+        if (part == null) {
+          part = new Part(null);
+          scan.parts.put(key, part);
+        }
+        part.add(parser.start(), parser.end(), true);
+        if (tzid != null) {
+          part.zones.add(tzid);
+        }
+      }
+    }
+    return scan;
+  }
+
+  // month as yyyyMM, the organizer as it is, or UNDATED or NONE
+  private Object key(Event event) {
+    if (partition == Partition.MONTH) {
+      long start = event.getDtstart();
+      return start == DateTimes.INVALID ? UNDATED : Integer.valueOf(DateTimes.date(start) / 100);
+    }
+    return event.getOrganizer() == null ? NONE : event.getOrganizer();
+  }
+
+  // notes the years event needs its zone for, as IcsWriter.useZones does
+  private static void useZone(Scan scan, Event event) {
+    int[] used = scan.years.get(event.getTzid());
+    if (used == null) {
+      used = new int[] {Integer.MAX_VALUE, Integer.MIN_VALUE};
+      scan.years.put(event.getTzid(), used);
+    }
+    widen(used, event.getDtstart());
+    widen(used, event.getDtend());
+    Recurrence rrule = event.getRrule();
+    if (rrule != null) {
+      if (rrule.getUntil() == DateTimes.INVALID) {
+        used[1] = Math.max(used[1], VTimezones.OPEN_ENDED);
+      }
+      else {
+        widen(used, rrule.getUntil());
+      }
+    }
+  }
+
+  private static void widen(int[] years, long dateTime) {
+    if (dateTime != DateTimes.INVALID) {
+      int year = DateTimes.date(dateTime) / 10000;
+      years[0] = Math.min(years[0], year);
+      years[1] = Math.max(years[1], year);
+    }
+  }
+
+  // offset of the first line starting BEGIN:VEVENT at or after from, or size if there is none
+  private long boundary(long from, long size) throws IOException {
+    ByteBuffer window = ByteBuffer.allocate(SEARCH + EVENT_BOUNDARY.length);
+    // the '\n' before the line has to be looked at too
+    for (long at = from - 1; at < size - 1; at += SEARCH) {
+      window.clear();
+      read(window, at);
+      byte[] bytes = window.array();
+      int limit = window.position() - EVENT_BOUNDARY.length;
+      for (int i = 0; i <= limit; i++) {
+        if (bytes[i] == '\n' && matchesAt(bytes, i)) {
+          return at + i + 1;
+        }
+      }
+    }
+    return size;
+  }
+
+  private static boolean matchesAt(byte[] bytes, int off) {
+    for (int i = 1; i < EVENT_BOUNDARY.length; i++) {
+      if (bytes[off + i] != EVENT_BOUNDARY[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void read(ByteBuffer into, long at) throws IOException {
+    while (into.hasRemaining()) {
+      if (channel.read(into, at + into.position()) < 0) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * The calendar properties: the input up to the first component at {@code first}, or to any
+   * other component before it.
+   */
+  private byte[] header(long first) throws IOException {
+    ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(first, MAX_HEADER));
+    read(bytes, 0);
+    String text = new String(bytes.array(), 0, bytes.position(), StandardCharsets.ISO_8859_1);
+    if (!text.startsWith("BEGIN:VCALENDAR")) {
+      throw new IOException("it does not start with BEGIN:VCALENDAR");
+    }
+    int end = text.indexOf("\nBEGIN:", 1);
+    if (end >= 0) {
+      return Arrays.copyOf(bytes.array(), end + 1);
+    }
+    if (first > MAX_HEADER) {
+      throw new IOException("its calendar properties take more than " + MAX_HEADER + " bytes");
+    }
+    return Arrays.copyOf(bytes.array(), bytes.position());
+  }
+
+  //=========================================
+  // parts
+  //=========================================
+
+  /** One calendar to write: byte ranges of the input and the zones its events use. */
+  static final class Part {
+    final String name;
+    // file offsets of the ranges to copy, in input order
+    long[] starts = new long[8];
+    long[] ends = new long[8];
+    int ranges;
+    int events;
+    // octets of the ranges, and of the whole file once written
+    long eventBytes;
+    long bytes;
+    final Set<String> zones = new LinkedHashSet<String>();
+
+    Part(String name) {
+      this.name = name;
+    }
+
+    // joins the range to the last one if it follows on from it and join is set
+    void add(long start, long end, boolean join) {
+      events++;
+      eventBytes += end - start;
+      if (join && ranges > 0 && ends[ranges - 1] == start) {
+        ends[ranges - 1] = end;
+        return;
+      }
+      if (ranges == starts.length) {
+        starts = Arrays.copyOf(starts, ranges * 2);
+        ends = Arrays.copyOf(ends, ranges * 2);
+      }
+      starts[ranges] = start;
+      ends[ranges] = end;
+      ranges++;
+    }
+
+    void addAll(Part other) {
+      for (int i = 0; i < other.ranges; i++) {
+        add(other.starts[i], other.ends[i], true);
+      }
+      // add counted each range as an event
+      events += other.events - other.ranges;
+      zones.addAll(other.zones);
+    }
+  }
+
+  private List<Part> byKey(List<Scan> scans) throws IOException {
+    Map<String, Part> parts = new TreeMap<String, Part>();
+    Map<Object, String> names = new HashMap<Object, String>();
+    for (Scan scan : scans) {
+      for (Map.Entry<Object, Part> entry : scan.parts.entrySet()) {
+        String name = names.computeIfAbsent(entry.getKey(), this::fileName);
+        parts.computeIfAbsent(name, Part::new).addAll(entry.getValue());
+      }
+    }
+    List<Part> list = new ArrayList<Part>(parts.values());
+    for (Part part : list) {
+      part.bytes = header.length + part.eventBytes + END.length;
+      for (String zone : part.zones) {
+        part.bytes += zoneBytes(zone);
+      }
+    }
+    return list;
+  }
+
+  private String fileName(Object key) {
+    if (key instanceof Integer) {
+      int month = (Integer) key;
+      return String.format("%s-%04d-%02d.ics", base, month / 100, month % 100);
+    }
+    if (key == UNDATED || key == NONE) {
+      return base + "-" + key + ".ics";
+    }
+    String organizer = ((String) key).toLowerCase();
+    if (organizer.startsWith("mailto:")) {
+      organizer = organizer.substring("mailto:".length());
+    }
+    StringBuilder sb = new StringBuilder(base).append('-');
+    for (int i = 0; i < organizer.length() && i < 64; i++) {
+      char c = organizer.charAt(i);
+      boolean safe = c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || ".-_@".indexOf(c) >= 0;
+      sb.append(safe ? c : '_');
+    }
+    return sb.append(".ics").toString();
+  }
+
+  private List<Part> bySize(List<Scan> scans) throws IOException {
+    List<Part> parts = new ArrayList<Part>();
+    Part part = null;
+    for (Scan scan : scans) {
+      for (int i = 0; i < scan.events.ranges; i++) {
+        long length = scan.events.ends[i] - scan.events.starts[i];
+        int code = scan.eventZones[i];
+        String zone = code < 0 ? null : scan.zoneNames.get(code);
+        long zoneBytes = zone == null || part != null && part.zones.contains(zone)
+            ? 0 : zoneBytes(zone);
+        if (part == null || part.events > 0 && part.bytes + length + zoneBytes > maxBytes) {
+          part = new Part(String.format("%s-%04d.ics", base, parts.size() + 1));
+          part.bytes = header.length + END.length;
+          parts.add(part);
+          zoneBytes = zone == null ? 0 : zoneBytes(zone);
+        }
+        part.add(scan.events.starts[i], scan.events.ends[i], true);
+        part.bytes += length + zoneBytes;
+        if (zone != null) {
+          part.zones.add(zone);
+        }
+      }
+    }
+    return parts;
+  }
+
+  // octets of the VTIMEZONE written for zone
+  private long zoneBytes(String zone) {
+    long[] block = timezones.get(zone);
+    if (block != null) {
+      return block[1] - block[0];
+    }
+    byte[] rendered = render(zone);
+    return rendered == null ? 0 : rendered.length;
+  }
+
+  // the zone over the years its events use, when the input has no VTIMEZONE for it
+  private byte[] render(String zone) {
+    int[] used = years.get(zone);
+    if (used == null || used[0] > used[1]) {
+      int year = java.time.Year.now().getValue();
+      return VTimezones.render(zone, year, year);
+    }
+    return VTimezones.render(zone, used[0], used[1]);
+  }
+
+  //=========================================
+  // writing
+  //=========================================
+
+  private void write(Part part, Path file) throws IOException {
+    try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      write(out, header);
+      for (int i = 0; i < part.ranges; i++) {
+        transfer(part.starts[i], part.ends[i], out);
+      }
+      for (String zone : part.zones) {
+        long[] block = timezones.get(zone);
+        if (block != null) {
+          transfer(block[0], block[1], out);
+        }
+        else {
+          byte[] rendered = render(zone);
+          if (rendered != null) {
+            write(out, rendered);
+          }
+        }
+      }
+      write(out, END);
+    }
+    Metrics.EVENTS_WRITTEN.add(part.events);
+    Metrics.BYTES_WRITTEN.add(part.bytes);
+  }
+
+  // copies [start, end) of the input to out
+  private void transfer(long start, long end, FileChannel out) throws IOException {
+    while (start < end) {
+      long n = channel.transferTo(start, end - start, out);
+      if (n <= 0) {
+        throw new IOException("the input ended at offset " + start + " while it was being split");
+      }
+      start += n;
+    }
+  }
+
+  private static void write(FileChannel out, byte[] bytes) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+}
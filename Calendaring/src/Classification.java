@@ -0,0 +1,25 @@
+package calendaring;
+
+/**
+ * Values of the CLASS property (3.8.1.3), in the order the classification menu lists them.
+ */
+enum Classification {
+  PUBLIC, PRIVATE, CONFIDENTIAL;
+
+  private static final Classification[] VALUES = values();
+
+  /** The classification for a menu number (1-3), or null if it is out of range. */
+  static Classification fromMenu(int number) {
+    return number >= 1 && number <= VALUES.length ? VALUES[number - 1] : null;
+  }
+
+  /** Parses a CLASS value, ignoring case. Returns null for values outside the three above. */
+  static Classification parse(String value) {
+    for (Classification c : VALUES) {
+      if (c.name().equalsIgnoreCase(value)) {
+        return c;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,64 @@
+package calendaring;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Finds events that overlap events already added, for warning about double bookings.
+ *
+ * Events are indexed by their UTC start and end in an {@link IntervalIndex}, so events in
+ * different time zones compare correctly and a check costs O(log n + k) however many events are
+ * loaded. A recurring event is indexed as its occurrences up to {@link #HORIZON_DAYS} days after
+ * DTSTART (or UNTIL, if sooner); conflicts further out than that are not reported. Events with
+ * no DTEND take no time and never conflict.
+ */
+final class Conflicts {
+
+  /** How far ahead recurring events are expanded. */
+  static final int HORIZON_DAYS = 366;
+
+  private final IntervalIndex index = new IntervalIndex();
+
+  int size() {
+    return index.size();
+  }
+
+  /** Indexes {@code event} under {@code id}. */
+  void add(Event event, int id) {
+    spans(event, (start, end) -> {
+      index.add(start, end, id);
+      return true;
+    });
+  }
+
+  /** The id of an added event overlapping {@code event}, or -1 if none does. */
+  int firstConflict(Event event) {
+    int[] found = {-1};
+    spans(event, (start, end) -> {
+      found[0] = index.firstOverlap(start, end);
+      return found[0] == -1;
+    });
+    return found[0];
+  }
+
+  /**
+   * Passes the id of every added event overlapping {@code event} to {@code action}. Recurring
+   * events can report the same id once per overlapping occurrence.
+   */
+  void forEachConflict(Event event, IntConsumer action) {
+    spans(event, (start, end) -> {
+      index.forEachOverlap(start, end, action);
+      return true;
+    });
+  }
+
+  // a single event's own span, or a recurring one's occurrences up to the horizon
+  private static void spans(Event event, Spans.Consumer consumer) {
+    long dtstart = event.getDtstart();
+    if (dtstart == DateTimes.INVALID) {
+      return;
+    }
+    long from = VTimezones.toEpochSecond(event.isUtc() ? null : event.getTzid(), dtstart);
+    long to = event.getRrule() == null ? Long.MAX_VALUE : from + HORIZON_DAYS * 86400L;
+    Spans.of(event, from, to, consumer);
+  }
+}
@@ -0,0 +1,216 @@
+package calendaring;
+
+/**
+ * Allocation-free checks for the YYYYMMDD dates and HHMMSS times used throughout the program.
+ *
+ * Values are scanned character by character and packed into primitives instead of going through
+ * SimpleDateFormat or Integer.parseInt: a date is the int yyyyMMdd, a time the int HHmmss and a
+ * DATE-TIME the long yyyyMMddHHmmss, so packed values compare in chronological order. Failure is
+ * reported as {@link #INVALID} rather than an exception.
+ *
+ * Dates are checked exactly like a non-lenient SimpleDateFormat("yyyyMMdd") does with the default
+ * GregorianCalendar: years 0001-9999, Julian leap years before the 15 October 1582 cutover, and
+ * the ten days 5-14 October 1582 do not exist.
+ */
+final class DateTimes {
+
+  static final int INVALID = -1;
+  /** What {@link #unitValue} returns when there is no number at all; -1 is a legitimate result there. */
+  static final int NOT_A_NUMBER = Integer.MIN_VALUE;
+
+  private static final int CUTOVER_GAP_START = 15821005;
+  private static final int CUTOVER = 15821015;
+
+  private static final int[] MONTH_DAYS = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+  private DateTimes() {
+  }
+
+  /** Parses the 8 digits YYYYMMDD at {@code off}. Returns yyyyMMdd or {@link #INVALID}. */
+  static int parseDate(CharSequence s, int off) {
+    if (off < 0 || off + 8 > s.length()) {
+      return INVALID;
+    }
+    int year = digits(s, off, 4);
+    int month = digits(s, off + 4, 2);
+    int day = digits(s, off + 6, 2);
+    if (year < 0 || month < 0 || day < 0) {
+      return INVALID;
+    }
+    return isValidDate(year, month, day) ? year * 10000 + month * 100 + day : INVALID;
+  }
+
+  /** Parses the 6 digits HHMMSS at {@code off}. Returns HHmmss or {@link #INVALID}. */
+  static int parseTime(CharSequence s, int off) {
+    if (off < 0 || off + 6 > s.length()) {
+      return INVALID;
+    }
+    int hour = digits(s, off, 2);
+    int minute = digits(s, off + 2, 2);
+    int second = digits(s, off + 4, 2);
+    if (hour < 0 || hour >= 24 || minute < 0 || minute >= 60 || second < 0 || second >= 60) {
+      return INVALID;
+    }
+    return hour * 10000 + minute * 100 + second;
+  }
+
+  /** Parses the 15 characters YYYYMMDDTHHMMSS at {@code off}. Returns the packed value or {@link #INVALID}. */
+  static long parseDateTime(CharSequence s, int off) {
+    if (off < 0 || off + 15 > s.length() || s.charAt(off + 8) != 'T') {
+      return INVALID;
+    }
+    int date = parseDate(s, off);
+    int time = parseTime(s, off + 9);
+    if (date == INVALID || time == INVALID) {
+      return INVALID;
+    }
+    return pack(date, time);
+  }
+
+  /**
+   * Value of a two character hour/minute/second field with the same results as
+   * Integer.parseInt: a leading sign is allowed and any Unicode decimal digit counts. Returns
+   * {@link #NOT_A_NUMBER} if it is not a number; "-0" is 0 and other negatives come back negative.
+   */
+  static int unitValue(CharSequence s) {
+    if (s.length() != 2) {
+      return NOT_A_NUMBER;
+    }
+    char first = s.charAt(0);
+    int last = digit(s.charAt(1));
+    if (last < 0) {
+      return NOT_A_NUMBER;
+    }
+    if (first == '+') {
+      return last;
+    }
+    if (first == '-') {
+      return last == 0 ? 0 : -last;
+    }
+    int tens = digit(first);
+    return tens < 0 ? NOT_A_NUMBER : tens * 10 + last;
+  }
+
+  static boolean isValidDate(int year, int month, int day) {
+    if (year < 1 || month < 1 || month > 12 || day < 1) {
+      return false;
+    }
+    int date = year * 10000 + month * 100 + day;
+    if (date >= CUTOVER_GAP_START && date < CUTOVER) {
+      return false;
+    }
+    return day <= daysInMonth(year, month);
+  }
+
+  static int daysInMonth(int year, int month) {
+    if (month == 2 && isLeapYear(year)) {
+      return 29;
+    }
+    return MONTH_DAYS[month - 1];
+  }
+
+  static boolean isLeapYear(int year) {
+    if (year < 1583) {
+      return year % 4 == 0;
+    }
+    return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+  }
+
+  //=========================================
+  // arithmetic (proleptic Gregorian, like java.time)
+  //=========================================
+
+  /** Days since 1970-01-01 for a packed yyyyMMdd date. */
+  static long toEpochDay(int date) {
+    long year = date / 10000;
+    int month = date / 100 % 100;
+    int day = date % 100;
+    // shift the year to start in March so the leap day comes last
+    if (month <= 2) {
+      year--;
+    }
+    long era = Math.floorDiv(year, 400);
+    long yearOfEra = year - era * 400;
+    int monthIndex = (month + 9) % 12;
+    long dayOfYear = (153 * monthIndex + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  /** The packed yyyyMMdd date for a count of days since 1970-01-01. */
+  static int fromEpochDay(long epochDay) {
+    long z = epochDay + 719468;
+    long era = Math.floorDiv(z, 146097);
+    long dayOfEra = z - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    int monthIndex = (int) ((5 * dayOfYear + 2) / 153);
+    int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+    int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+    return (int) year * 10000 + month * 100 + day;
+  }
+
+  /** 0 for Monday through 6 for Sunday. */
+  static int dayOfWeek(long epochDay) {
+    return (int) Math.floorMod(epochDay + 3, 7L);
+  }
+
+  /** Month length in the proleptic Gregorian calendar. */
+  static int lengthOfMonth(int year, int month) {
+    if (month == 2 && year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) {
+      return 29;
+    }
+    return MONTH_DAYS[month - 1];
+  }
+
+  /** Seconds since 1970-01-01T00:00:00 for a packed yyyyMMddHHmmss, read as if it were UTC. */
+  static long toEpochSecond(long dateTime) {
+    int time = time(dateTime);
+    return toEpochDay(date(dateTime)) * 86400L
+        + time / 10000 * 3600 + time / 100 % 100 * 60 + time % 100;
+  }
+
+  static long fromEpochSecond(long epochSecond) {
+    long day = Math.floorDiv(epochSecond, 86400L);
+    int secs = (int) Math.floorMod(epochSecond, 86400L);
+    return pack(fromEpochDay(day), secs / 3600 * 10000 + secs / 60 % 60 * 100 + secs % 60);
+  }
+
+  /** The current time as a packed yyyyMMddHHmmss in UTC, as DTSTAMP wants it. */
+  static long nowUtc() {
+    return fromEpochSecond(System.currentTimeMillis() / 1000);
+  }
+
+  static long pack(int date, int time) {
+    return date * 1000000L + time;
+  }
+
+  static int date(long dateTime) {
+    return (int) (dateTime / 1000000L);
+  }
+
+  static int time(long dateTime) {
+    return (int) (dateTime % 1000000L);
+  }
+
+  // ASCII digits only; returns -1 if any character is not one
+  private static int digits(CharSequence s, int off, int count) {
+    int value = 0;
+    for (int i = off; i < off + count; i++) {
+      int c = s.charAt(i) - '0';
+      if (c < 0 || c > 9) {
+        return -1;
+      }
+      value = value * 10 + c;
+    }
+    return value;
+  }
+
+  private static int digit(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    }
+    return c < 128 ? -1 : Character.digit(c, 10);
+  }
+}
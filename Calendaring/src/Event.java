@@ -0,0 +1,279 @@
+package calendaring;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One VEVENT, as produced by the prompts or a bulk row and consumed by {@link IcsWriter}.
+ *
+ * Events are immutable; use {@link #builder()} or {@link #toBuilder()} to make one. DTSTART and
+ * DTEND are packed yyyyMMddHHmmss values (see {@link DateTimes}), and text properties that were
+ * never given are null. {@link #isDateOnly()} marks all-day events whose DTSTART/DTEND are DATE
+ * values (the time part is then zero), and {@link #isUtc()} marks times given in UTC.
+ * ORGANIZER and ATTENDEE are calendar addresses, usually mailto: URIs. DTSTAMP is a packed
+ * yyyyMMddHHmmss in UTC. SEQUENCE counts the revisions of an event with the same UID, 0 for the
+ * first. VALARMs are kept as {@link Alarm}s, in the order given.
+ */
+final class Event {
+
+  // random per process, so UIDs from different runs and machines do not collide
+  private static final String UID_SUFFIX =
+      Long.toHexString(new SecureRandom().nextLong() & Long.MAX_VALUE) + "@calendaring";
+  private static final AtomicLong UID_COUNTER = new AtomicLong(System.currentTimeMillis() << 20);
+
+  private final String uid;
+  private final long dtstamp;
+  private final int sequence;
+  private final String tzid;
+  private final Classification classification;
+  private final String location;
+  private final int priority;
+  private final String summary;
+  private final long dtstart;
+  private final long dtend;
+  private final boolean dateOnly;
+  private final boolean utc;
+  private final Recurrence rrule;
+  private final String organizer;
+  private final List<String> attendees;
+  private final List<Alarm> alarms;
+
+  private Event(Builder b) {
+    this.uid = b.uid;
+    this.dtstamp = b.dtstamp;
+    this.sequence = b.sequence;
+    this.tzid = b.tzid;
+    this.classification = b.classification;
+    this.location = b.location;
+    this.priority = b.priority;
+    this.summary = b.summary;
+    this.dtstart = b.dtstart;
+    this.dtend = b.dtend;
+    this.dateOnly = b.dateOnly;
+    this.utc = b.utc;
+    this.rrule = b.rrule;
+    this.organizer = b.organizer;
+    this.attendees = b.attendees.isEmpty() ? Collections.<String>emptyList()
+        : Collections.unmodifiableList(new ArrayList<String>(b.attendees));
+    this.alarms = b.alarms.isEmpty() ? Collections.<Alarm>emptyList()
+        : Collections.unmodifiableList(new ArrayList<Alarm>(b.alarms));
+  }
+
+  static Builder builder() {
+    return new Builder();
+  }
+
+  Builder toBuilder() {
+    Builder b = new Builder();
+    b.uid = uid;
+    b.dtstamp = dtstamp;
+    b.sequence = sequence;
+    b.tzid = tzid;
+    b.classification = classification;
+    b.location = location;
+    b.priority = priority;
+    b.summary = summary;
+    b.dtstart = dtstart;
+    b.dtend = dtend;
+    b.dateOnly = dateOnly;
+    b.utc = utc;
+    b.rrule = rrule;
+    b.organizer = organizer;
+    b.attendees.addAll(attendees);
+    b.alarms.addAll(alarms);
+    return b;
+  }
+
+  /**
+   * A new globally unique UID (3.8.4.7). Cheaper than a random UUID: a counter seeded from the
+   * clock, plus a random suffix chosen once per process.
+   */
+  static String newUid() {
+    return Long.toHexString(UID_COUNTER.incrementAndGet()) + '-' + UID_SUFFIX;
+  }
+
+  /** The UID, or null if the event has none yet. */
+  String getUid() {
+    return uid;
+  }
+
+  /** Packed yyyyMMddHHmmss UTC, or {@link DateTimes#INVALID} if there is no DTSTAMP. */
+  long getDtstamp() {
+    return dtstamp;
+  }
+
+  /** The SEQUENCE number (3.8.7.4); 0 if there is none. */
+  int getSequence() {
+    return sequence;
+  }
+
+  String getTzid() {
+    return tzid;
+  }
+
+  Classification getClassification() {
+    return classification;
+  }
+
+  String getLocation() {
+    return location;
+  }
+
+  /** 1 is highest, 9 lowest and 0 undefined. */
+  int getPriority() {
+    return priority;
+  }
+
+  String getSummary() {
+    return summary;
+  }
+
+  /** Packed yyyyMMddHHmmss, or {@link DateTimes#INVALID} if there is no DTSTART. */
+  long getDtstart() {
+    return dtstart;
+  }
+
+  /** Packed yyyyMMddHHmmss, or {@link DateTimes#INVALID} if there is no DTEND. */
+  long getDtend() {
+    return dtend;
+  }
+
+  boolean isDateOnly() {
+    return dateOnly;
+  }
+
+  boolean isUtc() {
+    return utc;
+  }
+
+  /** The RRULE, or null for a one-off event. */
+  Recurrence getRrule() {
+    return rrule;
+  }
+
+  /** The ORGANIZER address, or null. */
+  String getOrganizer() {
+    return organizer;
+  }
+
+  /** The ATTENDEE addresses in the order given; empty if there are none. */
+  List<String> getAttendees() {
+    return attendees;
+  }
+
+  /** The VALARMs in the order given; empty if there are none. */
+  List<Alarm> getAlarms() {
+    return alarms;
+  }
+
+  static final class Builder {
+    private String uid;
+    private long dtstamp = DateTimes.INVALID;
+    private int sequence;
+    private String tzid;
+    private Classification classification;
+    private String location;
+    private int priority;
+    private String summary;
+    private long dtstart = DateTimes.INVALID;
+    private long dtend = DateTimes.INVALID;
+    private boolean dateOnly;
+    private boolean utc;
+    private Recurrence rrule;
+    private String organizer;
+    private final List<String> attendees = new ArrayList<String>();
+    private final List<Alarm> alarms = new ArrayList<Alarm>();
+
+    private Builder() {
+    }
+
+    Builder uid(String uid) {
+      this.uid = uid;
+      return this;
+    }
+
+    Builder dtstamp(long dtstamp) {
+      this.dtstamp = dtstamp;
+      return this;
+    }
+
+    Builder sequence(int sequence) {
+      this.sequence = sequence;
+      return this;
+    }
+
+    Builder tzid(String tzid) {
+      this.tzid = tzid;
+      return this;
+    }
+
+    Builder classification(Classification classification) {
+      this.classification = classification;
+      return this;
+    }
+
+    Builder location(String location) {
+      this.location = location;
+      return this;
+    }
+
+    Builder priority(int priority) {
+      this.priority = priority;
+      return this;
+    }
+
+    Builder summary(String summary) {
+      this.summary = summary;
+      return this;
+    }
+
+    Builder dtstart(long dtstart) {
+      this.dtstart = dtstart;
+      return this;
+    }
+
+    Builder dtend(long dtend) {
+      this.dtend = dtend;
+      return this;
+    }
+
+    Builder dateOnly(boolean dateOnly) {
+      this.dateOnly = dateOnly;
+      return this;
+    }
+
+    Builder utc(boolean utc) {
+      this.utc = utc;
+      return this;
+    }
+
+    Builder rrule(Recurrence rrule) {
+      this.rrule = rrule;
+      return this;
+    }
+
+    Builder organizer(String organizer) {
+      this.organizer = organizer;
+      return this;
+    }
+
+    /** Adds one ATTENDEE. */
+    Builder attendee(String attendee) {
+      attendees.add(attendee);
+      return this;
+    }
+
+    /** Adds one VALARM. */
+    Builder alarm(Alarm alarm) {
+      alarms.add(alarm);
+      return this;
+    }
+
+    Event build() {
+      return new Event(this);
+    }
+  }
+}
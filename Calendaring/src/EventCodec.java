@@ -0,0 +1,193 @@
+package calendaring;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary form of an {@link Event}, as kept in {@link EventStore}'s log and in the runs
+ * {@link CalendarMerge} spills to disk.
+ *
+ * Fixed-size fields come first, then strings as an int length and UTF-8 bytes (-1 for null), the
+ * attendees as a count and that many strings, then SEQUENCE, the alarms as a count and that many
+ * alarms, and last the SUMMARY, ATTENDEEs and ATTACHs of each alarm in turn. Fields added later go
+ * at the end and are read only if there are bytes left, so records written before them still
+ * decode.
+ */
+final class EventCodec {
+
+  private static final int FLAG_DATE_ONLY = 1;
+  private static final int FLAG_UTC = 2;
+
+  private EventCodec() {
+  }
+
+  /**
+   * Encodes {@code event} at the position of {@code buffer}, returning the buffer written to: the
+   * same one, or a bigger copy if it ran out of room.
+   */
+  static ByteBuffer encode(Event event, ByteBuffer buffer) {
+    buffer = putString(buffer, event.getUid());
+    buffer = ensure(buffer, 8 * 3 + 4 + 2);
+    buffer.putLong(event.getDtstamp());
+    buffer.putLong(event.getDtstart());
+    buffer.putLong(event.getDtend());
+    buffer.put((byte) (event.getClassification() == null ? -1 : event.getClassification().ordinal()));
+    buffer.put((byte) event.getPriority());
+    buffer.put((byte) ((event.isDateOnly() ? FLAG_DATE_ONLY : 0) | (event.isUtc() ? FLAG_UTC : 0)));
+    buffer = putString(buffer, event.getTzid());
+    buffer = putString(buffer, event.getLocation());
+    buffer = putString(buffer, event.getSummary());
+    buffer = putString(buffer, event.getRrule() == null ? null : event.getRrule().toString());
+    buffer = putString(buffer, event.getOrganizer());
+    buffer = ensure(buffer, 4);
+    buffer.putInt(event.getAttendees().size());
+    for (String attendee : event.getAttendees()) {
+      buffer = putString(buffer, attendee);
+    }
+    buffer = ensure(buffer, 8);
+    buffer.putInt(event.getSequence());
+    buffer.putInt(event.getAlarms().size());
+    for (Alarm alarm : event.getAlarms()) {
+      buffer = putString(buffer, alarm.getAction());
+      buffer = ensure(buffer, 8 + 1 + 8 + 4 + 8);
+      buffer.putLong(alarm.getOffset());
+      buffer.put((byte) (alarm.isRelatedToEnd() ? 1 : 0));
+      buffer.putLong(alarm.getAbsolute());
+      buffer.putInt(alarm.getRepeat());
+      buffer.putLong(alarm.getInterval());
+      buffer = putString(buffer, alarm.getDescription());
+    }
+    for (Alarm alarm : event.getAlarms()) {
+      buffer = putString(buffer, alarm.getSummary());
+      buffer = putStrings(buffer, alarm.getAttendees());
+      buffer = putStrings(buffer, alarm.getAttachments());
+    }
+    return buffer;
+  }
+
+  /** Decodes an event from the position of {@code in} to its limit. */
+  static Event decode(ByteBuffer in) {
+    Event.Builder b = Event.builder();
+    b.uid(getString(in));
+    b.dtstamp(in.getLong());
+    b.dtstart(in.getLong());
+    b.dtend(in.getLong());
+    int classification = in.get();
+    if (classification >= 0) {
+      b.classification(Classification.values()[classification]);
+    }
+    b.priority(in.get());
+    int flags = in.get();
+    b.dateOnly((flags & FLAG_DATE_ONLY) != 0);
+    b.utc((flags & FLAG_UTC) != 0);
+    b.tzid(getString(in));
+    b.location(getString(in));
+    b.summary(getString(in));
+    String rrule = getString(in);
+    if (rrule != null) {
+      b.rrule(Recurrence.parse(rrule));
+    }
+    b.organizer(getString(in));
+    for (int i = in.getInt(); i > 0; i--) {
+      b.attendee(getString(in));
+    }
+    if (in.remaining() >= 4) {
+      b.sequence(in.getInt());
+    }
+    Alarm[] alarms = new Alarm[in.remaining() >= 4 ? in.getInt() : 0];
+    for (int i = 0; i < alarms.length; i++) {
+      String action = getString(in);
+      long offset = in.getLong();
+      boolean relatedToEnd = in.get() != 0;
+      long absolute = in.getLong();
+      Alarm alarm = absolute != DateTimes.INVALID ? Alarm.absolute(action, absolute)
+          : Alarm.relative(action, offset, relatedToEnd);
+      alarms[i] = alarm.repeat(in.getInt(), in.getLong()).description(getString(in));
+    }
+    for (Alarm alarm : alarms) {
+      if (in.hasRemaining()) {
+        alarm = alarm.summary(getString(in)).attendees(getStrings(in)).attachments(getStrings(in));
+      }
+      b.alarm(alarm);
+    }
+    return b.build();
+  }
+
+  /**
+   * The SHA-256 of what {@code event} says, i.e. everything but DTSTAMP and SEQUENCE, which change
+   * between copies of the same event. {@code buffer} is scratch space for the encoding.
+   */
+  static byte[] contentDigest(Event event, MessageDigest sha, ByteBuffer buffer) {
+    Event content = event.toBuilder().dtstamp(DateTimes.INVALID).sequence(0).build();
+    buffer.clear();
+    buffer = encode(content, buffer);
+    sha.reset();
+    sha.update(buffer.array(), 0, buffer.position());
+    return sha.digest();
+  }
+
+  static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static ByteBuffer putString(ByteBuffer buffer, String value) {
+    if (value == null) {
+      buffer = ensure(buffer, 4);
+      buffer.putInt(-1);
+      return buffer;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    buffer = ensure(buffer, 4 + bytes.length);
+    buffer.putInt(bytes.length).put(bytes);
+    return buffer;
+  }
+
+  static String getString(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    String value = new String(in.array(), in.arrayOffset() + in.position(), length,
+        StandardCharsets.UTF_8);
+    in.position(in.position() + length);
+    return value;
+  }
+
+  // a count and that many strings
+  private static ByteBuffer putStrings(ByteBuffer buffer, List<String> values) {
+    buffer = ensure(buffer, 4);
+    buffer.putInt(values.size());
+    for (String value : values) {
+      buffer = putString(buffer, value);
+    }
+    return buffer;
+  }
+
+  private static List<String> getStrings(ByteBuffer in) {
+    int count = in.getInt();
+    List<String> values = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      values.add(getString(in));
+    }
+    return values;
+  }
+
+  /** {@code buffer}, or a copy with room for {@code more} bytes after its position. */
+  static ByteBuffer ensure(ByteBuffer buffer, int more) {
+    if (buffer.remaining() >= more) {
+      return buffer;
+    }
+    ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + more));
+    buffer.flip();
+    return bigger.put(buffer);
+  }
+}
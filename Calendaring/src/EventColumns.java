@@ -0,0 +1,553 @@
+package calendaring;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Events held column by column off the heap, for questions about many of them at once: how many
+ * CONFIDENTIAL events each location has per month, or how priorities are spread over a quarter.
+ *
+ * Every column is a primitive array in direct memory: DTSTART and DTEND as packed
+ * yyyyMMddHHmmss longs, PRIORITY (0-9) and CLASS (0 for none, else the ordinal plus one) as
+ * bytes, and LOCATION and SUMMARY as ints numbering their distinct values, each of which is kept
+ * once in a dictionary on the heap (0 is no value). Rows go into chunks of 2^20, 26 MB each, so
+ * the heap holds a handful of objects per million events and the collector has nothing to trace
+ * however many are loaded; -XX:MaxDirectMemorySize, by default the heap limit, bounds how many
+ * fit.
+ *
+ * {@link #count} filters and groups in one pass over each chunk, 1024 rows at a time and a column
+ * at a time: each condition of the filter is a loop without branches over its own column that
+ * narrows the list of rows kept, then each grouping column folds its key into the group numbers
+ * of those rows, then the groups are counted. Every loop is a straight walk over primitives with
+ * nothing the JIT has to leave inside it, and columns nobody asked about are not read. A chunk
+ * knows the range of its DTSTARTs, so a time range skips chunks wholly outside it and need not
+ * check the rows of those wholly inside. Chunks are scanned in parallel and their counts added
+ * up.
+ *
+ * Each event counts once, at its first DTSTART; recurrences are not expanded. Events without a
+ * DTSTART are left out. Times are compared as the event has them, local or UTC, so its month is
+ * the month on its own calendar. --location keeps the events whose LOCATION contains TEXT,
+ * ignoring case, as --query does.
+ *
+ * Not thread safe while events are being added.
+ *
+ * Usage: --stats (calendar.ics|DIR)... [--by month|location|summary|class|priority[,...]]
+ *   [--class CLASS] [--priority N[-M]] [--location TEXT] [--from TIME] [--to TIME], where DIR is
+ *   an event store and TIME is YYYYMMDD or YYYYMMDDTHHMMSS.
+ */
+final class EventColumns {
+
+  /** What events can be grouped by. */
+  enum Dimension {
+    MONTH, LOCATION, SUMMARY, CLASS, PRIORITY
+  }
+
+  private static final int CHUNK = 1 << 20;
+  // bytes per row over all the columns
+  private static final int ROW = 8 + 8 + 4 + 4 + 1 + 1;
+  private static final int BATCH = 1024;
+  // more groups than this is a table, not a summary
+  private static final int MAX_GROUPS = 1 << 24;
+  private static final long MONTH_DIVISOR = 100000000L;
+
+  private final List<Chunk> chunks = new ArrayList<Chunk>();
+  private final Map<String, Integer> locationCodes = new HashMap<String, Integer>();
+  private final List<String> locations = new ArrayList<String>();
+  private final Map<String, Integer> summaryCodes = new HashMap<String, Integer>();
+  private final List<String> summaries = new ArrayList<String>();
+  private long size;
+  // months as year * 12 + month - 1
+  private int minMonth = Integer.MAX_VALUE;
+  private int maxMonth = Integer.MIN_VALUE;
+
+  /** 2^20 rows of every column, in one block of direct memory. */
+  private static final class Chunk {
+    final LongBuffer starts;
+    final LongBuffer ends;
+    final IntBuffer locations;
+    final IntBuffer summaries;
+    final ByteBuffer priorities;
+    final ByteBuffer classes;
+    int size;
+    long minStart = Long.MAX_VALUE;
+    long maxStart = Long.MIN_VALUE;
+
+    Chunk() {
+      ByteBuffer memory = ByteBuffer.allocateDirect(ROW * CHUNK);
+      starts = column(memory, 0, 8).asLongBuffer();
+      ends = column(memory, 8, 8).asLongBuffer();
+      locations = column(memory, 16, 4).asIntBuffer();
+      summaries = column(memory, 20, 4).asIntBuffer();
+      priorities = column(memory, 24, 1);
+      classes = column(memory, 25, 1);
+    }
+
+    // the column of width bytes a row starting at offset bytes a row into the block
+    private static ByteBuffer column(ByteBuffer memory, int offset, int width) {
+      ByteBuffer view = memory.duplicate();
+      view.position(offset * CHUNK).limit((offset + width) * CHUNK);
+      return view.slice().order(ByteOrder.nativeOrder());
+    }
+  }
+
+  /** What one call of {@link #count} looks for, with filter values turned into column values. */
+  private static final class Scan {
+    long from;
+    long to;
+    int classification;
+    int minPriority;
+    int maxPriority;
+    // the location codes kept, or null for all
+    BitSet locations;
+    Dimension[] by;
+    int[] cardinalities;
+    int groups;
+  }
+
+  EventColumns() {
+    locations.add(null);
+    summaries.add(null);
+  }
+
+  static int run(String[] args) {
+    List<Path> sources = new ArrayList<Path>();
+    List<Dimension> by = new ArrayList<Dimension>();
+    EventIndex.Filter filter = new EventIndex.Filter();
+    long from = Long.MIN_VALUE;
+    long to = Long.MAX_VALUE;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--by") && i + 1 < args.length) {
+        for (String name : args[++i].split(",")) {
+          try {
+            by.add(Dimension.valueOf(name.toUpperCase(Locale.ROOT)));
+          }
+          catch (IllegalArgumentException e) {
+            return usage();
+          }
+        }
+      }
+      else if (args[i].equals("--class") && i + 1 < args.length) {
+        filter.classification = Classification.parse(args[++i].toUpperCase(Locale.ROOT));
+        if (filter.classification == null) {
+          return usage();
+        }
+      }
+      else if (args[i].equals("--priority") && i + 1 < args.length) {
+        String[] range = args[++i].split("-", 2);
+        try {
+          filter.minPriority = Integer.parseInt(range[0]);
+          filter.maxPriority = range.length == 2 ? Integer.parseInt(range[1]) : filter.minPriority;
+        }
+        catch (NumberFormatException e) {
+          return usage();
+        }
+        if (!CalendarDriver.isValidPriority(filter.minPriority)
+            || !CalendarDriver.isValidPriority(filter.maxPriority)) {
+          return usage();
+        }
+      }
+      else if (args[i].equals("--location") && i + 1 < args.length) {
+        filter.location = args[++i];
+      }
+      else if (args[i].equals("--from") && i + 1 < args.length) {
+        from = FreeBusy.utcArgument(args[++i]);
+        if (from == DateTimes.INVALID) {
+          return usage();
+        }
+      }
+      else if (args[i].equals("--to") && i + 1 < args.length) {
+        to = FreeBusy.utcArgument(args[++i]);
+        if (to == DateTimes.INVALID) {
+          return usage();
+        }
+      }
+      else {
+        sources.add(Paths.get(args[i]));
+      }
+    }
+    if (sources.isEmpty() || to <= from) {
+      return usage();
+    }
+
+    EventColumns columns = new EventColumns();
+    try {
+      long started = System.nanoTime();
+      for (Path source : sources) {
+        columns.load(source);
+      }
+      long loaded = System.nanoTime();
+      Dimension[] dimensions = by.toArray(new Dimension[0]);
+      long[] counts = columns.count(filter, from, to, dimensions);
+      long counted = System.nanoTime();
+
+      StringBuilder line = new StringBuilder();
+      for (Dimension dimension : dimensions) {
+        line.append(dimension.name().toLowerCase(Locale.ROOT)).append('\t');
+      }
+      System.out.println(line.append("events"));
+      long total = 0;
+      for (int group = 0; group < counts.length; group++) {
+        if (counts[group] == 0 && dimensions.length > 0) {
+          continue;
+        }
+        line.setLength(0);
+        int rest = group;
+        String[] keys = new String[dimensions.length];
+        for (int d = dimensions.length - 1; d >= 0; d--) {
+          int cardinality = columns.cardinality(dimensions[d]);
+          keys[d] = columns.label(dimensions[d], rest % cardinality);
+          rest /= cardinality;
+        }
+        for (String key : keys) {
+          line.append(key).append('\t');
+        }
+        System.out.println(line.append(counts[group]));
+        total += counts[group];
+      }
+      System.out.flush();
+      System.err.println("Counted " + total + " of " + columns.size() + " events from "
+          + sources.size() + " calendars: loaded in " + (loaded - started) / 1000000
+          + " ms, counted in " + (counted - loaded) / 1000000 + " ms.");
+      return 0;
+    }
+    catch (IOException e) {
+      System.err.println("Could not load events: " + e.getMessage());
+      return 1;
+    }
+    catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      return 1;
+    }
+    catch (OutOfMemoryError e) {
+      System.err.println("Out of memory after " + columns.size() + " events: " + e.getMessage()
+          + "; raise -XX:MaxDirectMemorySize");
+      return 1;
+    }
+  }
+
+  private static int usage() {
+    System.err.println("Usage: --stats (calendar.ics|DIR)..."
+        + " [--by month|location|summary|class|priority[,...]] [--class CLASS]"
+        + " [--priority N[-M]] [--location TEXT] [--from TIME] [--to TIME]");
+    return 2;
+  }
+
+  //=========================================
+  // loading
+  //=========================================
+
+  /** Adds the events of a calendar, or of an event store if {@code source} is a directory. */
+  void load(Path source) throws IOException {
+    if (Files.isDirectory(source)) {
+      try (EventStore store = EventStore.open(source)) {
+        store.forEach(this::add);
+      }
+      return;
+    }
+    try (IcsParser parser = new IcsParser(source)) {
+      while (parser.next() != null) {
+        Event event = parser.event();
+        if (event != null) {
+          add(event);
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new IOException("Could not read " + source + ": " + e.getMessage(), e);
+    }
+  }
+
+  /** Adds one event. Returns false, adding nothing, if it has no DTSTART. */
+  boolean add(Event event) {
+    if (event.getDtstart() == DateTimes.INVALID) {
+      return false;
+    }
+    Classification classification = event.getClassification();
+    int priority = CalendarDriver.isValidPriority(event.getPriority()) ? event.getPriority() : 0;
+    append(event.getDtstart(), event.getDtend(), priority,
+        classification == null ? 0 : classification.ordinal() + 1,
+        code(locationCodes, locations, event.getLocation()),
+        code(summaryCodes, summaries, event.getSummary()));
+    return true;
+  }
+
+  // one row, its text already numbered
+  void append(long dtstart, long dtend, int priority, int classification, int location,
+      int summary) {
+    Chunk chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+    if (chunk == null || chunk.size == CHUNK) {
+      chunk = new Chunk();
+      chunks.add(chunk);
+    }
+    int row = chunk.size++;
+    chunk.starts.put(row, dtstart);
+    chunk.ends.put(row, dtend);
+    chunk.priorities.put(row, (byte) priority);
+    chunk.classes.put(row, (byte) classification);
+    chunk.locations.put(row, location);
+    chunk.summaries.put(row, summary);
+    chunk.minStart = Math.min(chunk.minStart, dtstart);
+    chunk.maxStart = Math.max(chunk.maxStart, dtstart);
+    int month = month(dtstart);
+    minMonth = Math.min(minMonth, month);
+    maxMonth = Math.max(maxMonth, month);
+    size++;
+  }
+
+  // the number of a value, given it if it is new
+  private static int code(Map<String, Integer> codes, List<String> values, String value) {
+    if (value == null) {
+      return 0;
+    }
+    Integer code = codes.get(value);
+    if (code == null) {
+      code = values.size();
+      codes.put(value, code);
+      values.add(value);
+    }
+    return code;
+  }
+
+  /** The number of the LOCATION {@code value}, giving it one if it has none yet. */
+  int locationCode(String value) {
+    return code(locationCodes, locations, value);
+  }
+
+  /** The number of the SUMMARY {@code value}, giving it one if it has none yet. */
+  int summaryCode(String value) {
+    return code(summaryCodes, summaries, value);
+  }
+
+  /** How many events are loaded. */
+  long size() {
+    return size;
+  }
+
+  private static int month(long dateTime) {
+    int yearMonth = (int) (dateTime / MONTH_DIVISOR);
+    return yearMonth / 100 * 12 + yearMonth % 100 - 1;
+  }
+
+  //=========================================
+  // counting
+  //=========================================
+
+  /** How many keys {@code dimension} has; they run from 0 to one less. */
+  int cardinality(Dimension dimension) {
+    switch (dimension) {
+      case MONTH:
+        return size == 0 ? 1 : maxMonth - minMonth + 1;
+      case LOCATION:
+        return locations.size();
+      case SUMMARY:
+        return summaries.size();
+      case CLASS:
+        return Classification.values().length + 1;
+      default:
+        return 10;
+    }
+  }
+
+  /** What a key of {@code dimension} stands for: YYYY-MM, a value, or "-" for none. */
+  String label(Dimension dimension, int key) {
+    switch (dimension) {
+      case MONTH:
+        int month = minMonth + key;
+        return String.format("%04d-%02d", month / 12, month % 12 + 1);
+      case LOCATION:
+        return key == 0 ? "-" : locations.get(key);
+      case SUMMARY:
+        return key == 0 ? "-" : summaries.get(key);
+      case CLASS:
+        return key == 0 ? "-" : Classification.values()[key - 1].name();
+      default:
+        return Integer.toString(key);
+    }
+  }
+
+  /**
+   * Counts the events {@code filter} keeps whose DTSTART is from {@code from} up to but not
+   * including {@code to} (packed, compared as the events have them), in the groups {@code by}
+   * makes. The counts are indexed by the keys of the dimensions together, the last varying
+   * fastest: with {@code by} MONTH, CLASS, month m and class c are at m * cardinality(CLASS) + c.
+   * With no dimensions there is one count.
+   *
+   * @throws IllegalArgumentException if the dimensions together make too many groups
+   */
+  long[] count(EventIndex.Filter filter, long from, long to, Dimension... by) {
+    Scan scan = new Scan();
+    scan.from = from;
+    scan.to = to;
+    scan.classification = filter.classification == null ? -1 : filter.classification.ordinal() + 1;
+    scan.minPriority = filter.minPriority < 0 ? 0 : filter.minPriority;
+    scan.maxPriority = filter.maxPriority < 0 ? 9 : filter.maxPriority;
+    scan.locations = filter.location == null ? null : matching(filter.location);
+    scan.by = by;
+    scan.cardinalities = new int[by.length];
+    long groups = 1;
+    for (int d = 0; d < by.length; d++) {
+      scan.cardinalities[d] = cardinality(by[d]);
+      groups *= scan.cardinalities[d];
+      if (groups > MAX_GROUPS) {
+        throw new IllegalArgumentException("Grouping by " + List.of(by) + " makes more than "
+            + MAX_GROUPS + " groups");
+      }
+    }
+    scan.groups = (int) groups;
+    return chunks.parallelStream()
+        .map(chunk -> scan(chunk, scan))
+        .reduce(EventColumns::sum)
+        .orElseGet(() -> new long[scan.groups]);
+  }
+
+  // the codes of the LOCATION values containing text, ignoring case, as EventIndex matches them
+  private BitSet matching(String text) {
+    String lower = text.toLowerCase(Locale.ROOT);
+    BitSet codes = new BitSet(locations.size());
+    // 0 is no LOCATION
+    for (int i = 1; i < locations.size(); i++) {
+      if (locations.get(i).toLowerCase(Locale.ROOT).contains(lower)) {
+        codes.set(i);
+      }
+    }
+    return codes;
+  }
+
+  private static long[] sum(long[] a, long[] b) {
+    for (int i = 0; i < a.length; i++) {
+      a[i] += b[i];
+    }
+    return a;
+  }
+
+  private long[] scan(Chunk chunk, Scan scan) {
+    long[] counts = new long[scan.groups];
+    // a chunk whose starts are all outside the range has nothing to count, and one whose starts
+    // are all inside need not look at them
+    if (chunk.size == 0 || chunk.maxStart < scan.from || chunk.minStart >= scan.to) {
+      return counts;
+    }
+    boolean byStart = chunk.minStart < scan.from || chunk.maxStart >= scan.to;
+    int[] rows = new int[BATCH];
+    int[] groups = new int[BATCH];
+    for (int first = 0; first < chunk.size; first += BATCH) {
+      int n = Math.min(BATCH, chunk.size - first);
+      for (int i = 0; i < n; i++) {
+        rows[i] = first + i;
+      }
+      if (byStart) {
+        n = selectStarts(chunk.starts, scan.from, scan.to, rows, n);
+      }
+      if (scan.classification >= 0) {
+        n = selectBytes(chunk.classes, scan.classification, scan.classification, rows, n);
+      }
+      if (scan.minPriority > 0 || scan.maxPriority < 9) {
+        n = selectBytes(chunk.priorities, scan.minPriority, scan.maxPriority, rows, n);
+      }
+      if (scan.locations != null) {
+        n = selectInts(chunk.locations, scan.locations, rows, n);
+      }
+      if (scan.by.length == 0) {
+        counts[0] += n;
+        continue;
+      }
+      for (int i = 0; i < n; i++) {
+        groups[i] = 0;
+      }
+      for (int d = 0; d < scan.by.length; d++) {
+        group(chunk, scan.by[d], scan.cardinalities[d], rows, groups, n);
+      }
+      for (int i = 0; i < n; i++) {
+        counts[groups[i]]++;
+      }
+    }
+    return counts;
+  }
+
+  // Each select narrows the first n of rows to those whose value in one column is in range and
+  // returns how many are left. Every row is written back and the count moves on only for those
+  // kept, so there is no branch to mispredict.
+
+  private static int selectStarts(LongBuffer column, long from, long to, int[] rows, int n) {
+    int kept = 0;
+    for (int i = 0; i < n; i++) {
+      int row = rows[i];
+      long value = column.get(row);
+      rows[kept] = row;
+      kept += (value >= from) & (value < to) ? 1 : 0;
+    }
+    return kept;
+  }
+
+  private static int selectBytes(ByteBuffer column, int min, int max, int[] rows, int n) {
+    int kept = 0;
+    for (int i = 0; i < n; i++) {
+      int row = rows[i];
+      int value = column.get(row);
+      rows[kept] = row;
+      kept += (value >= min) & (value <= max) ? 1 : 0;
+    }
+    return kept;
+  }
+
+  private static int selectInts(IntBuffer column, BitSet wanted, int[] rows, int n) {
+    int kept = 0;
+    for (int i = 0; i < n; i++) {
+      int row = rows[i];
+      int value = column.get(row);
+      rows[kept] = row;
+      kept += wanted.get(value) ? 1 : 0;
+    }
+    return kept;
+  }
+
+  // folds the key of each selected row in one dimension into its group number
+  private void group(Chunk chunk, Dimension dimension, int cardinality, int[] rows, int[] groups,
+      int n) {
+    switch (dimension) {
+      case MONTH:
+        LongBuffer starts = chunk.starts;
+        int minMonth = this.minMonth;
+        for (int i = 0; i < n; i++) {
+          groups[i] = groups[i] * cardinality + month(starts.get(rows[i])) - minMonth;
+        }
+        break;
+      case LOCATION:
+        IntBuffer locations = chunk.locations;
+        for (int i = 0; i < n; i++) {
+          groups[i] = groups[i] * cardinality + locations.get(rows[i]);
+        }
+        break;
+      case SUMMARY:
+        IntBuffer summaries = chunk.summaries;
+        for (int i = 0; i < n; i++) {
+          groups[i] = groups[i] * cardinality + summaries.get(rows[i]);
+        }
+        break;
+      case CLASS:
+        ByteBuffer classes = chunk.classes;
+        for (int i = 0; i < n; i++) {
+          groups[i] = groups[i] * cardinality + classes.get(rows[i]);
+        }
+        break;
+      default:
+        ByteBuffer priorities = chunk.priorities;
+        for (int i = 0; i < n; i++) {
+          groups[i] = groups[i] * cardinality + priorities.get(rows[i]);
+        }
+        break;
+    }
+  }
+}
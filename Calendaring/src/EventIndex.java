@@ -0,0 +1,590 @@
+package calendaring;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Answers "which events take up time between these two instants" for an .ics file without
+ * reading it, from an index kept next to it as FILE.idx.
+ *
+ * The index holds one row per one-off event, sorted by DTSTART in UTC epoch seconds, with the
+ * event's duration, where its VEVENT is in the file, and its CLASS, PRIORITY, LOCATION and TZID,
+ * the last two as numbers into a table of the distinct values. Every column is a primitive array
+ * in the file, which is memory-mapped, so opening the index costs the same however many events it
+ * has, and a query is a binary search for the first start that could matter (the window's start
+ * less the longest duration) and a walk over the rows up to the window's end. Recurring events
+ * cannot be placed by their first start, so they are kept apart, whole, and expanded with
+ * {@link Spans} on every query; calendars usually have few.
+ *
+ * Matching events are copied from the file byte for byte, so properties the event model does not
+ * know about come along too.
+ *
+ * The index records the size and modification time of the file it was built from and is rebuilt
+ * when they no longer match.
+ *
+ * Usage: --query calendar.ics FROM TO [--class CLASS] [--priority N[-M]] [--location TEXT]
+ *   [--out query.ics], where FROM and TO are UTC as YYYYMMDD or YYYYMMDDTHHMMSS.
+ */
+final class EventIndex implements Closeable {
+
+  private static final long MAGIC = 0x4341_4C49_4458_0001L;
+  private static final int HEADER = 64;
+  // bytes per row over all the columns
+  private static final int ROW = 8 + 8 + 4 + 4 + 4 + 4 + 1 + 1;
+  private static final int DAY = 86400;
+  // most bytes of the calendar read at once
+  private static final int MAX_READ = 1 << 20;
+
+  private final FileChannel file;
+  private final int count;
+  private final long maxDuration;
+  private final LongBuffer starts;
+  private final LongBuffer offsets;
+  private final IntBuffer lengths;
+  private final IntBuffer durations;
+  private final IntBuffer locations;
+  private final IntBuffer zones;
+  private final ByteBuffer classes;
+  private final ByteBuffer priorities;
+  // LOCATION and TZID values by number
+  private final String[] strings;
+  private final List<Recurring> recurring;
+
+  /** A recurring event and where its VEVENT is in the file. */
+  private static final class Recurring {
+    final Event event;
+    final long offset;
+    final int length;
+
+    Recurring(Event event, long offset, int length) {
+      this.event = event;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /** What else a matching event has to have; null or -1 fields match anything. */
+  static final class Filter {
+    Classification classification;
+    int minPriority = -1;
+    int maxPriority = -1;
+    String location;
+  }
+
+  private EventIndex(FileChannel file, ByteBuffer map) {
+    this.file = file;
+    this.count = (int) map.getLong(24);
+    this.maxDuration = map.getLong(32);
+    int n = count;
+    starts = column(map, HEADER, 8 * n).asLongBuffer();
+    offsets = column(map, HEADER + 8L * n, 8 * n).asLongBuffer();
+    lengths = column(map, HEADER + 16L * n, 4 * n).asIntBuffer();
+    durations = column(map, HEADER + 20L * n, 4 * n).asIntBuffer();
+    locations = column(map, HEADER + 24L * n, 4 * n).asIntBuffer();
+    zones = column(map, HEADER + 28L * n, 4 * n).asIntBuffer();
+    classes = column(map, HEADER + 32L * n, n);
+    priorities = column(map, HEADER + 33L * n, n);
+
+    // the tables are small enough to read onto the heap
+    ByteBuffer tail = ByteBuffer.wrap(copy(column(map, HEADER + (long) ROW * n,
+        map.capacity() - HEADER - ROW * n)));
+    strings = new String[tail.getInt()];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = EventCodec.getString(tail);
+    }
+    recurring = new ArrayList<Recurring>();
+    for (int i = tail.getInt(); i > 0; i--) {
+      long offset = tail.getLong();
+      int length = tail.getInt();
+      int bodyLength = tail.getInt();
+      ByteBuffer body = tail.duplicate();
+      body.limit(body.position() + bodyLength);
+      tail.position(tail.position() + bodyLength);
+      recurring.add(new Recurring(EventCodec.decode(body.slice()), offset, length));
+    }
+  }
+
+  private static ByteBuffer column(ByteBuffer map, long at, int length) {
+    ByteBuffer view = map.duplicate();
+    view.position((int) at).limit((int) at + length);
+    return view.slice();
+  }
+
+  private static byte[] copy(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  static int run(String[] args) {
+    Path calendar = null;
+    long from = DateTimes.INVALID;
+    long to = DateTimes.INVALID;
+    String out = "query.ics";
+    Filter filter = new Filter();
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--out") && i + 1 < args.length) {
+        out = args[++i];
+      }
+      else if (args[i].equals("--class") && i + 1 < args.length) {
+        filter.classification = Classification.parse(args[++i].toUpperCase(Locale.ROOT));
+        if (filter.classification == null) {
+          return usage();
+        }
+      }
+      else if (args[i].equals("--priority") && i + 1 < args.length) {
+        String[] range = args[++i].split("-", 2);
+        try {
+          filter.minPriority = Integer.parseInt(range[0]);
+          filter.maxPriority = range.length == 2 ? Integer.parseInt(range[1]) : filter.minPriority;
+        }
+        catch (NumberFormatException e) {
+          return usage();
+        }
+        if (!CalendarDriver.isValidPriority(filter.minPriority)
+            || !CalendarDriver.isValidPriority(filter.maxPriority)) {
+          return usage();
+        }
+      }
+      else if (args[i].equals("--location") && i + 1 < args.length) {
+        filter.location = args[++i];
+      }
+      else if (calendar == null) {
+        calendar = Paths.get(args[i]);
+      }
+      else if (from == DateTimes.INVALID) {
+        from = FreeBusy.utcArgument(args[i]);
+        if (from == DateTimes.INVALID) {
+          return usage();
+        }
+      }
+      else if (to == DateTimes.INVALID) {
+        to = FreeBusy.utcArgument(args[i]);
+        if (to == DateTimes.INVALID) {
+          return usage();
+        }
+      }
+      else {
+        return usage();
+      }
+    }
+    if (to <= from) {
+      return usage();
+    }
+
+    try {
+      long started = System.nanoTime();
+      try (EventIndex index = open(calendar)) {
+        long opened = System.nanoTime();
+        int matched;
+        try (IcsWriter writer = new IcsWriter(AsyncFileOutput.create(Paths.get(out),
+            AsyncFileOutput.NEVER))) {
+          writer.beginCalendar();
+          matched = index.query(DateTimes.toEpochSecond(from), DateTimes.toEpochSecond(to), filter,
+              writer);
+          writer.endCalendar();
+        }
+        System.err.println("Wrote " + matched + " of " + index.size() + " events to " + out
+            + " (index opened in " + (opened - started) / 1000 + " us, query and copy took "
+            + (System.nanoTime() - opened) / 1000 + " us).");
+        return 0;
+      }
+    }
+    catch (IOException e) {
+      System.err.println("Could not query " + calendar + ": " + e.getMessage());
+      return 1;
+    }
+  }
+
+  private static int usage() {
+    System.err.println("Usage: --query calendar.ics FROM TO [--class CLASS] [--priority N[-M]]"
+        + " [--location TEXT] [--out query.ics]");
+    return 2;
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /** Number of events indexed, recurring ones included. */
+  int size() {
+    return count + recurring.size();
+  }
+
+  //=========================================
+  // queries
+  //=========================================
+
+  /**
+   * Copies every event of the calendar that passes {@code filter} and takes up time in
+   * [from, to) (epoch seconds) to {@code writer}, ordered by start with the recurring events
+   * last, and notes the time zones they use. An event without a DTEND matches if it starts in the
+   * window. Returns how many there were.
+   */
+  int query(long from, long to, Filter filter, IcsWriter writer) throws IOException {
+    BitSet places = filter.location == null ? null : matching(filter.location);
+    int matched = 0;
+    Copier copier = new Copier(writer);
+    for (int row = firstStart(from - maxDuration); row < count; row++) {
+      long start = starts.get(row);
+      if (start >= to) {
+        break;
+      }
+      int duration = durations.get(row);
+      if (!(duration == 0 ? start >= from : start + duration > from)
+          || !matches(filter, places, classes.get(row), priorities.get(row), locations.get(row))) {
+        continue;
+      }
+      copier.add(offsets.get(row), lengths.get(row));
+      int zone = zones.get(row);
+      if (zone >= 0) {
+        // the local dates are within a day of the UTC ones
+        writer.useZone(strings[zone], DateTimes.fromEpochSecond(start - DAY),
+            DateTimes.fromEpochSecond(start + duration + DAY));
+      }
+      matched++;
+    }
+    for (Recurring r : recurring) {
+      Event event = r.event;
+      if (!matches(filter, places, classOf(event), event.getPriority(), -1, event.getLocation())) {
+        continue;
+      }
+      boolean[] inside = {false};
+      Spans.of(event, from, to, (start, end) -> {
+        inside[0] = true;
+        return false;
+      });
+      if (inside[0]) {
+        copier.add(r.offset, r.length);
+        writer.useZones(event);
+        matched++;
+      }
+    }
+    copier.flush();
+    return matched;
+  }
+
+  // the first row starting at or after start
+  private int firstStart(long start) {
+    int lo = 0;
+    int hi = count;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (starts.get(mid) < start) {
+        lo = mid + 1;
+      }
+      else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  // the numbers of the LOCATION values containing text, ignoring case
+  private BitSet matching(String text) {
+    String lower = text.toLowerCase(Locale.ROOT);
+    BitSet ids = new BitSet(strings.length);
+    for (int i = 0; i < strings.length; i++) {
+      if (strings[i].toLowerCase(Locale.ROOT).contains(lower)) {
+        ids.set(i);
+      }
+    }
+    return ids;
+  }
+
+  private static boolean matches(Filter filter, BitSet places, int classification, int priority,
+      int location) {
+    return matches(filter, places, classification, priority, location, null);
+  }
+
+  // a row has its location as a number; a recurring event has it as text
+  private static boolean matches(Filter filter, BitSet places, int classification, int priority,
+      int location, String locationText) {
+    if (filter.classification != null && filter.classification.ordinal() != classification) {
+      return false;
+    }
+    if (filter.minPriority >= 0 && (priority < filter.minPriority || priority > filter.maxPriority)) {
+      return false;
+    }
+    if (places == null) {
+      return true;
+    }
+    if (locationText != null) {
+      return locationText.toLowerCase(Locale.ROOT).contains(filter.location.toLowerCase(Locale.ROOT));
+    }
+    return location >= 0 && places.get(location);
+  }
+
+  private static int classOf(Event event) {
+    return event.getClassification() == null ? -1 : event.getClassification().ordinal();
+  }
+
+  /**
+   * Copies VEVENTs from the calendar to a writer. Events next to each other in the file, as
+   * events close in time usually are, are read together.
+   */
+  private final class Copier {
+    private final IcsWriter writer;
+    private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    private long pendingOffset;
+    private int pendingLength;
+
+    Copier(IcsWriter writer) {
+      this.writer = writer;
+    }
+
+    void add(long offset, int length) throws IOException {
+      if (pendingLength > 0
+          && (offset != pendingOffset + pendingLength || pendingLength + length > MAX_READ)) {
+        flush();
+      }
+      if (pendingLength == 0) {
+        pendingOffset = offset;
+      }
+      pendingLength += length;
+    }
+
+    void flush() throws IOException {
+      if (pendingLength == 0) {
+        return;
+      }
+      if (buffer.capacity() < pendingLength) {
+        buffer = ByteBuffer.allocate(pendingLength);
+      }
+      buffer.clear().limit(pendingLength);
+      while (buffer.hasRemaining()) {
+        if (file.read(buffer, pendingOffset + buffer.position()) < 0) {
+          throw new IOException("the calendar changed while it was being read");
+        }
+      }
+      writer.raw(buffer.array(), pendingLength);
+      pendingLength = 0;
+    }
+  }
+
+  //=========================================
+  // building
+  //=========================================
+
+  /** The index of {@code calendar}, built first if it is missing or out of date. */
+  static EventIndex open(Path calendar) throws IOException {
+    Path file = calendar.resolveSibling(calendar.getFileName() + ".idx");
+    BasicFileAttributes attributes = Files.readAttributes(calendar, BasicFileAttributes.class);
+    long size = attributes.size();
+    long modified = attributes.lastModifiedTime().toMillis();
+    MappedByteBuffer map = map(file);
+    if (map == null || map.getLong(0) != MAGIC || map.getLong(8) != size
+        || map.getLong(16) != modified) {
+      build(calendar, file, size, modified);
+      map = map(file);
+    }
+    return new EventIndex(FileChannel.open(calendar, StandardOpenOption.READ), map);
+  }
+
+  private static MappedByteBuffer map(Path file) throws IOException {
+    if (!Files.isRegularFile(file)) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER) {
+        return null;
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  private static void build(Path calendar, Path file, long size, long modified) throws IOException {
+    Rows rows = new Rows();
+    List<Recurring> recurring = new ArrayList<Recurring>();
+    Map<String, Integer> ids = new HashMap<String, Integer>();
+    List<String> strings = new ArrayList<String>();
+    long maxDuration = 0;
+    try (IcsParser parser = new IcsParser(calendar)) {
+      while (parser.next() != null) {
+        Event event = parser.event();
+        if (event == null || event.getDtstart() == DateTimes.INVALID) {
+          continue;
+        }
+        int length = (int) (parser.end() - parser.start());
+        if (event.getRrule() != null) {
+          recurring.add(new Recurring(event, parser.start(), length));
+          continue;
+        }
+        String zone = event.isUtc() ? null : event.getTzid();
+        long start = VTimezones.toEpochSecond(zone, event.getDtstart());
+        long duration = event.getDtend() == DateTimes.INVALID ? 0
+            : Math.max(0, DateTimes.toEpochSecond(event.getDtend())
+                - DateTimes.toEpochSecond(event.getDtstart()));
+        duration = Math.min(duration, Integer.MAX_VALUE);
+        maxDuration = Math.max(maxDuration, duration);
+        rows.add(start, parser.start(), length, (int) duration,
+            id(event.getLocation(), ids, strings), id(zone, ids, strings),
+            classOf(event), event.getPriority());
+      }
+    }
+    int[] order = rows.order();
+
+    // written beside the old index and moved over it, so a reader never sees half of one
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+      out.writeLong(MAGIC);
+      out.writeLong(size);
+      out.writeLong(modified);
+      out.writeLong(rows.count);
+      out.writeLong(maxDuration);
+      out.write(new byte[HEADER - 40]);
+      for (int i : order) {
+        out.writeLong(rows.starts[i]);
+      }
+      for (int i : order) {
+        out.writeLong(rows.offsets[i]);
+      }
+      for (int i : order) {
+        out.writeInt(rows.lengths[i]);
+      }
+      for (int i : order) {
+        out.writeInt(rows.durations[i]);
+      }
+      for (int i : order) {
+        out.writeInt(rows.locations[i]);
+      }
+      for (int i : order) {
+        out.writeInt(rows.zones[i]);
+      }
+      for (int i : order) {
+        out.writeByte(rows.classes[i]);
+      }
+      for (int i : order) {
+        out.writeByte(rows.priorities[i]);
+      }
+      out.writeInt(strings.size());
+      for (String s : strings) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      out.writeInt(recurring.size());
+      ByteBuffer buffer = ByteBuffer.allocate(1024);
+      for (Recurring r : recurring) {
+        out.writeLong(r.offset);
+        out.writeInt(r.length);
+        buffer.clear();
+        buffer = EventCodec.encode(r.event, buffer);
+        out.writeInt(buffer.position());
+        out.write(buffer.array(), 0, buffer.position());
+      }
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // the number of a LOCATION or TZID value; -1 for none
+  private static int id(String value, Map<String, Integer> ids, List<String> strings) {
+    if (value == null) {
+      return -1;
+    }
+    Integer id = ids.get(value);
+    if (id == null) {
+      id = strings.size();
+      ids.put(value, id);
+      strings.add(value);
+    }
+    return id;
+  }
+
+  /** The columns while building, in file order. */
+  private static final class Rows {
+    int count;
+    long[] starts = new long[1024];
+    long[] offsets = new long[1024];
+    int[] lengths = new int[1024];
+    int[] durations = new int[1024];
+    int[] locations = new int[1024];
+    int[] zones = new int[1024];
+    byte[] classes = new byte[1024];
+    byte[] priorities = new byte[1024];
+
+    void add(long start, long offset, int length, int duration, int location, int zone,
+        int classification, int priority) {
+      if (count == starts.length) {
+        int n = count * 2;
+        starts = Arrays.copyOf(starts, n);
+        offsets = Arrays.copyOf(offsets, n);
+        lengths = Arrays.copyOf(lengths, n);
+        durations = Arrays.copyOf(durations, n);
+        locations = Arrays.copyOf(locations, n);
+        zones = Arrays.copyOf(zones, n);
+        classes = Arrays.copyOf(classes, n);
+        priorities = Arrays.copyOf(priorities, n);
+      }
+      starts[count] = start;
+      offsets[count] = offset;
+      lengths[count] = length;
+      durations[count] = duration;
+      locations[count] = location;
+      zones[count] = zone;
+      classes[count] = (byte) classification;
+      priorities[count] = (byte) priority;
+      count++;
+    }
+
+    /** Row numbers by start, stable; files written in order cost one pass to check. */
+    int[] order() {
+      int[] order = new int[count];
+      boolean sorted = true;
+      for (int i = 0; i < count; i++) {
+        order[i] = i;
+        sorted &= i == 0 || starts[i - 1] <= starts[i];
+      }
+      if (!sorted) {
+        mergeSort(order, new int[count], 0, count);
+      }
+      return order;
+    }
+
+    private void mergeSort(int[] a, int[] tmp, int lo, int hi) {
+      if (hi - lo < 2) {
+        return;
+      }
+      int mid = (lo + hi) >>> 1;
+      mergeSort(a, tmp, lo, mid);
+      mergeSort(a, tmp, mid, hi);
+      if (starts[a[mid - 1]] <= starts[a[mid]]) {
+        return;
+      }
+      System.arraycopy(a, lo, tmp, lo, hi - lo);
+      int i = lo;
+      int j = mid;
+      for (int k = lo; k < hi; k++) {
+        if (j == hi || (i < mid && starts[tmp[i]] <= starts[tmp[j]])) {
+          a[k] = tmp[i++];
+        }
+        else {
+          a[k] = tmp[j++];
+        }
+      }
+    }
+  }
+}
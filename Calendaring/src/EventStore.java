@@ -0,0 +1,716 @@
+package calendaring;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A durable store of events keyed by UID: an append-only log of binary records plus a
+ * memory-mapped hash index from UID to the offset of the latest record.
+ *
+ * Every put or delete appends one record to events.log and never rewrites an old one. A record
+ * is its length, a CRC32 of its body, then the body: a type (put or delete), the offset of the
+ * previous record for the same UID (-1 if none), and for a put the event as {@link EventCodec}
+ * encodes it.
+ *
+ * events.idx is an open addressing table of 16-byte slots, each the 64-bit hash of a UID and the
+ * offset of its latest record, behind a 64-byte header. Opening a store maps the index and looks
+ * at nothing else, so it takes the same few milliseconds with 10 events or 10 million; the log
+ * is only read to fetch the records asked for. The header records how much of the log the index
+ * covers. Records appended after that (the process died before the header was updated) are
+ * replayed on open, a torn record at the end is cut off, and an index that is missing or ahead of
+ * the log is rebuilt from the log.
+ *
+ * Hash collisions are resolved by reading the record and comparing UIDs, so the hash only has to
+ * be good, not perfect. Deleted UIDs keep their slot, pointing at the delete record. When the
+ * table is 70% full it is rebuilt at twice the size into a new file that replaces the old one.
+ *
+ * The length of the log doubles as a sync token: {@link #version()} hands it out, and
+ * {@link #changesSince} follows each UID's chain of records back past it to tell a client what
+ * was added, modified or deleted since, without keeping snapshots.
+ *
+ * Writes go to the OS straight away; {@link #force()} makes them durable. A store is not safe
+ * for use by more than one thread or process at a time.
+ *
+ * Usage: --store DIR (import file.ics | export out.ics [--utc] | get UID | delete UID
+ *     | changes TOKEN delta.ics | stats)
+ */
+final class EventStore implements Closeable {
+
+  static final String LOG = "events.log";
+  static final String INDEX = "events.idx";
+
+  private static final long LOG_MAGIC = 0x43414C4C4F473031L;   // "CALLOG01"
+  private static final long INDEX_MAGIC = 0x43414C4944583031L; // "CALIDX01"
+  private static final int LOG_HEADER = 8;
+  private static final int INDEX_HEADER = 64;
+  private static final int SLOT = 16;
+  // record prefix: length and CRC
+  private static final int RECORD_HEADER = 8;
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final int MIN_CAPACITY = 1 << 10;
+  // one mapping of the index has to stay under 2 GB
+  private static final int MAX_CAPACITY = 1 << 26;
+
+  // index header fields
+  private static final int H_MAGIC = 0;
+  private static final int H_CAPACITY = 8;
+  private static final int H_USED = 16;
+  private static final int H_LIVE = 24;
+  private static final int H_LOG_LENGTH = 32;
+
+  private final Path dir;
+  private final FileChannel log;
+  private long logLength;
+
+  private FileChannel indexChannel;
+  private MappedByteBuffer index;
+  private int capacity;
+  private long used;
+  private long live;
+
+  // scratch for encoding and reading single records
+  private ByteBuffer buffer = ByteBuffer.allocate(4096);
+  private final CRC32 crc = new CRC32();
+
+  private EventStore(Path dir, FileChannel log) {
+    this.dir = dir;
+    this.log = log;
+  }
+
+  /** Opens the store in {@code dir}, creating the directory and an empty store if need be. */
+  static EventStore open(Path dir) throws IOException {
+    Files.createDirectories(dir);
+    FileChannel log = FileChannel.open(dir.resolve(LOG), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    EventStore store = new EventStore(dir, log);
+    try {
+      store.load();
+    }
+    catch (IOException | RuntimeException e) {
+      store.close();
+      throw e;
+    }
+    return store;
+  }
+
+  static int run(String[] args) {
+    if (args.length < 3) {
+      return usage();
+    }
+    String command = args[2];
+    try (EventStore store = open(Paths.get(args[1]))) {
+      if (command.equals("import") && args.length == 4) {
+        long[] count = {0};
+        try (IcsParser parser = new IcsParser(Paths.get(args[3]))) {
+          parser.parse((event, start, end) -> {
+            store.put(event);
+            count[0]++;
+          });
+        }
+        store.force();
+        System.err.println("Stored " + count[0] + " events; " + store.size() + " in the store.");
+      }
+      else if (command.equals("export")
+          && (args.length == 4 || (args.length == 5 && args[4].equals("--utc")))) {
+        try (IcsWriter writer = new IcsWriter(new FileOutputStream(args[3]))) {
+          writer.utcTimes(args.length == 5);
+          writer.beginCalendar();
+          store.writeEvents(writer);
+          writer.endCalendar();
+        }
+      }
+      else if (command.equals("get") && args.length == 4) {
+        Event event = store.get(args[3]);
+        if (event == null) {
+          System.err.println("No event with UID " + args[3]);
+          return 1;
+        }
+        IcsWriter writer = new IcsWriter(System.out);
+        writer.writeEvent(event);
+        writer.writeTimezones();
+        writer.flush();
+      }
+      else if (command.equals("delete") && args.length == 4) {
+        if (!store.delete(args[3])) {
+          System.err.println("No event with UID " + args[3]);
+          return 1;
+        }
+        store.force();
+      }
+      else if (command.equals("changes") && args.length == 5) {
+        long since;
+        try {
+          since = Long.parseLong(args[3]);
+        }
+        catch (NumberFormatException e) {
+          return usage();
+        }
+        try (IcsWriter writer = new IcsWriter(new FileOutputStream(args[4]))) {
+          CalendarDiff.Delta delta = new CalendarDiff.Delta(writer);
+          store.changesSince(since, delta);
+          delta.finish();
+          System.err.println("Wrote " + delta + " to " + args[4] + ".");
+        }
+        // the token for next time
+        System.out.println(store.version());
+      }
+      else if (command.equals("stats") && args.length == 3) {
+        System.out.println(store.size() + " events, " + store.logLength + " bytes of log, index "
+            + store.used + "/" + store.capacity + " slots, sync token " + store.version());
+      }
+      else {
+        return usage();
+      }
+      return 0;
+    }
+    catch (IOException e) {
+      System.err.println(e.getMessage());
+      return 1;
+    }
+  }
+
+  private static int usage() {
+    System.err.println("Usage: --store DIR (import file.ics | export out.ics [--utc] | get UID"
+        + " | delete UID | changes TOKEN delta.ics | stats)");
+    return 2;
+  }
+
+  private void load() throws IOException {
+    if (log.size() < LOG_HEADER) {
+      ByteBuffer header = ByteBuffer.allocate(LOG_HEADER).putLong(0, LOG_MAGIC);
+      log.truncate(0);
+      log.write(header, 0);
+    }
+    else {
+      ByteBuffer header = ByteBuffer.allocate(LOG_HEADER);
+      log.read(header, 0);
+      if (header.getLong(0) != LOG_MAGIC) {
+        throw new IOException(dir.resolve(LOG) + " is not an event log");
+      }
+    }
+
+    Path indexPath = dir.resolve(INDEX);
+    boolean rebuild = !Files.exists(indexPath) || Files.size(indexPath) < INDEX_HEADER;
+    if (!rebuild) {
+      mapIndex(indexPath);
+      rebuild = index.getLong(H_MAGIC) != INDEX_MAGIC
+          || Files.size(indexPath) != INDEX_HEADER + (long) capacity * SLOT
+          || index.getLong(H_LOG_LENGTH) > log.size();
+    }
+    if (rebuild) {
+      rebuildIndex();
+    }
+    else {
+      used = index.getLong(H_USED);
+      live = index.getLong(H_LIVE);
+      logLength = index.getLong(H_LOG_LENGTH);
+    }
+    // records the index has not seen yet
+    replay(logLength);
+  }
+
+  private void mapIndex(Path path) throws IOException {
+    indexChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long size = indexChannel.size();
+    index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    capacity = (int) index.getLong(H_CAPACITY);
+    if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+      // caught by the size check in load()
+      capacity = 0;
+    }
+  }
+
+  // a new, empty index over the whole log
+  private void rebuildIndex() throws IOException {
+    closeIndex();
+    Path path = dir.resolve(INDEX);
+    Files.move(createIndex(MIN_CAPACITY), path, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    mapIndex(path);
+    used = 0;
+    live = 0;
+    logLength = LOG_HEADER;
+    writeHeader();
+  }
+
+  // an empty index file of the given capacity, next to the real one
+  private Path createIndex(int newCapacity) throws IOException {
+    Path fresh = dir.resolve(INDEX + ".new");
+    try (FileChannel channel = FileChannel.open(fresh, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER);
+      header.putLong(H_MAGIC, INDEX_MAGIC).putLong(H_CAPACITY, newCapacity);
+      channel.write(header, 0);
+      // sparse; the slots read as zero, which is empty
+      channel.write(ByteBuffer.allocate(1), INDEX_HEADER + (long) newCapacity * SLOT - 1);
+    }
+    return fresh;
+  }
+
+  // doubles the table; slots hold the full hash, so this needs nothing from the log
+  private void grow() throws IOException {
+    if (capacity >= MAX_CAPACITY) {
+      throw new IOException("event store index is full");
+    }
+    Path fresh = createIndex(capacity * 2);
+    FileChannel channel = FileChannel.open(fresh, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    int mask = capacity * 2 - 1;
+    for (int i = 0; i < capacity; i++) {
+      int slot = INDEX_HEADER + i * SLOT;
+      long hash = index.getLong(slot);
+      if (hash == 0) {
+        continue;
+      }
+      int j = (int) hash & mask;
+      while (table.getLong(INDEX_HEADER + j * SLOT) != 0) {
+        j = (j + 1) & mask;
+      }
+      table.putLong(INDEX_HEADER + j * SLOT + 8, index.getLong(slot + 8));
+      table.putLong(INDEX_HEADER + j * SLOT, hash);
+    }
+    closeIndex();
+    indexChannel = channel;
+    index = table;
+    capacity *= 2;
+    writeHeader();
+    Files.move(fresh, dir.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // indexes records from offset to the end of the log, cutting off a torn last record
+  private void replay(long offset) throws IOException {
+    RecordScanner scanner = new RecordScanner(offset);
+    while (scanner.next()) {
+      apply(scanner.type, scanner.uid(), scanner.offset);
+    }
+    if (scanner.offset < log.size()) {
+      // a record that was not completely written
+      log.truncate(scanner.offset);
+    }
+    logLength = scanner.offset;
+    writeHeader();
+  }
+
+  private void writeHeader() {
+    index.putLong(H_USED, used);
+    index.putLong(H_LIVE, live);
+    index.putLong(H_LOG_LENGTH, logLength);
+  }
+
+  //=========================================
+  // public API
+  //=========================================
+
+  /** Number of events in the store, not counting deleted ones. */
+  long size() {
+    return live;
+  }
+
+  /** The latest version of the event with this UID, or null if there is none or it was deleted. */
+  Event get(String uid) throws IOException {
+    long offset = find(uid, hash(uid));
+    if (offset < 0) {
+      return null;
+    }
+    ByteBuffer body = readRecord(offset);
+    return body.get(0) == PUT ? decode(body) : null;
+  }
+
+  /**
+   * Adds the event, or replaces the stored one with the same UID. An event without a UID is
+   * given a new one; the event as stored is returned.
+   */
+  Event put(Event event) throws IOException {
+    if (event.getUid() == null) {
+      event = event.toBuilder().uid(Event.newUid()).build();
+    }
+    append(PUT, event.getUid(), event);
+    return event;
+  }
+
+  /** Deletes the event with this UID. Returns false if there was none. */
+  boolean delete(String uid) throws IOException {
+    long offset = find(uid, hash(uid));
+    if (offset < 0 || readRecord(offset).get(0) != PUT) {
+      return false;
+    }
+    append(DELETE, uid, null);
+    return true;
+  }
+
+  /** Passes every stored event to {@code action}, in the order they were last written. */
+  void forEach(Consumer<Event> action) throws IOException {
+    RecordScanner scanner = new RecordScanner(LOG_HEADER);
+    while (scanner.next() && scanner.offset < logLength) {
+      if (scanner.type == PUT) {
+        String uid = scanner.uid();
+        // only the latest record of each UID counts
+        if (find(uid, hash(uid)) == scanner.offset) {
+          action.accept(decode(scanner.body));
+        }
+      }
+    }
+  }
+
+  /** Writes every stored event as a VEVENT. */
+  void writeEvents(IcsWriter writer) throws IOException {
+    IOException[] failed = new IOException[1];
+    forEach(event -> {
+      if (failed[0] == null) {
+        try {
+          writer.writeEvent(event);
+        }
+        catch (IOException e) {
+          failed[0] = e;
+        }
+      }
+    });
+    if (failed[0] != null) {
+      throw failed[0];
+    }
+  }
+
+  /**
+   * A sync token for the store as it is now, to pass to {@link #changesSince} later. It is the
+   * length of the log, which only grows.
+   */
+  long version() {
+    return logLength;
+  }
+
+  /**
+   * Passes every event added, modified or deleted since the store was at {@code version} to
+   * {@code changes}, once per UID however often it changed, comparing the event as it is now with
+   * how it was then: an event put again with the same content (see
+   * {@link EventCodec#contentDigest}) has not changed. Version 0 is the empty store.
+   *
+   * @throws IOException if {@code version} is not a token this store gave out
+   */
+  void changesSince(long version, CalendarDiff.Changes changes) throws IOException {
+    if (version == 0) {
+      version = LOG_HEADER;
+    }
+    if (version < LOG_HEADER || version > logLength) {
+      throw new IOException("unknown sync token " + version);
+    }
+    // the latest record of each UID written since; all found before any is passed on, so a token
+    // that is not on a record boundary fails before anything is written
+    long[] latest = new long[64];
+    int count = 0;
+    long end = version;
+    RecordScanner scanner = new RecordScanner(version);
+    while (scanner.next() && scanner.offset < logLength) {
+      end = scanner.offset + scanner.length;
+      String uid = scanner.uid();
+      if (find(uid, hash(uid)) == scanner.offset) {
+        if (count == latest.length) {
+          latest = Arrays.copyOf(latest, count * 2);
+        }
+        latest[count++] = scanner.offset;
+      }
+    }
+    if (end != logLength) {
+      throw new IOException("unknown sync token " + version);
+    }
+
+    MessageDigest sha = EventCodec.sha256();
+    for (int i = 0; i < count; i++) {
+      ByteBuffer body = readRecord(latest[i]);
+      Event was = before(body, version);
+      Event now = body.get(0) == PUT ? decode(body) : null;
+      if (was == null) {
+        if (now != null) {
+          changes.added(now);
+        }
+      }
+      else if (now == null) {
+        changes.removed(was);
+      }
+      else if (!Arrays.equals(EventCodec.contentDigest(was, sha, buffer),
+          EventCodec.contentDigest(now, sha, buffer))) {
+        changes.modified(was, now);
+      }
+    }
+  }
+
+  // the event of the record as it was before offset version, or null if it did not exist then
+  private Event before(ByteBuffer body, long version) throws IOException {
+    long previous = body.getLong(1);
+    while (previous >= version) {
+      previous = readRecord(previous).getLong(1);
+    }
+    if (previous < 0) {
+      return null;
+    }
+    ByteBuffer old = readRecord(previous);
+    return old.get(0) == PUT ? decode(old) : null;
+  }
+
+  /** Forces the log and the index to disk. */
+  void force() throws IOException {
+    long started = System.nanoTime();
+    log.force(false);
+    index.force();
+    Metrics.forced(started);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      log.close();
+    }
+    finally {
+      closeIndex();
+    }
+  }
+
+  private void closeIndex() throws IOException {
+    index = null;
+    if (indexChannel != null) {
+      indexChannel.close();
+      indexChannel = null;
+    }
+  }
+
+  //=========================================
+  // records
+  //=========================================
+
+  private void append(byte type, String uid, Event event) throws IOException {
+    long hash = hash(uid);
+    long previous = find(uid, hash);
+    buffer.clear();
+    buffer.position(RECORD_HEADER);
+    buffer = EventCodec.ensure(buffer, 9);
+    buffer.put(type).putLong(previous);
+    if (event != null) {
+      buffer = EventCodec.encode(event, buffer);
+    }
+    else {
+      buffer = EventCodec.putString(buffer, uid);
+    }
+    int length = buffer.position() - RECORD_HEADER;
+    crc.reset();
+    crc.update(buffer.array(), RECORD_HEADER, length);
+    buffer.putInt(0, length).putInt(4, (int) crc.getValue());
+    buffer.flip();
+    long offset = logLength;
+    while (buffer.hasRemaining()) {
+      log.write(buffer, offset + buffer.position());
+    }
+    logLength = offset + RECORD_HEADER + length;
+    apply(type, uid, offset);
+    writeHeader();
+  }
+
+  // points the UID's slot at the record at offset
+  private void apply(byte type, String uid, long offset) throws IOException {
+    if ((used + 1) * 10 > capacity * 7L) {
+      grow();
+    }
+    long hash = hash(uid);
+    int mask = capacity - 1;
+    for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+      int slot = INDEX_HEADER + i * SLOT;
+      long slotHash = index.getLong(slot);
+      if (slotHash == 0) {
+        index.putLong(slot + 8, offset);
+        index.putLong(slot, hash);
+        used++;
+        if (type == PUT) {
+          live++;
+        }
+        return;
+      }
+      if (slotHash == hash) {
+        long old = index.getLong(slot + 8);
+        ByteBuffer body = readRecord(old);
+        if (uid.equals(recordUid(body))) {
+          if (body.get(0) == PUT) {
+            live--;
+          }
+          if (type == PUT) {
+            live++;
+          }
+          index.putLong(slot + 8, offset);
+          return;
+        }
+      }
+    }
+  }
+
+  // offset of the latest record for uid, or -1
+  private long find(String uid, long hash) throws IOException {
+    int mask = capacity - 1;
+    for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+      int slot = INDEX_HEADER + i * SLOT;
+      long slotHash = index.getLong(slot);
+      if (slotHash == 0) {
+        return -1;
+      }
+      if (slotHash == hash) {
+        long offset = index.getLong(slot + 8);
+        if (uid.equals(recordUid(readRecord(offset)))) {
+          return offset;
+        }
+      }
+    }
+  }
+
+  // the body of the record at offset, checked against its CRC
+  private ByteBuffer readRecord(long offset) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+    readFully(header, offset);
+    int length = header.getInt(0);
+    if (length < 9 || offset + RECORD_HEADER + length > log.size()) {
+      throw new IOException("bad event log record at " + offset);
+    }
+    ByteBuffer body = ByteBuffer.allocate(length);
+    readFully(body, offset + RECORD_HEADER);
+    crc.reset();
+    crc.update(body.array(), 0, length);
+    if ((int) crc.getValue() != header.getInt(4)) {
+      throw new IOException("checksum mismatch in event log record at " + offset);
+    }
+    body.flip();
+    return body;
+  }
+
+  private void readFully(ByteBuffer buffer, long offset) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (log.read(buffer, offset + buffer.position()) < 0) {
+        throw new IOException("event log ends early at " + (offset + buffer.position()));
+      }
+    }
+  }
+
+  /**
+   * Reads records in order from some offset, stopping at the end of the log or at the first
+   * record that is incomplete or fails its checksum. After the last record, {@link #offset} is
+   * where the valid part of the log ends.
+   */
+  private final class RecordScanner {
+    long offset;
+    int length;
+    byte type;
+    ByteBuffer body;
+
+    // log bytes from chunkStart
+    private final ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+    private long chunkStart;
+
+    RecordScanner(long from) {
+      offset = from;
+      chunkStart = from;
+      chunk.limit(0);
+    }
+
+    boolean next() throws IOException {
+      long at = offset + length;
+      offset = at;
+      length = 0;
+      ByteBuffer header = bytes(at, RECORD_HEADER);
+      if (header == null) {
+        return false;
+      }
+      int bodyLength = header.getInt(0);
+      // read before the body, which may refill the chunk under the header
+      int checksum = header.getInt(4);
+      if (bodyLength < 9 || at + RECORD_HEADER + bodyLength > log.size()) {
+        return false;
+      }
+      ByteBuffer b = bytes(at + RECORD_HEADER, bodyLength);
+      if (b == null) {
+        return false;
+      }
+      crc.reset();
+      crc.update(b.array(), b.arrayOffset(), bodyLength);
+      if ((int) crc.getValue() != checksum) {
+        return false;
+      }
+      body = b;
+      type = b.get(0);
+      length = RECORD_HEADER + bodyLength;
+      return true;
+    }
+
+    String uid() {
+      return recordUid(body);
+    }
+
+    // n bytes of the log from at, as a buffer of its own positioned at 0; null past the end
+    private ByteBuffer bytes(long at, int n) throws IOException {
+      if (n > chunk.capacity()) {
+        ByteBuffer big = ByteBuffer.allocate(n);
+        readAt(big, at);
+        big.flip();
+        return big.limit() < n ? null : big;
+      }
+      if (at < chunkStart || at + n > chunkStart + chunk.limit()) {
+        chunk.clear();
+        chunkStart = at;
+        readAt(chunk, at);
+        chunk.flip();
+        if (n > chunk.limit()) {
+          return null;
+        }
+      }
+      ByteBuffer view = chunk.duplicate();
+      view.position((int) (at - chunkStart)).limit((int) (at - chunkStart) + n);
+      return view.slice();
+    }
+
+    private void readAt(ByteBuffer into, long at) throws IOException {
+      while (into.hasRemaining()) {
+        if (log.read(into, at + into.position()) <= 0) {
+          return;
+        }
+      }
+    }
+  }
+
+  //=========================================
+  // record bodies
+  //=========================================
+
+  // both record types start their payload with the UID
+  private static String recordUid(ByteBuffer body) {
+    ByteBuffer in = body.duplicate();
+    in.position(9);
+    return EventCodec.getString(in);
+  }
+
+  private static Event decode(ByteBuffer body) {
+    ByteBuffer in = body.duplicate();
+    in.position(9);
+    return EventCodec.decode(in);
+  }
+
+  // FNV-1a over the chars, then mixed; never 0, which marks an empty slot
+  private static long hash(String uid) {
+    long h = 0xCBF29CE484222325L;
+    for (int i = 0; i < uid.length(); i++) {
+      h ^= uid.charAt(i);
+      h *= 0x100000001B3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    return h == 0 ? 1 : h;
+  }
+}
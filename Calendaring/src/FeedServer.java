@@ -0,0 +1,342 @@
+package calendaring;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves .ics files over HTTP as text/calendar feeds, so clients can subscribe to a calendar
+ * instead of being handed a copy.
+ *
+ * Each file is served at /NAME, NAME being its file name. ?from=...&to=... (UTC, as YYYYMMDD or
+ * YYYYMMDDTHHMMSS) narrows the feed to the events with time in that window, recurring events
+ * included whole if any occurrence falls in it.
+ *
+ * Polling is what feeds mostly see, so a response is built once per version of the file, which is
+ * its size and modification time, and kept as bytes. Every response carries an ETag derived from
+ * the version and the window; a poll whose If-None-Match still matches costs a stat of the file
+ * and a 304, with nothing read or serialized. A full feed is the file's own bytes; a windowed one
+ * is the VEVENTs with time in the window, copied from the file as they are, so overrides,
+ * DESCRIPTION, EXDATE and the rest come with them, and a VTIMEZONE for each zone they use.
+ *
+ * Requests run one per virtual thread where the JDK has them (21 and later) and on a fixed pool
+ * otherwise; either way the connections themselves are multiplexed by the server's selector, so
+ * idle polling clients hold no thread.
+ *
+ * Usage: --serve PORT calendar.ics... [--bind ADDRESS]
+ */
+final class FeedServer {
+
+  // windowed responses kept, across all calendars
+  private static final int MAX_CACHED = 256;
+  private static final int BACKLOG = 1024;
+  // most bytes of adjacent events copied in one read
+  private static final int MAX_COPY = 1 << 20;
+  // the window when one end is left open
+  private static final long FIRST = DateTimes.toEpochSecond(DateTimes.pack(10101, 0));
+  private static final long LAST = DateTimes.toEpochSecond(DateTimes.pack(99991231, 235959));
+
+  private final Map<String, Path> calendars = new LinkedHashMap<String, Path>();
+  private final Map<String, Feed> cache = new ConcurrentHashMap<String, Feed>();
+
+  /** The bytes of a feed for one version of a calendar, built on first use. */
+  private static final class Feed {
+    final String version;
+    final String etag;
+    private byte[] bytes;
+
+    Feed(String version, String etag) {
+      this.version = version;
+      this.etag = etag;
+    }
+  }
+
+  FeedServer() {
+  }
+
+  static int run(String[] args) {
+    FeedServer feeds = new FeedServer();
+    int port = -1;
+    String bind = null;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--bind") && i + 1 < args.length) {
+        bind = args[++i];
+      }
+      else if (port == -1) {
+        try {
+          port = Integer.parseInt(args[i]);
+        }
+        catch (NumberFormatException e) {
+          return usage();
+        }
+        if (port < 0 || port > 65535) {
+          return usage();
+        }
+      }
+      else {
+        Path calendar = Paths.get(args[i]);
+        if (!Files.isRegularFile(calendar)) {
+          System.err.println("No such calendar " + calendar);
+          return 1;
+        }
+        feeds.add(calendar);
+      }
+    }
+    if (port == -1 || feeds.calendars.isEmpty()) {
+      return usage();
+    }
+
+    try {
+      HttpServer server = feeds.start(bind == null ? new InetSocketAddress(port)
+          : new InetSocketAddress(bind, port));
+      InetSocketAddress address = server.getAddress();
+      for (String name : feeds.calendars.keySet()) {
+        System.err.println("Serving http://" + address.getHostString() + ":" + address.getPort()
+            + "/" + name);
+      }
+      // serves until the process is stopped
+      Thread.currentThread().join();
+      return 0;
+    }
+    catch (IOException e) {
+      System.err.println("Could not start the server: " + e.getMessage());
+      return 1;
+    }
+    catch (InterruptedException e) {
+      return 0;
+    }
+  }
+
+  private static int usage() {
+    System.err.println("Usage: --serve PORT calendar.ics... [--bind ADDRESS]");
+    return 2;
+  }
+
+  /** Serves {@code calendar} at /NAME, its file name. */
+  void add(Path calendar) {
+    calendars.put(calendar.getFileName().toString(), calendar);
+  }
+
+  /** Starts serving on {@code address}; the server runs until the process exits. */
+  HttpServer start(InetSocketAddress address) throws IOException {
+    HttpServer server = HttpServer.create(address, BACKLOG);
+    server.createContext("/", this::handle);
+    server.setExecutor(executor());
+    server.start();
+    return server;
+  }
+
+  // one virtual thread per request if this JDK has them
+  private static ExecutorService executor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    }
+    catch (ReflectiveOperationException e) {
+      AtomicInteger count = new AtomicInteger();
+      ThreadFactory threads = task -> new Thread(task, "feed-" + count.incrementAndGet());
+      return Executors.newFixedThreadPool(
+          Math.max(16, 4 * Runtime.getRuntime().availableProcessors()), threads);
+    }
+  }
+
+  //=========================================
+  // requests
+  //=========================================
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      // the server only keeps a connection open after a bodiless reply (a 304) if the request
+      // was read to the end
+      exchange.getRequestBody().close();
+      String method = exchange.getRequestMethod();
+      if (!method.equals("GET") && !method.equals("HEAD")) {
+        exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+        send(exchange, 405, null);
+        return;
+      }
+      URI uri = exchange.getRequestURI();
+      Path calendar = calendars.get(uri.getPath().substring(1));
+      if (calendar == null) {
+        send(exchange, 404, null);
+        return;
+      }
+      long from = DateTimes.INVALID;
+      long to = DateTimes.INVALID;
+      String query = uri.getQuery();
+      if (query != null) {
+        for (String parameter : query.split("&")) {
+          int eq = parameter.indexOf('=');
+          String name = eq < 0 ? parameter : parameter.substring(0, eq);
+          long value = eq < 0 ? DateTimes.INVALID : FreeBusy.utcArgument(parameter.substring(eq + 1));
+          if (name.equals("from") && value != DateTimes.INVALID) {
+            from = value;
+          }
+          else if (name.equals("to") && value != DateTimes.INVALID) {
+            to = value;
+          }
+          else {
+            send(exchange, 400, null);
+            return;
+          }
+        }
+      }
+      if (from != DateTimes.INVALID && to != DateTimes.INVALID && to <= from) {
+        send(exchange, 400, null);
+        return;
+      }
+
+      Feed feed;
+      try {
+        feed = feed(calendar, uri.getPath(), from, to);
+      }
+      catch (IOException e) {
+        send(exchange, 404, null);
+        return;
+      }
+      Headers headers = exchange.getResponseHeaders();
+      headers.set("ETag", feed.etag);
+      headers.set("Cache-Control", "no-cache");
+      if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), feed.etag)) {
+        send(exchange, 304, null);
+        return;
+      }
+      byte[] body;
+      try {
+        body = bytes(feed, calendar, from, to);
+      }
+      catch (IOException e) {
+        System.err.println("Could not read " + calendar + ": " + e.getMessage());
+        send(exchange, 500, null);
+        return;
+      }
+      headers.set("Content-Type", "text/calendar; charset=utf-8");
+      send(exchange, 200, method.equals("HEAD") ? null : body);
+    }
+    finally {
+      exchange.close();
+    }
+  }
+
+  private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+    if (body == null) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  // If-None-Match is *, or a list of entity tags that may be weak
+  private static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  //=========================================
+  // feeds
+  //=========================================
+
+  /** The cached feed for the current version of {@code calendar}, a new one if it changed. */
+  private Feed feed(Path calendar, String key, long from, long to) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(calendar, BasicFileAttributes.class);
+    String version = Long.toHexString(attributes.size()) + "-"
+        + Long.toHexString(attributes.lastModifiedTime().toMillis());
+    String window = from == DateTimes.INVALID && to == DateTimes.INVALID ? ""
+        : "-" + (from == DateTimes.INVALID ? "" : Long.toString(from))
+            + "-" + (to == DateTimes.INVALID ? "" : Long.toString(to));
+    String cacheKey = key + window;
+    Feed feed = cache.compute(cacheKey, (k, old) -> old != null && old.version.equals(version) ? old
+        : new Feed(version, "\"" + version + window + "\""));
+    if (cache.size() > MAX_CACHED) {
+      // windowed feeds come and go; drop others until there is room again
+      Iterator<String> keys = cache.keySet().iterator();
+      while (cache.size() > MAX_CACHED && keys.hasNext()) {
+        String other = keys.next();
+        if (!other.equals(cacheKey)) {
+          keys.remove();
+        }
+      }
+    }
+    return feed;
+  }
+
+  // built by the first request to need them; the others for the same version wait for it
+  private static byte[] bytes(Feed feed, Path calendar, long from, long to) throws IOException {
+    synchronized (feed) {
+      if (feed.bytes == null) {
+        feed.bytes = from == DateTimes.INVALID && to == DateTimes.INVALID
+            ? Files.readAllBytes(calendar)
+            : window(calendar, from, to);
+      }
+      return feed.bytes;
+    }
+  }
+
+  /** {@code calendar} with only the events that take up time in [from, to) (packed UTC). */
+  static byte[] window(Path calendar, long from, long to) throws IOException {
+    long fromSecond = from == DateTimes.INVALID ? FIRST : DateTimes.toEpochSecond(from);
+    long toSecond = to == DateTimes.INVALID ? LAST : DateTimes.toEpochSecond(to);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    boolean[] inside = new boolean[1];
+    try (IcsParser parser = new IcsParser(calendar);
+        IcsWriter writer = new IcsWriter(bytes)) {
+      writer.beginCalendar();
+      // the events still to copy, which are next to each other in the file
+      long copyFrom = 0;
+      long copyTo = 0;
+      while (parser.next() != null) {
+        Event event = parser.event();
+        if (event == null) {
+          continue;
+        }
+        inside[0] = false;
+        Spans.of(event, fromSecond, toSecond, (start, end) -> {
+          inside[0] = true;
+          return false;
+        });
+        if (inside[0]) {
+          if (parser.start() != copyTo || parser.end() - copyFrom > MAX_COPY) {
+            writer.raw(parser.bytes(copyFrom, copyTo));
+            copyFrom = parser.start();
+          }
+          copyTo = parser.end();
+          writer.useZones(event);
+        }
+      }
+      writer.raw(parser.bytes(copyFrom, copyTo));
+      writer.endCalendar();
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,251 @@
+package calendaring;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes the combined busy time of a set of calendars over a window, for a VFREEBUSY (3.6.4).
+ *
+ * Each calendar is read on its own and reduced to its busy time as sorted, non-overlapping
+ * intervals: the starts and the ends of its events' spans are sorted separately and swept once,
+ * which needs no interval objects. The per-calendar lists are then merged pairwise up a
+ * fork/join tree, so parsing and merging both run on every core, and the total work is linear in
+ * the number of events apart from the sorts and a log(calendars) factor for the merge.
+ *
+ * Busy time is kept as a flat long[] of UTC epoch seconds, {start0, end0, start1, end1, ...}.
+ *
+ * Usage: --freebusy FROM TO calendar.ics... [--out freebusy.ics], where FROM and TO are UTC as
+ * YYYYMMDD or YYYYMMDDTHHMMSS.
+ */
+final class FreeBusy {
+
+  private static final long[] NONE = new long[0];
+
+  private final long from;
+  private final long to;
+
+  /** For busy time within [from, to), in epoch seconds. */
+  FreeBusy(long from, long to) {
+    this.from = from;
+    this.to = to;
+  }
+
+  static int run(String[] args) {
+    String out = "freebusy.ics";
+    List<Path> calendars = new ArrayList<Path>();
+    long from = DateTimes.INVALID;
+    long to = DateTimes.INVALID;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--out") && i + 1 < args.length) {
+        out = args[++i];
+      }
+      else if (from == DateTimes.INVALID) {
+        from = utcArgument(args[i]);
+        if (from == DateTimes.INVALID) {
+          return usage();
+        }
+      }
+      else if (to == DateTimes.INVALID) {
+        to = utcArgument(args[i]);
+        if (to == DateTimes.INVALID) {
+          return usage();
+        }
+      }
+      else {
+        calendars.add(Paths.get(args[i]));
+      }
+    }
+    if (calendars.isEmpty() || to <= from) {
+      return usage();
+    }
+
+    long started = System.nanoTime();
+    long fromSecond = DateTimes.toEpochSecond(from);
+    long toSecond = DateTimes.toEpochSecond(to);
+    try (IcsWriter writer = new IcsWriter(new FileOutputStream(out))) {
+      long[] busy = new FreeBusy(fromSecond, toSecond).busy(calendars);
+      writer.beginCalendar();
+      writer.writeFreeBusy(fromSecond, toSecond, busy);
+      writer.endCalendar();
+      System.err.println("Wrote " + busy.length / 2 + " busy periods from " + calendars.size()
+          + " calendars to " + out + " in " + (System.nanoTime() - started) / 1000000 + " ms.");
+      return 0;
+    }
+    catch (IOException e) {
+      System.err.println(e.getMessage());
+      return 1;
+    }
+  }
+
+  private static int usage() {
+    System.err.println("Usage: --freebusy FROM TO calendar.ics... [--out freebusy.ics]");
+    return 2;
+  }
+
+  /** Packed yyyyMMddHHmmss for a command line time, YYYYMMDD or YYYYMMDDTHHMMSS optionally ending in Z. */
+  static long utcArgument(String value) {
+    if (value.endsWith("Z") || value.endsWith("z")) {
+      value = value.substring(0, value.length() - 1);
+    }
+    if (value.length() == 8) {
+      int date = DateTimes.parseDate(value, 0);
+      return date == DateTimes.INVALID ? DateTimes.INVALID : DateTimes.pack(date, 0);
+    }
+    return value.length() == 15 ? DateTimes.parseDateTime(value, 0) : DateTimes.INVALID;
+  }
+
+  //=========================================
+  // busy time
+  //=========================================
+
+  /** The combined busy time of {@code calendars}, read and merged in parallel. */
+  long[] busy(List<Path> calendars) throws IOException {
+    try {
+      return ForkJoinPool.commonPool().invoke(new Merge(calendars, 0, calendars.size()));
+    }
+    catch (UncheckedIOException e) {
+      // keeps the name of the calendar that failed
+      throw new IOException(e.getMessage(), e.getCause());
+    }
+  }
+
+  /** The busy time of one calendar file. */
+  long[] busy(Path calendar) throws IOException {
+    long[][] spans = {new long[64], new long[64]};
+    int[] count = {0};
+    try (IcsParser parser = new IcsParser(calendar)) {
+      while (parser.next() != null) {
+        Event event = parser.event();
+        if (event == null) {
+          continue;
+        }
+        Spans.of(event, from, to, (start, end) -> {
+          start = Math.max(start, from);
+          end = Math.min(end, to);
+          if (start >= end) {
+            return true;
+          }
+          int n = count[0]++;
+          if (n == spans[0].length) {
+            spans[0] = Arrays.copyOf(spans[0], n * 2);
+            spans[1] = Arrays.copyOf(spans[1], n * 2);
+          }
+          spans[0][n] = start;
+          spans[1][n] = end;
+          return true;
+        });
+      }
+    }
+    return union(spans[0], spans[1], count[0]);
+  }
+
+  /**
+   * The union of intervals [starts[i], ends[i]) as sorted, non-overlapping intervals, with
+   * touching ones joined. Sorts both arrays in place.
+   */
+  static long[] union(long[] starts, long[] ends, int count) {
+    if (count == 0) {
+      return NONE;
+    }
+    Arrays.sort(starts, 0, count);
+    Arrays.sort(ends, 0, count);
+    long[] out = new long[count * 2];
+    int n = 0;
+    int depth = 0;
+    int j = 0;
+    for (int i = 0; i < count; i++) {
+      // close whatever ends strictly before this start
+      while (ends[j] < starts[i]) {
+        if (--depth == 0) {
+          out[n++] = ends[j];
+        }
+        j++;
+      }
+      if (depth++ == 0) {
+        out[n++] = starts[i];
+      }
+    }
+    // the last interval closes at the latest end
+    out[n++] = ends[count - 1];
+    return n == out.length ? out : Arrays.copyOf(out, n);
+  }
+
+  /** Merges two busy lists into one, joining intervals that overlap or touch. */
+  static long[] merge(long[] a, long[] b) {
+    if (a.length == 0) {
+      return b;
+    }
+    if (b.length == 0) {
+      return a;
+    }
+    long[] out = new long[a.length + b.length];
+    int n = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length || j < b.length) {
+      long start;
+      long end;
+      if (j == b.length || (i < a.length && a[i] <= b[j])) {
+        start = a[i];
+        end = a[i + 1];
+        i += 2;
+      }
+      else {
+        start = b[j];
+        end = b[j + 1];
+        j += 2;
+      }
+      if (n > 0 && start <= out[n - 1]) {
+        out[n - 1] = Math.max(out[n - 1], end);
+      }
+      else {
+        out[n++] = start;
+        out[n++] = end;
+      }
+    }
+    return n == out.length ? out : Arrays.copyOf(out, n);
+  }
+
+  // reads calendars[lo, hi) and merges their busy time, splitting in halves down to one calendar
+  private final class Merge extends RecursiveTask<long[]> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Path> calendars;
+    private final int lo;
+    private final int hi;
+
+    Merge(List<Path> calendars, int lo, int hi) {
+      this.calendars = calendars;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected long[] compute() {
+      if (hi - lo == 1) {
+        try {
+          return busy(calendars.get(lo));
+        }
+        catch (IOException e) {
+          throw new UncheckedIOException("Could not read " + calendars.get(lo) + ": " + e.getMessage(), e);
+        }
+      }
+      if (hi == lo) {
+        return NONE;
+      }
+      int mid = (lo + hi) >>> 1;
+      Merge left = new Merge(calendars, lo, mid);
+      left.fork();
+      long[] right = new Merge(calendars, mid, hi).compute();
+      return merge(left.join(), right);
+    }
+  }
+}
@@ -0,0 +1,214 @@
+package calendaring;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Opens an existing .ics file for adding events without rewriting it.
+ *
+ * Only the end of the file is read. Searching backward from the end, it finds the closing
+ * END:VCALENDAR and the run of VTIMEZONE components just before it, which is where
+ * {@link IcsWriter#endCalendar()} puts them. The returned writer is positioned at the start of
+ * that run: new events are written over it, and {@link IcsWriter#endCalendar()} then writes the
+ * time zones again, each one either unchanged or widened to the years the new events need,
+ * followed by END:VCALENDAR. Adding an event therefore costs the size of the event and of the
+ * trailing time zones, however large the file is.
+ *
+ * Nothing in the file changes until the first bytes are written, and the file is only cut to
+ * length when the writer is closed. If the writer is closed without
+ * {@link IcsWriter#endCalendar()}, as when a session ends early, it writes the closing section
+ * itself, so the events added so far are kept and the calendar still ends with END:VCALENDAR.
+ *
+ * Time zones defined anywhere else in the file are not seen, so a calendar from another program
+ * that puts its VTIMEZONEs first can end up with a second definition of a zone the new events use.
+ */
+final class IcsAppender {
+
+  private static final int CHUNK = 1 << 13;
+
+  private IcsAppender() {
+  }
+
+  /**
+   * A writer that adds events to {@code path}, which is created (with BEGIN:VCALENDAR written
+   * already) if it is missing or empty. Finish with {@link IcsWriter#endCalendar()} and close it.
+   * The writing is done on another thread, forcing as {@link AsyncFileOutput} describes for
+   * {@code forceMillis}.
+   *
+   * @throws IOException also if the file does not end with END:VCALENDAR
+   */
+  static IcsWriter open(Path path, long forceMillis) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      long size = channel.size();
+      if (size == 0) {
+        IcsWriter writer = new IcsWriter(new AsyncFileOutput(channel, forceMillis));
+        writer.beginCalendar();
+        writer.endOnClose();
+        return writer;
+      }
+      byte[] tail = null;
+      long tailStart = -1;
+      // read more of the end until the whole trailing run of time zones is in view
+      for (int length = CHUNK; tailStart < 0; length *= 2) {
+        length = (int) Math.min(length, size);
+        tail = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(tail);
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, size - length + buffer.position()) < 0) {
+            throw new IOException(path + " changed while it was being read");
+          }
+        }
+        int start = tailStart(tail, length == size);
+        if (start == -2) {
+          throw new IOException(path + " does not end with END:VCALENDAR");
+        }
+        if (start >= 0) {
+          tailStart = size - length + start;
+          tail = Arrays.copyOfRange(tail, start, tail.length);
+        }
+      }
+
+      channel.position(tailStart);
+      IcsWriter writer = new IcsWriter(new AsyncFileOutput(channel, forceMillis));
+      keepTimezones(writer, tail);
+      writer.endOnClose();
+      return writer;
+    }
+    catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Where the trailing VTIMEZONE run (or END:VCALENDAR, if there is none) starts in {@code bytes},
+   * the last bytes of the file; -1 if more of the file is needed to tell, -2 if the file does not
+   * end with END:VCALENDAR.
+   */
+  private static int tailStart(byte[] bytes, boolean wholeFile) {
+    int end = bytes.length;
+    boolean closed = false;
+    boolean inTimezone = false;
+    int start = -1;
+    while (end > 0) {
+      int lineEnd = end;
+      int lineStart = lineEnd;
+      while (lineStart > 0 && bytes[lineStart - 1] != '\n') {
+        lineStart--;
+      }
+      end = lineStart == 0 ? 0 : lineStart - 1;
+      if (lineStart == 0 && !wholeFile) {
+        // may be the second half of a line; only what comes before can settle it
+        return -1;
+      }
+      int length = lineEnd - lineStart;
+      while (length > 0 && (bytes[lineStart + length - 1] == '\r'
+          || bytes[lineStart + length - 1] == ' ' || bytes[lineStart + length - 1] == '\t')) {
+        length--;
+      }
+      if (length == 0) {
+        continue;
+      }
+      if (!closed) {
+        if (!is(bytes, lineStart, length, "END:VCALENDAR")) {
+          return -2;
+        }
+        closed = true;
+        start = lineStart;
+      }
+      else if (is(bytes, lineStart, length, "END:VTIMEZONE")) {
+        inTimezone = true;
+      }
+      else if (inTimezone && is(bytes, lineStart, length, "BEGIN:VTIMEZONE")) {
+        inTimezone = false;
+        start = lineStart;
+      }
+      else if (!inTimezone) {
+        return start;
+      }
+    }
+    return closed ? start : -2;
+  }
+
+  private static boolean is(byte[] bytes, int off, int length, String line) {
+    if (length != line.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      int c = bytes[off + i];
+      if (c >= 'a' && c <= 'z') {
+        c -= 'a' - 'A';
+      }
+      if (c != line.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // hands each VTIMEZONE in the tail to the writer with the years its observances span
+  private static void keepTimezones(IcsWriter writer, byte[] tail) {
+    String text = new String(tail, StandardCharsets.UTF_8);
+    int from = 0;
+    while (true) {
+      int begin = indexOfLine(text, "BEGIN:VTIMEZONE", from);
+      if (begin < 0) {
+        return;
+      }
+      int end = indexOfLine(text, "END:VTIMEZONE", begin);
+      if (end < 0) {
+        return;
+      }
+      end = text.indexOf('\n', end) + 1;
+      String block = text.substring(begin, end);
+      // unfolded, so TZID and RRULE lines can be matched whole
+      String unfolded = block.replace("\r\n ", "").replace("\r\n\t", "").replace("\n ", "");
+      String tzid = null;
+      int firstYear = Integer.MAX_VALUE;
+      int lastYear = Integer.MIN_VALUE;
+      for (String line : unfolded.split("\r?\n")) {
+        String upper = line.toUpperCase();
+        if (upper.startsWith("TZID:") || upper.startsWith("TZID;")) {
+          tzid = line.substring(line.indexOf(':') + 1);
+        }
+        else if (upper.startsWith("DTSTART") && line.indexOf(':') > 0) {
+          int date = DateTimes.parseDate(line, line.indexOf(':') + 1);
+          if (date != DateTimes.INVALID) {
+            firstYear = Math.min(firstYear, date / 10000);
+            lastYear = Math.max(lastYear, date / 10000);
+          }
+        }
+        else if (upper.startsWith("RRULE")) {
+          lastYear = VTimezones.OPEN_ENDED;
+        }
+      }
+      if (tzid != null && firstYear <= lastYear) {
+        writer.keepTimezone(tzid, firstYear, lastYear, block.getBytes(StandardCharsets.UTF_8));
+      }
+      from = end;
+    }
+  }
+
+  private static int indexOfLine(String text, String line, int from) {
+    int i = from;
+    while (i < text.length()) {
+      int next = text.indexOf('\n', i);
+      int lineEnd = next < 0 ? text.length() : next;
+      if (text.substring(i, lineEnd).trim().equalsIgnoreCase(line)) {
+        return i;
+      }
+      if (next < 0) {
+        return -1;
+      }
+      i = next + 1;
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,900 @@
+package calendaring;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Checks existing .ics files against the rules the prompts in {@link CalendarDriver} enforce
+ * (valid dates and times, PRIORITY 0-9, one of the three classifications, DTEND after DTSTART),
+ * plus what RFC 5545 asks of the file itself: CRLF line breaks, lines folded at 75 octets without
+ * splitting a UTF-8 character, no control characters, TEXT values escaped (3.3.11), BEGIN and END
+ * paired, UID, DTSTAMP and DTSTART present once in every VEVENT, and a TRIGGER and ACTION in
+ * every VALARM, with what its ACTION needs (3.6.6): a DESCRIPTION for DISPLAY, a DESCRIPTION,
+ * SUMMARY and at least one ATTENDEE for EMAIL, and no more than one ATTACH for AUDIO.
+ *
+ * A file is checked in pieces on a fork-join pool. A piece that is too big to check at once is cut
+ * in two at a line starting BEGIN:VEVENT near its middle, so every event is checked whole by one
+ * task; each task reads its piece with one positional read and counts its own lines. Joining two
+ * results shifts the right one's line numbers by the left one's line count and pairs the ENDs
+ * the right one could not match with the BEGINs the left one left open, so findings come out
+ * with their line in the file and nesting is checked across pieces. Pieces are independent until
+ * they are joined, so the work spreads over as many cores as the pool has.
+ *
+ * Findings are printed as FILE:LINE: message, in line order, to stdout; the exit status is 1 if
+ * there were any errors. Warnings are for what is valid iCalendar but not something this program
+ * can read back, such as RRULE parts it does not support.
+ *
+ * Usage: --lint calendar.ics... [--threads N] [--max-findings N]
+ */
+final class IcsLinter {
+
+  private static final int MAX_LINE = 75;
+  // pieces are cut down to about this size, or smaller if that leaves cores idle
+  private static final long MAX_PIECE = 8 << 20;
+  private static final long MIN_PIECE = 1 << 20;
+  private static final byte[] EVENT_BOUNDARY = "\nBEGIN:VEVENT".getBytes(StandardCharsets.US_ASCII);
+  // how far to look for a boundary at a time
+  private static final int SEARCH = 1 << 16;
+
+  // properties that may appear once in a VEVENT, as bits of Check.seen
+  private static final String[] ONCE = {"UID", "DTSTAMP", "DTSTART", "DTEND", "DURATION", "CLASS",
+      "PRIORITY", "SUMMARY", "LOCATION", "SEQUENCE", "ORGANIZER", "STATUS", "DESCRIPTION", "RRULE"};
+  // properties that may appear once in a VALARM, as bits of Check.alarmSeen
+  private static final String[] ALARM_ONCE = {"ACTION", "TRIGGER", "REPEAT", "DURATION",
+      "DESCRIPTION", "SUMMARY"};
+  // TEXT properties whose ',' and ';' have to be escaped
+  private static final String[] TEXT = {"SUMMARY", "LOCATION", "DESCRIPTION", "COMMENT"};
+
+  // kinds of DTSTART and DTEND value
+  private static final int DATE = 0;
+  private static final int FLOATING = 1;
+  private static final int UTC = 2;
+  private static final String[] KINDS = {"a DATE", "a local DATE-TIME", "a UTC DATE-TIME"};
+
+  private final FileChannel channel;
+  private final int maxFindings;
+  private final long piece;
+
+  /** One error or warning, at a line counted from the start of its piece until joined. */
+  private static final class Finding {
+    long line;
+    final boolean warning;
+    final String message;
+
+    Finding(long line, boolean warning, String message) {
+      this.line = line;
+      this.warning = warning;
+      this.message = message;
+    }
+  }
+
+  // a BEGIN not yet closed, or an END with no BEGIN in its piece
+  private static final class Component {
+    final String name;
+    long line;
+
+    Component(String name, long line) {
+      this.name = name;
+      this.line = line;
+    }
+  }
+
+  /** What checking a piece (or several in a row) found. */
+  private static final class Result {
+    long lines;
+    final List<Finding> findings = new ArrayList<Finding>();
+    long errors;
+    long warnings;
+    // lines ending in LF alone; reported once for the file
+    long bareLf;
+    long firstBareLf;
+    // innermost last
+    final Deque<Component> open = new ArrayDeque<Component>();
+    // in file order
+    final List<Component> unmatched = new ArrayList<Component>();
+
+    void add(Finding finding, int max) {
+      if (finding.warning) {
+        warnings++;
+      }
+      else {
+        errors++;
+      }
+      findings.add(finding);
+      if (findings.size() > 2 * max) {
+        trim(max);
+      }
+    }
+
+    // keeps the first max findings by line
+    void trim(int max) {
+      findings.sort(Comparator.comparingLong(f -> f.line));
+      if (findings.size() > max) {
+        findings.subList(max, findings.size()).clear();
+      }
+    }
+  }
+
+  IcsLinter(FileChannel channel, int threads, int maxFindings) throws IOException {
+    this.channel = channel;
+    this.maxFindings = maxFindings;
+    this.piece = Math.max(MIN_PIECE, Math.min(MAX_PIECE, channel.size() / (4L * threads)));
+  }
+
+  static int run(String[] args) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    int maxFindings = 100;
+    List<Path> calendars = new ArrayList<Path>();
+    for (int i = 1; i < args.length; i++) {
+      if ((args[i].equals("--threads") || args[i].equals("--max-findings")) && i + 1 < args.length) {
+        int value;
+        try {
+          value = Integer.parseInt(args[i + 1]);
+        }
+        catch (NumberFormatException e) {
+          return usage();
+        }
+        if (value < 1) {
+          return usage();
+        }
+        if (args[i].equals("--threads")) {
+          threads = value;
+        }
+        else {
+          maxFindings = value;
+        }
+        i++;
+      }
+      else {
+        calendars.add(Paths.get(args[i]));
+      }
+    }
+    if (calendars.isEmpty()) {
+      return usage();
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    boolean failed = false;
+    try {
+      for (Path calendar : calendars) {
+        long started = System.nanoTime();
+        Result result;
+        try (FileChannel channel = FileChannel.open(calendar, StandardOpenOption.READ)) {
+          result = new IcsLinter(channel, threads, maxFindings).lint(pool);
+        }
+        catch (IOException e) {
+          System.err.println("Could not read " + calendar + ": " + e.getMessage());
+          failed = true;
+          continue;
+        }
+        for (Finding finding : result.findings) {
+          System.out.println(calendar + ":" + finding.line + ": "
+              + (finding.warning ? "warning: " : "") + finding.message);
+        }
+        long shown = result.findings.size();
+        System.err.println(calendar + ": " + result.errors + " errors, " + result.warnings
+            + " warnings in " + result.lines + " lines"
+            + (shown < result.errors + result.warnings ? " (first " + shown + " shown)" : "")
+            + " in " + (System.nanoTime() - started) / 1000000 + " ms.");
+        failed |= result.errors > 0;
+      }
+    }
+    finally {
+      pool.shutdown();
+    }
+    return failed ? 1 : 0;
+  }
+
+  private static int usage() {
+    System.err.println("Usage: --lint calendar.ics... [--threads N] [--max-findings N]");
+    return 2;
+  }
+
+  /** Checks the whole file on {@code pool}. */
+  Result lint(ForkJoinPool pool) throws IOException {
+    Result result;
+    try {
+      result = pool.invoke(new Piece(0, channel.size()));
+    }
+    catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    // what is still unpaired once the whole file has been joined
+    for (Component end : result.unmatched) {
+      result.add(new Finding(end.line, false, "END:" + end.name + " without a BEGIN"), maxFindings);
+    }
+    for (Component begin : result.open) {
+      result.add(new Finding(begin.line, false, "BEGIN:" + begin.name + " is never closed"),
+          maxFindings);
+    }
+    if (result.bareLf > 0) {
+      result.add(new Finding(result.firstBareLf, false, result.bareLf
+          + " lines end in LF alone; content lines end in CRLF (3.1)"), maxFindings);
+    }
+    result.trim(maxFindings);
+    return result;
+  }
+
+  //=========================================
+  // splitting and joining
+  //=========================================
+
+  private final class Piece extends RecursiveTask<Result> {
+    private static final long serialVersionUID = 1L;
+
+    private final long from;
+    private final long to;
+
+    Piece(long from, long to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Result compute() {
+      try {
+        long cut = to - from > piece ? boundary(from + (to - from) / 2, to) : -1;
+        if (cut < 0) {
+          cut = to - from > piece ? boundary(from + 1, from + (to - from) / 2) : -1;
+        }
+        if (cut < 0) {
+          if (to - from > Integer.MAX_VALUE - 8) {
+            throw new IOException("no BEGIN:VEVENT between offsets " + from + " and " + to
+                + " to split the file at");
+          }
+          return new Check(from, (int) (to - from)).run();
+        }
+        Piece right = new Piece(cut, to);
+        right.fork();
+        Result left = new Piece(from, cut).compute();
+        return append(left, right.join());
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  // offset of the first line starting BEGIN:VEVENT in [from, to), or -1
+  private long boundary(long from, long to) throws IOException {
+    ByteBuffer window = ByteBuffer.allocate(SEARCH + EVENT_BOUNDARY.length);
+    // the '\n' before the line has to be looked at too
+    for (long at = from - 1; at < to - 1; at += SEARCH) {
+      window.clear();
+      read(window, at);
+      byte[] bytes = window.array();
+      int limit = window.position() - EVENT_BOUNDARY.length;
+      for (int i = 0; i <= limit && at + i < to - 1; i++) {
+        if (bytes[i] == '\n' && matchesAt(bytes, i + 1)) {
+          return at + i + 1;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private static boolean matchesAt(byte[] bytes, int off) {
+    for (int i = 1; i < EVENT_BOUNDARY.length; i++) {
+      if (bytes[off + i - 1] != EVENT_BOUNDARY[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void read(ByteBuffer into, long at) throws IOException {
+    while (into.hasRemaining()) {
+      if (channel.read(into, at + into.position()) < 0) {
+        return;
+      }
+    }
+  }
+
+  /** {@code right}, which follows {@code left} in the file, joined onto {@code left}. */
+  private Result append(Result left, Result right) {
+    long shift = left.lines;
+    for (Finding finding : right.findings) {
+      finding.line += shift;
+    }
+    for (Component end : right.unmatched) {
+      end.line += shift;
+      Component begin = left.open.pollLast();
+      if (begin == null) {
+        left.unmatched.add(end);
+      }
+      else if (!begin.name.equals(end.name)) {
+        left.add(new Finding(end.line, false, "END:" + end.name + " does not close BEGIN:"
+            + begin.name + " on line " + begin.line), maxFindings);
+      }
+    }
+    for (Component begin : right.open) {
+      begin.line += shift;
+      left.open.addLast(begin);
+    }
+    left.findings.addAll(right.findings);
+    left.errors += right.errors;
+    left.warnings += right.warnings;
+    if (left.findings.size() > 2 * maxFindings) {
+      left.trim(maxFindings);
+    }
+    if (left.bareLf == 0) {
+      left.firstBareLf = right.firstBareLf + shift;
+    }
+    left.bareLf += right.bareLf;
+    left.lines += right.lines;
+    return left;
+  }
+
+  //=========================================
+  // checking a piece
+  //=========================================
+
+  /** Checks one piece of the file, which starts at a line, on its own. */
+  private final class Check {
+    private final long from;
+    private final byte[] bytes;
+    private final Result result = new Result();
+    private final Deque<Component> stack = new ArrayDeque<Component>();
+
+    // the unfolded content line
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private long lineNo;
+    private boolean pending;
+    private long physicalNo;
+
+    // the VEVENT being checked, if the innermost component is one
+    private long eventLine;
+    private int seen;
+    private long start;
+    private long end;
+    private int startKind;
+    private int endKind;
+    private String startZone;
+    private String endZone;
+    private long startLine;
+    private long endLine;
+
+    // the VALARM being checked, if the innermost component is one
+    private long alarmLine;
+    private int alarmSeen;
+    private String alarmAction;
+    private int alarmAttendees;
+    private int alarmAttachments;
+
+    Check(long from, int length) {
+      this.from = from;
+      this.bytes = new byte[length];
+    }
+
+    Result run() throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      read(buffer, from);
+      int n = buffer.position();
+      int i = 0;
+      while (i < n) {
+        int lineStart = i;
+        while (i < n && bytes[i] != '\n') {
+          i++;
+        }
+        physical(lineStart, i, i < n);
+        i = i < n ? i + 1 : i;
+      }
+      if (pending) {
+        logical();
+      }
+      result.lines = physicalNo;
+      for (Component begin : stack) {
+        // the deque's iterator goes from the innermost out
+        result.open.addFirst(begin);
+      }
+      return result;
+    }
+
+    private void error(long at, String message) {
+      result.add(new Finding(at, false, message), maxFindings);
+    }
+
+    private void warning(long at, String message) {
+      result.add(new Finding(at, true, message), maxFindings);
+    }
+
+    // one line as it is in the file, [start, end) before the LF
+    private void physical(int start, int end, boolean lf) {
+      physicalNo++;
+      int contentEnd = end;
+      if (contentEnd > start && bytes[contentEnd - 1] == '\r') {
+        contentEnd--;
+      }
+      else if (lf) {
+        if (result.bareLf++ == 0) {
+          result.firstBareLf = physicalNo;
+        }
+      }
+      if (contentEnd - start > MAX_LINE) {
+        error(physicalNo, "line is " + (contentEnd - start) + " octets long; lines longer than "
+            + MAX_LINE + " have to be folded (3.1)");
+      }
+      for (int i = start; i < contentEnd; i++) {
+        int b = bytes[i] & 0xFF;
+        if ((b < 0x20 && b != '\t') || b == 0x7F) {
+          error(physicalNo, "control character 0x" + Integer.toHexString(b / 16)
+              + Integer.toHexString(b % 16) + " in content line");
+          break;
+        }
+      }
+      if (contentEnd == start) {
+        if (pending) {
+          logical();
+        }
+        error(physicalNo, "empty line");
+        return;
+      }
+
+      if (bytes[start] == ' ' || bytes[start] == '\t') {
+        if (!pending) {
+          error(physicalNo, "folded line with no line to continue");
+          return;
+        }
+        if (contentEnd > start + 1 && (bytes[start + 1] & 0xC0) == 0x80) {
+          error(physicalNo, "folding splits a UTF-8 character");
+        }
+        append(start + 1, contentEnd);
+        return;
+      }
+      if (pending) {
+        logical();
+      }
+      pending = true;
+      lineNo = physicalNo;
+      lineLength = 0;
+      append(start, contentEnd);
+    }
+
+    private void append(int start, int end) {
+      int length = end - start;
+      if (lineLength + length > line.length) {
+        line = java.util.Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+      }
+      System.arraycopy(bytes, start, line, lineLength, length);
+      lineLength += length;
+    }
+
+    //=========================================
+    // content lines
+    //=========================================
+
+    // one unfolded content line: name *(";" param) ":" value
+    private void logical() {
+      pending = false;
+      if (!validUtf8()) {
+        error(lineNo, "content line is not valid UTF-8");
+        return;
+      }
+      int nameEnd = 0;
+      while (nameEnd < lineLength && isNameChar(line[nameEnd])) {
+        nameEnd++;
+      }
+      int valueStart = -1;
+      boolean quoted = false;
+      for (int i = nameEnd; i < lineLength; i++) {
+        if (line[i] == '"') {
+          quoted = !quoted;
+        }
+        else if (line[i] == ':' && !quoted) {
+          valueStart = i + 1;
+          break;
+        }
+      }
+      if (nameEnd == 0 || valueStart < 0 || (line[nameEnd] != ':' && line[nameEnd] != ';')) {
+        error(lineNo, "not a content line (NAME[;PARAM=...]:VALUE)");
+        return;
+      }
+      String name = new String(line, 0, nameEnd, StandardCharsets.US_ASCII).toUpperCase();
+      String value = new String(line, valueStart, lineLength - valueStart, StandardCharsets.UTF_8);
+
+      if (name.equals("BEGIN")) {
+        begin(value.toUpperCase());
+      }
+      else if (name.equals("END")) {
+        end(value.toUpperCase());
+      }
+      else if (!stack.isEmpty() && stack.peek().name.equals("VEVENT")) {
+        property(name, valueStart, value);
+      }
+      else if (!stack.isEmpty() && stack.peek().name.equals("VALARM")) {
+        alarmProperty(name, valueStart, value);
+      }
+    }
+
+    private void begin(String component) {
+      if (component.equals("VEVENT")) {
+        if (!stack.isEmpty() && stack.peek().name.equals("VEVENT")) {
+          error(lineNo, "BEGIN:VEVENT inside the VEVENT on line " + stack.peek().line);
+        }
+        eventLine = lineNo;
+        seen = 0;
+        start = DateTimes.INVALID;
+        end = DateTimes.INVALID;
+        startZone = null;
+        endZone = null;
+      }
+      else if (component.equals("VALARM")) {
+        alarmLine = lineNo;
+        alarmSeen = 0;
+        alarmAction = null;
+        alarmAttendees = 0;
+        alarmAttachments = 0;
+      }
+      stack.push(new Component(component, lineNo));
+    }
+
+    private void end(String component) {
+      if (stack.isEmpty()) {
+        // paired up when this piece is joined to the ones before it
+        result.unmatched.add(new Component(component, lineNo));
+        return;
+      }
+      Component begin = stack.pop();
+      if (!begin.name.equals(component)) {
+        error(lineNo, "END:" + component + " does not close BEGIN:" + begin.name + " on line "
+            + begin.line);
+      }
+      if (begin.name.equals("VEVENT")) {
+        endEvent();
+      }
+      else if (begin.name.equals("VALARM")) {
+        endAlarm();
+      }
+    }
+
+    private void endEvent() {
+      for (String required : new String[] {"UID", "DTSTAMP", "DTSTART"}) {
+        if ((seen & bit(required)) == 0) {
+          error(eventLine, "VEVENT has no " + required);
+        }
+      }
+      if ((seen & bit("DTEND")) != 0 && (seen & bit("DURATION")) != 0) {
+        error(eventLine, "VEVENT has both DTEND and DURATION");
+      }
+      if (start == DateTimes.INVALID || end == DateTimes.INVALID) {
+        return;
+      }
+      if (startKind != endKind) {
+        error(endLine,
+            "DTEND has to be " + KINDS[startKind] + " like DTSTART on line " + startLine);
+      }
+      // times in different zones would need the zones to compare; the prompts never write those
+      else if ((startZone == null ? endZone == null : startZone.equals(endZone)) && end <= start) {
+        error(endLine, "DTEND is not after DTSTART on line " + startLine);
+      }
+    }
+
+    //=========================================
+    // VEVENT properties
+    //=========================================
+
+    private void property(String name, int valueStart, String value) {
+      int bit = bit(name);
+      if (bit != 0) {
+        if ((seen & bit) != 0) {
+          error(lineNo, name + " appears more than once in the VEVENT on line " + eventLine);
+        }
+        seen |= bit;
+      }
+      switch (name) {
+        case "DTSTART":
+          start = dateTime(name, valueStart, value);
+          startKind = kind;
+          startZone = zone;
+          startLine = lineNo;
+          break;
+        case "DTEND":
+          end = dateTime(name, valueStart, value);
+          endKind = kind;
+          endZone = zone;
+          endLine = lineNo;
+          break;
+        case "DTSTAMP":
+          if (dateTime(name, valueStart, value) != DateTimes.INVALID && kind != UTC) {
+            error(lineNo, "DTSTAMP has to be a UTC date-time (3.8.7.2)");
+          }
+          break;
+        case "PRIORITY":
+          if (!isInteger(value) || !CalendarDriver.isValidPriority(Integer.parseInt(value))) {
+            error(lineNo, "PRIORITY has to be 0-9, not " + value);
+          }
+          break;
+        case "SEQUENCE":
+          if (!isInteger(value) || value.startsWith("-")) {
+            error(lineNo, "SEQUENCE has to be a number 0 or more, not " + value);
+          }
+          break;
+        case "CLASS":
+          if (Classification.parse(value) == null) {
+            error(lineNo, "CLASS has to be PUBLIC, PRIVATE or CONFIDENTIAL, not " + value);
+          }
+          break;
+        case "RRULE":
+          try {
+            Recurrence.parse(value);
+          }
+          catch (IllegalArgumentException e) {
+            if (e.getMessage().endsWith("not supported")
+                || e.getMessage().startsWith("FREQ must be")) {
+              warning(lineNo, "RRULE: " + e.getMessage() + "; the event reads as a one-off");
+            }
+            else {
+              error(lineNo, "RRULE: " + e.getMessage());
+            }
+          }
+          break;
+        default:
+          break;
+      }
+      for (String text : TEXT) {
+        if (name.equals(text)) {
+          escapes(name, valueStart);
+        }
+      }
+    }
+
+    //=========================================
+    // VALARM properties
+    //=========================================
+
+    private void alarmProperty(String name, int valueStart, String value) {
+      int bit = alarmBit(name);
+      if (bit != 0) {
+        if ((alarmSeen & bit) != 0) {
+          error(lineNo, name + " appears more than once in the VALARM on line " + alarmLine);
+        }
+        alarmSeen |= bit;
+      }
+      switch (name) {
+        case "TRIGGER":
+          if ("DATE-TIME".equalsIgnoreCase(param("VALUE", valueStart))) {
+            if (dateTime(name, valueStart, value) != DateTimes.INVALID && kind != UTC) {
+              error(lineNo, "TRIGGER;VALUE=DATE-TIME has to be in UTC (3.8.6.3)");
+            }
+          }
+          else if (Alarm.parseDuration(value) == Alarm.NOT_A_DURATION) {
+            error(lineNo, "TRIGGER has to be a duration such as -PT15M, not " + value);
+          }
+          break;
+        case "DURATION":
+          if (Alarm.parseDuration(value) == Alarm.NOT_A_DURATION) {
+            error(lineNo, "DURATION has to be a duration such as PT5M, not " + value);
+          }
+          break;
+        case "REPEAT":
+          if (!isInteger(value) || value.startsWith("-")) {
+            error(lineNo, "REPEAT has to be a number 0 or more, not " + value);
+          }
+          break;
+        case "DESCRIPTION":
+        case "SUMMARY":
+          escapes(name, valueStart);
+          break;
+        case "ACTION":
+          alarmAction = value.toUpperCase();
+          break;
+        case "ATTENDEE":
+          alarmAttendees++;
+          break;
+        case "ATTACH":
+          alarmAttachments++;
+          break;
+        default:
+          break;
+      }
+    }
+
+    private void endAlarm() {
+      for (String required : new String[] {"ACTION", "TRIGGER"}) {
+        if ((alarmSeen & alarmBit(required)) == 0) {
+          error(alarmLine, "VALARM has no " + required);
+        }
+      }
+      if ("EMAIL".equals(alarmAction) || "DISPLAY".equals(alarmAction)) {
+        String[] required = alarmAction.equals("EMAIL") ? new String[] {"DESCRIPTION", "SUMMARY"}
+            : new String[] {"DESCRIPTION"};
+        for (String property : required) {
+          if ((alarmSeen & alarmBit(property)) == 0) {
+            error(alarmLine, alarmAction + " VALARM has no " + property + " (3.6.6)");
+          }
+        }
+      }
+      if ("EMAIL".equals(alarmAction) && alarmAttendees == 0) {
+        error(alarmLine, "EMAIL VALARM has no ATTENDEE (3.6.6)");
+      }
+      if ("AUDIO".equals(alarmAction) && alarmAttachments > 1) {
+        error(alarmLine, "AUDIO VALARM has more than one ATTACH (3.6.6)");
+      }
+      if (((alarmSeen & alarmBit("REPEAT")) == 0) != ((alarmSeen & alarmBit("DURATION")) == 0)) {
+        error(alarmLine, "VALARM has to have both REPEAT and DURATION or neither");
+      }
+    }
+
+    // what the last dateTime() read
+    private int kind;
+    private String zone;
+
+    // a DATE or DATE-TIME value, checked the way the prompts check dates and times
+    private long dateTime(String name, int valueStart, String value) {
+      zone = param("TZID", valueStart);
+      boolean dateParam = "DATE".equalsIgnoreCase(param("VALUE", valueStart));
+      int length = value.length();
+      if (length == 8) {
+        kind = DATE;
+        int date = CalendarDriver.parseDateStr(value);
+        if (date == DateTimes.INVALID) {
+          error(lineNo, name + ": " + value + " is not a valid date");
+          return DateTimes.INVALID;
+        }
+        return DateTimes.pack(date, 0);
+      }
+      if (dateParam) {
+        error(lineNo, name + " is VALUE=DATE but " + value + " is not YYYYMMDD");
+        return DateTimes.INVALID;
+      }
+      if ((length != 15 && length != 16) || value.charAt(8) != 'T'
+          || (length == 16 && value.charAt(15) != 'Z')) {
+        error(lineNo, name + ": " + value + " is not YYYYMMDD, YYYYMMDDTHHMMSS or YYYYMMDDTHHMMSSZ");
+        return DateTimes.INVALID;
+      }
+      kind = length == 16 ? UTC : FLOATING;
+      if (kind == UTC && zone != null) {
+        error(lineNo, name + " is in UTC and cannot have a TZID");
+      }
+      int date = CalendarDriver.parseDateStr(value.substring(0, 8));
+      if (date == DateTimes.INVALID) {
+        error(lineNo, name + ": " + value.substring(0, 8) + " is not a valid date");
+        return DateTimes.INVALID;
+      }
+      String[] units = {"hour", "minute", "second"};
+      int time = 0;
+      for (int unit = CalendarDriver.HOURS; unit <= CalendarDriver.SECS; unit++) {
+        String digits = value.substring(9 + 2 * unit, 11 + 2 * unit);
+        if (CalendarDriver.unitError(unit, digits) != null) {
+          error(lineNo, name + ": " + units[unit] + " " + digits + " is out of range");
+          return DateTimes.INVALID;
+        }
+        time = time * 100 + DateTimes.unitValue(digits);
+      }
+      return DateTimes.pack(date, time);
+    }
+
+    // a TEXT value may only use \\ \; \, \n and \N, and has to escape ; and , (3.3.11)
+    private void escapes(String name, int valueStart) {
+      for (int i = valueStart; i < lineLength; i++) {
+        byte b = line[i];
+        if (b == '\\') {
+          byte next = i + 1 < lineLength ? line[i + 1] : 0;
+          if (next != '\\' && next != ';' && next != ',' && next != 'n' && next != 'N') {
+            error(lineNo, name + ": \\" + (next == 0 ? "" : Character.toString((char) next))
+                + " is not a TEXT escape");
+            return;
+          }
+          i++;
+        }
+        else if (b == ';' || b == ',') {
+          error(lineNo, name + ": '" + (char) b + "' in TEXT has to be escaped as \\" + (char) b);
+          return;
+        }
+      }
+    }
+
+    // a parameter's value before valueStart, without quotes, or null
+    private String param(String param, int valueStart) {
+      int i = 0;
+      while (i < valueStart && line[i] != ';') {
+        i++;
+      }
+      while (i < valueStart - 1) {
+        int nameStart = i + 1;
+        int eq = nameStart;
+        while (eq < valueStart && line[eq] != '=') {
+          eq++;
+        }
+        int to = eq + 1;
+        boolean quoted = false;
+        while (to < valueStart - 1 && (quoted || line[to] != ';')) {
+          if (line[to] == '"') {
+            quoted = !quoted;
+          }
+          to++;
+        }
+        String found = new String(line, nameStart, Math.max(0, eq - nameStart),
+            StandardCharsets.US_ASCII);
+        if (found.equalsIgnoreCase(param) && eq < to) {
+          String value = new String(line, eq + 1, to - eq - 1, StandardCharsets.UTF_8);
+          return value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")
+              ? value.substring(1, value.length() - 1) : value;
+        }
+        i = to;
+      }
+      return null;
+    }
+
+    private boolean validUtf8() {
+      for (int i = 0; i < lineLength; ) {
+        int b = line[i] & 0xFF;
+        int more;
+        if (b < 0x80) {
+          i++;
+          continue;
+        }
+        else if (b >= 0xC2 && b <= 0xDF) {
+          more = 1;
+        }
+        else if (b >= 0xE0 && b <= 0xEF) {
+          more = 2;
+        }
+        else if (b >= 0xF0 && b <= 0xF4) {
+          more = 3;
+        }
+        else {
+          return false;
+        }
+        if (i + more >= lineLength) {
+          return false;
+        }
+        for (int k = 1; k <= more; k++) {
+          if ((line[i + k] & 0xC0) != 0x80) {
+            return false;
+          }
+        }
+        i += more + 1;
+      }
+      return true;
+    }
+  }
+
+  private static boolean isNameChar(byte b) {
+    return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '-';
+  }
+
+  private static boolean isInteger(String value) {
+    int i = value.startsWith("-") || value.startsWith("+") ? 1 : 0;
+    if (i == value.length() || value.length() - i > 9) {
+      return false;
+    }
+    for (; i < value.length(); i++) {
+      if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int bit(String property) {
+    return bit(ONCE, property);
+  }
+
+  private static int alarmBit(String property) {
+    return bit(ALARM_ONCE, property);
+  }
+
+  private static int bit(String[] properties, String property) {
+    for (int i = 0; i < properties.length; i++) {
+      if (properties[i].equals(property)) {
+        return 1 << i;
+      }
+    }
+    return 0;
+  }
+}
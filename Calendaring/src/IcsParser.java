@@ -0,0 +1,729 @@
+package calendaring;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads .ics files back into {@link Event}s.
+ *
+ * The file is memory-mapped a window at a time and scanned as bytes; content lines are unfolded
+ * on the fly into one reusable line buffer, so the heap needed does not depend on the size of
+ * the file. Components are pulled one at a time with {@link #next()}, or pushed to a
+ * {@link Handler} with {@link #parse(Handler)}. Only VEVENT and VTIMEZONE are reported; for each
+ * the byte range and starting line in the file are available too, and the bytes themselves for
+ * tools that copy events without losing what the model leaves out.
+ *
+ * Parsing is lenient: properties the event model has no place for are skipped, and values that
+ * do not parse are left unset rather than failing the whole file.
+ */
+final class IcsParser implements Closeable {
+
+  enum Kind {
+    EVENT, TIMEZONE
+  }
+
+  /** Callback alternative to pulling components with {@link IcsParser#next()}. */
+  interface Handler {
+    void event(Event event, long start, long end) throws IOException;
+
+    default void timezone(String tzid, long start, long end) throws IOException {
+    }
+  }
+
+  // mapping more than this at once buys nothing and costs address space
+  private static final long WINDOW = 1L << 28;
+  private static final int CHUNK = 1 << 16;
+
+  private final FileChannel channel;
+  private final long size;
+  private MappedByteBuffer window;
+  // file offset of the first mapped byte
+  private long windowOffset;
+  // the windows seek() mapped, by offset
+  private final Map<Long, MappedByteBuffer> seekWindows = new HashMap<Long, MappedByteBuffer>();
+
+  // the mapped bytes are copied out a chunk at a time and scanned from here
+  private final byte[] chunk = new byte[CHUNK];
+  private int chunkPos;
+  private int chunkLimit;
+  private long chunkOffset;
+
+  // current unfolded content line
+  private byte[] line = new byte[256];
+  private int lineLength;
+  private long lineOffset;
+  private long lineNumber;
+  private long nextLineNumber = 1;
+  // where the property value starts in line, after the first unquoted ':'
+  private int valueStart;
+
+  private Kind kind;
+  private Event event;
+  private String tzid;
+  private String recurrenceId;
+  private long componentStart;
+  private long componentEnd;
+  private long componentLine;
+
+  IcsParser(Path path) throws IOException {
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    this.size = channel.size();
+  }
+
+  /**
+   * Reads "--read file.ics [--out copy.ics [--utc]]": counts the components and, with --out,
+   * writes them out again through IcsWriter, with --utc in UTC where it can.
+   */
+  static int run(String[] args) {
+    boolean utc = args.length == 5 && args[4].equals("--utc");
+    if (args.length != 2 && !((args.length == 4 || utc) && args[2].equals("--out"))) {
+      System.err.println("Usage: --read file.ics [--out copy.ics [--utc]]");
+      return 2;
+    }
+    long started = System.nanoTime();
+    long[] counts = new long[2];
+    try (IcsParser parser = new IcsParser(Paths.get(args[1]));
+        IcsWriter writer = args.length >= 4 ? new IcsWriter(new FileOutputStream(args[3])) : null) {
+      if (writer != null) {
+        writer.utcTimes(utc);
+        writer.beginCalendar();
+      }
+      parser.parse(new Handler() {
+        @Override
+        public void event(Event event, long start, long end) throws IOException {
+          counts[0]++;
+          if (writer != null) {
+            writer.writeEvent(event);
+          }
+        }
+
+        @Override
+        public void timezone(String tzid, long start, long end) {
+          counts[1]++;
+        }
+      });
+      if (writer != null) {
+        writer.endCalendar();
+      }
+    }
+    catch (IOException e) {
+      System.err.println("Could not read " + args[1] + ": " + e.getMessage());
+      return 1;
+    }
+    System.err.println("Read " + counts[0] + " events and " + counts[1] + " time zones in "
+        + (System.nanoTime() - started) / 1000000 + " ms.");
+    return 0;
+  }
+
+  //=========================================
+  // component API
+  //=========================================
+
+  /** Advances to the next VEVENT or VTIMEZONE. Returns its kind, or null at the end of the file. */
+  Kind next() throws IOException {
+    while (readLine()) {
+      if (!isProperty("BEGIN")) {
+        continue;
+      }
+      componentStart = lineOffset;
+      componentLine = lineNumber;
+      if (valueIs("VEVENT")) {
+        event = readEvent();
+        tzid = null;
+        kind = Kind.EVENT;
+        return kind;
+      }
+      if (valueIs("VTIMEZONE")) {
+        tzid = readTimezone();
+        event = null;
+        recurrenceId = null;
+        kind = Kind.TIMEZONE;
+        return kind;
+      }
+    }
+    kind = null;
+    return null;
+  }
+
+  /**
+   * Moves to {@code offset}, which has to be the start of a line, such as the {@link #start()} of
+   * a component read before, so that {@link #next()} reads on from there. Line numbers are not
+   * known after a seek.
+   *
+   * Seeking maps the file in aligned windows and keeps them, so reading components back in any
+   * order maps each part of the file once.
+   */
+  void seek(long offset) throws IOException {
+    long base = offset - offset % WINDOW;
+    MappedByteBuffer aligned = seekWindows.get(base);
+    if (aligned == null) {
+      aligned = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(WINDOW, size - base));
+      seekWindows.put(base, aligned);
+    }
+    window = aligned;
+    windowOffset = base;
+    window.position((int) (offset - base));
+    chunkOffset = offset;
+    chunkPos = 0;
+    chunkLimit = 0;
+  }
+
+  /** Pushes every remaining component to the handler. */
+  void parse(Handler handler) throws IOException {
+    Kind k;
+    while ((k = next()) != null) {
+      if (k == Kind.EVENT) {
+        handler.event(event, componentStart, componentEnd);
+      }
+      else {
+        handler.timezone(tzid, componentStart, componentEnd);
+      }
+    }
+  }
+
+  /** The event just read, when {@link #next()} returned EVENT. */
+  Event event() {
+    return event;
+  }
+
+  /** The TZID just read, when {@link #next()} returned TIMEZONE. */
+  String tzid() {
+    return tzid;
+  }
+
+  /**
+   * The RECURRENCE-ID of the event just read, parameters and all as they follow the property
+   * name, or null if it is not one occurrence of a series moved or changed on its own. The event
+   * model has no place for it.
+   */
+  String recurrenceId() {
+    return recurrenceId;
+  }
+
+  /** File offset of the BEGIN line of the current component. */
+  long start() {
+    return componentStart;
+  }
+
+  /** File offset just past the line break after its END line. */
+  long end() {
+    return componentEnd;
+  }
+
+  /** Line number (from 1) of the BEGIN line of the current component. */
+  long line() {
+    return componentLine;
+  }
+
+  long size() {
+    return size;
+  }
+
+  /** The bytes of the current component, from {@link #start()} to {@link #end()}. */
+  byte[] bytes() throws IOException {
+    return bytes(componentStart, componentEnd);
+  }
+
+  /** The bytes of the file from {@code from} to {@code to}, e.g. a run of components read. */
+  byte[] bytes(long from, long to) throws IOException {
+    ByteBuffer bytes = ByteBuffer.allocate((int) (to - from));
+    while (bytes.hasRemaining()) {
+      if (channel.read(bytes, from + bytes.position()) < 0) {
+        throw new IOException("the calendar changed while it was being read");
+      }
+    }
+    return bytes.array();
+  }
+
+  //=========================================
+  // components
+  //=========================================
+
+  private Event readEvent() throws IOException {
+    Event.Builder b = Event.builder();
+    recurrenceId = null;
+    int depth = 0;
+    while (readLine()) {
+      if (isProperty("BEGIN") && depth == 0 && valueIs("VALARM")) {
+        readAlarm(b);
+      }
+      else if (isProperty("BEGIN")) {
+        // some other nested component
+        depth++;
+      }
+      else if (isProperty("END")) {
+        if (depth == 0) {
+          break;
+        }
+        depth--;
+      }
+      else if (depth > 0) {
+        continue;
+      }
+      else if (isProperty("DTSTART")) {
+        dateTime(b, true);
+      }
+      else if (isProperty("DTEND")) {
+        dateTime(b, false);
+      }
+      else if (isProperty("UID")) {
+        b.uid(text());
+      }
+      else if (isProperty("DTSTAMP")) {
+        b.dtstamp(utcDateTime());
+      }
+      else if (isProperty("SEQUENCE")) {
+        b.sequence(integer(0));
+      }
+      else if (isProperty("SUMMARY")) {
+        b.summary(text());
+      }
+      else if (isProperty("LOCATION")) {
+        b.location(text());
+      }
+      else if (isProperty("CLASS")) {
+        b.classification(Classification.parse(value()));
+      }
+      else if (isProperty("PRIORITY")) {
+        b.priority(integer(0));
+      }
+      else if (isProperty("ORGANIZER")) {
+        b.organizer(value());
+      }
+      else if (isProperty("ATTENDEE")) {
+        b.attendee(value());
+      }
+      else if (isProperty("RECURRENCE-ID")) {
+        recurrenceId = new String(line, 13, lineLength - 13, StandardCharsets.UTF_8);
+      }
+      else if (isProperty("RRULE")) {
+        try {
+          b.rrule(Recurrence.parse(value()));
+        }
+        catch (IllegalArgumentException e) {
+          // a rule using parts Recurrence does not support; the event is read as a one-off
+        }
+      }
+    }
+    componentEnd = position();
+    return b.build();
+  }
+
+  // a VALARM, up to its END line; one without a TRIGGER that parses is dropped
+  private void readAlarm(Event.Builder b) throws IOException {
+    String action = null;
+    long offset = Alarm.NOT_A_DURATION;
+    boolean relatedToEnd = false;
+    long absolute = DateTimes.INVALID;
+    int repeat = 0;
+    long interval = Alarm.NOT_A_DURATION;
+    String description = null;
+    String summary = null;
+    List<String> attendees = new ArrayList<String>();
+    List<String> attachments = new ArrayList<String>();
+    int depth = 0;
+    while (readLine()) {
+      if (isProperty("BEGIN")) {
+        depth++;
+      }
+      else if (isProperty("END")) {
+        if (depth == 0) {
+          break;
+        }
+        depth--;
+      }
+      else if (depth > 0) {
+        continue;
+      }
+      else if (isProperty("ACTION")) {
+        action = value();
+      }
+      else if (isProperty("TRIGGER")) {
+        relatedToEnd = "END".equalsIgnoreCase(param("RELATED"));
+        if ("DATE-TIME".equalsIgnoreCase(param("VALUE"))) {
+          absolute = utcDateTime();
+        }
+        else {
+          offset = Alarm.parseDuration(value());
+        }
+      }
+      else if (isProperty("REPEAT")) {
+        repeat = integer(0);
+      }
+      else if (isProperty("DURATION")) {
+        interval = Alarm.parseDuration(value());
+      }
+      else if (isProperty("DESCRIPTION")) {
+        description = text();
+      }
+      else if (isProperty("SUMMARY")) {
+        summary = text();
+      }
+      else if (isProperty("ATTENDEE")) {
+        attendees.add(value());
+      }
+      else if (isProperty("ATTACH")) {
+        // parameters and all, so FMTTYPE, ENCODING and VALUE=BINARY are written back as they were
+        attachments.add(new String(line, 6, lineLength - 6, StandardCharsets.UTF_8));
+      }
+    }
+    if (absolute == DateTimes.INVALID && offset == Alarm.NOT_A_DURATION) {
+      return;
+    }
+    // ACTION is required; an alarm that forgot it is most likely meant to be shown
+    if (action == null) {
+      action = "DISPLAY";
+    }
+    Alarm alarm = absolute != DateTimes.INVALID ? Alarm.absolute(action, absolute)
+        : Alarm.relative(action, offset, relatedToEnd);
+    // REPEAT and DURATION only count together
+    if (repeat > 0 && interval > 0) {
+      alarm = alarm.repeat(repeat, interval);
+    }
+    b.alarm(alarm.description(description).summary(summary).attendees(attendees)
+        .attachments(attachments));
+  }
+
+  private String readTimezone() throws IOException {
+    String id = null;
+    int depth = 0;
+    while (readLine()) {
+      if (isProperty("BEGIN")) {
+        depth++;
+      }
+      else if (isProperty("END")) {
+        if (depth == 0) {
+          break;
+        }
+        depth--;
+      }
+      else if (depth == 0 && isProperty("TZID")) {
+        id = value();
+      }
+    }
+    componentEnd = position();
+    return id;
+  }
+
+  // DTSTART decides whether the event is all-day or in UTC; DTEND has to agree with it anyway
+  private void dateTime(Event.Builder b, boolean start) {
+    String zone = param("TZID");
+    if (zone != null) {
+      b.tzid(zone);
+    }
+    int length = lineLength - valueStart;
+    long value = DateTimes.INVALID;
+    if (length == 8) {
+      int date = parseDate(valueStart);
+      if (date != DateTimes.INVALID) {
+        value = DateTimes.pack(date, 0);
+        if (start) {
+          b.dateOnly(true);
+        }
+      }
+    }
+    else if (length == 15 || length == 16) {
+      int date = parseDate(valueStart);
+      int time = parseTime(valueStart + 9);
+      if (date != DateTimes.INVALID && time != DateTimes.INVALID && line[valueStart + 8] == 'T') {
+        value = DateTimes.pack(date, time);
+        if (length == 16 && line[valueStart + 15] == 'Z') {
+          if (start) {
+            b.utc(true);
+          }
+        }
+        else if (length == 16) {
+          value = DateTimes.INVALID;
+        }
+      }
+    }
+    if (start) {
+      b.dtstart(value);
+    }
+    else {
+      b.dtend(value);
+    }
+  }
+
+  // a DATE-TIME that has to be in UTC, as DTSTAMP is
+  private long utcDateTime() {
+    if (lineLength - valueStart != 16 || line[valueStart + 8] != 'T'
+        || line[valueStart + 15] != 'Z') {
+      return DateTimes.INVALID;
+    }
+    int date = parseDate(valueStart);
+    int time = parseTime(valueStart + 9);
+    return date == DateTimes.INVALID || time == DateTimes.INVALID ? DateTimes.INVALID
+        : DateTimes.pack(date, time);
+  }
+
+  //=========================================
+  // content line pieces
+  //=========================================
+
+  private boolean isProperty(String name) {
+    int n = name.length();
+    if (lineLength < n + 1) {
+      return false;
+    }
+    byte after = line[n];
+    if (after != ':' && after != ';') {
+      return false;
+    }
+    return matches(0, name);
+  }
+
+  private boolean valueIs(String expected) {
+    int n = expected.length();
+    if (lineLength - valueStart != n) {
+      return false;
+    }
+    return matches(valueStart, expected);
+  }
+
+  private String value() {
+    return new String(line, valueStart, lineLength - valueStart, StandardCharsets.UTF_8);
+  }
+
+  /** The value with TEXT escapes (3.3.11) undone. */
+  private String text() {
+    int out = valueStart;
+    boolean escaped = false;
+    for (int i = valueStart; i < lineLength; i++) {
+      byte c = line[i];
+      if (c == '\\' && i + 1 < lineLength) {
+        byte e = line[++i];
+        line[out++] = e == 'n' || e == 'N' ? (byte) '\n' : e;
+        escaped = true;
+      }
+      else if (escaped) {
+        line[out++] = c;
+      }
+      else {
+        out++;
+      }
+    }
+    return new String(line, valueStart, out - valueStart, StandardCharsets.UTF_8);
+  }
+
+  private int integer(int fallback) {
+    int value = 0;
+    int i = valueStart;
+    boolean negative = i < lineLength && line[i] == '-';
+    if (negative || (i < lineLength && line[i] == '+')) {
+      i++;
+    }
+    if (i == lineLength || lineLength - i > 9) {
+      return fallback;
+    }
+    for (; i < lineLength; i++) {
+      int d = line[i] - '0';
+      if (d < 0 || d > 9) {
+        return fallback;
+      }
+      value = value * 10 + d;
+    }
+    return negative ? -value : value;
+  }
+
+  /** Value of a parameter on the current line, without quotes, or null if it is absent. */
+  private String param(String name) {
+    int n = name.length();
+    int i = 0;
+    while (i < valueStart && line[i] != ';') {
+      i++;
+    }
+    while (i < valueStart - 1) {
+      // at a ';' that starts a parameter
+      int nameStart = i + 1;
+      int eq = nameStart;
+      while (eq < valueStart && line[eq] != '=') {
+        eq++;
+      }
+      int valueFrom = eq + 1;
+      int valueTo = valueFrom;
+      boolean quoted = valueTo < valueStart && line[valueTo] == '"';
+      if (quoted) {
+        valueTo++;
+        while (valueTo < valueStart && line[valueTo] != '"') {
+          valueTo++;
+        }
+        valueTo++;
+      }
+      while (valueTo < valueStart - 1 && line[valueTo] != ';') {
+        valueTo++;
+      }
+      if (valueTo > valueStart - 1) {
+        valueTo = valueStart - 1;
+      }
+      if (eq - nameStart == n && matches(nameStart, name)) {
+        int from = quoted ? valueFrom + 1 : valueFrom;
+        int to = quoted && line[valueTo - 1] == '"' ? valueTo - 1 : valueTo;
+        return new String(line, from, Math.max(0, to - from), StandardCharsets.UTF_8);
+      }
+      i = valueTo;
+    }
+    return null;
+  }
+
+  // case-insensitive match against an upper case ASCII name
+  private boolean matches(int off, String name) {
+    for (int i = 0; i < name.length(); i++) {
+      int c = line[off + i];
+      if (c >= 'a' && c <= 'z') {
+        c -= 'a' - 'A';
+      }
+      if (c != name.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int parseDate(int off) {
+    int year = digits(off, 4);
+    int month = digits(off + 4, 2);
+    int day = digits(off + 6, 2);
+    if (year < 0 || month < 0 || day < 0 || !DateTimes.isValidDate(year, month, day)) {
+      return DateTimes.INVALID;
+    }
+    return year * 10000 + month * 100 + day;
+  }
+
+  private int parseTime(int off) {
+    int hour = digits(off, 2);
+    int minute = digits(off + 2, 2);
+    int second = digits(off + 4, 2);
+    // 60 is a leap second
+    if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+      return DateTimes.INVALID;
+    }
+    return hour * 10000 + minute * 100 + second;
+  }
+
+  private int digits(int off, int count) {
+    int value = 0;
+    for (int i = off; i < off + count; i++) {
+      int d = line[i] - '0';
+      if (d < 0 || d > 9) {
+        return -1;
+      }
+      value = value * 10 + d;
+    }
+    return value;
+  }
+
+  //=========================================
+  // unfolding line reader over the mapping
+  //=========================================
+
+  /**
+   * Reads the next logical content line into {@link #line}, joining folded continuation lines
+   * and dropping the CRLF. Returns false at the end of the file.
+   */
+  private boolean readLine() throws IOException {
+    lineLength = 0;
+    lineOffset = position();
+    lineNumber = nextLineNumber;
+    if (chunkPos == chunkLimit && !fill()) {
+      return false;
+    }
+    while (true) {
+      byte[] c = chunk;
+      int from = chunkPos;
+      int i = from;
+      int limit = chunkLimit;
+      while (i < limit && c[i] != '\n') {
+        i++;
+      }
+      append(c, from, i - from);
+      if (i == limit) {
+        chunkPos = limit;
+        if (!fill()) {
+          break;
+        }
+        continue;
+      }
+      chunkPos = i + 1;
+      nextLineNumber++;
+      if (lineLength > 0 && line[lineLength - 1] == '\r') {
+        lineLength--;
+      }
+      int peek = peek();
+      if (peek != ' ' && peek != '\t') {
+        break;
+      }
+      // folded: drop the line break and the single whitespace that follows it
+      chunkPos++;
+    }
+
+    valueStart = lineLength;
+    boolean quoted = false;
+    for (int i = 0; i < lineLength; i++) {
+      byte b = line[i];
+      if (b == '"') {
+        quoted = !quoted;
+      }
+      else if (b == ':' && !quoted) {
+        valueStart = i + 1;
+        break;
+      }
+    }
+    return true;
+  }
+
+  private void append(byte[] bytes, int off, int length) {
+    if (lineLength + length > line.length) {
+      line = java.util.Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+    }
+    System.arraycopy(bytes, off, line, lineLength, length);
+    lineLength += length;
+  }
+
+  private long position() {
+    return chunkOffset + chunkPos;
+  }
+
+  private int peek() throws IOException {
+    if (chunkPos == chunkLimit && !fill()) {
+      return -1;
+    }
+    return chunk[chunkPos] & 0xFF;
+  }
+
+  private boolean fill() throws IOException {
+    long offset = chunkOffset + chunkLimit;
+    if (offset >= size) {
+      return false;
+    }
+    if (window == null || !window.hasRemaining()) {
+      window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW, size - offset));
+      windowOffset = offset;
+    }
+    int n = Math.min(CHUNK, window.remaining());
+    window.get(chunk, 0, n);
+    chunkOffset = offset;
+    chunkPos = 0;
+    chunkLimit = n;
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    window = null;
+    seekWindows.clear();
+    channel.close();
+  }
+}
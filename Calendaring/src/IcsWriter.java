@@ -0,0 +1,708 @@
+package calendaring;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Streams an iCalendar object to an OutputStream following RFC 5545: every content line ends in
+ * CRLF, lines longer than 75 octets are folded (3.1) and TEXT values are escaped (3.3.11).
+ *
+ * Values are encoded to UTF-8, escaped and folded in a single pass straight into one reusable
+ * byte buffer, so writing an event does not build any intermediate Strings. Folding never splits
+ * a multi-octet UTF-8 character.
+ *
+ * A calendar is written as {@link #beginCalendar()}, any number of {@link #writeEvent(Event)},
+ * then {@link #endCalendar()}. Events are streamed as they come, so the years each TZID is used
+ * in are only known at the end: {@link #endCalendar()} writes one VTIMEZONE per TZID covering
+ * exactly those years, after the events. RFC 5545 does not fix the order of components.
+ *
+ * DTSTART and DTEND are written with the event's TZID, in UTC, or floating, as the event has
+ * them. With {@link #utcTimes(boolean)} on, local times in a known zone are converted to UTC
+ * instead (see {@link VTimezones#toEpochSecond}), except in recurring events: a series in UTC
+ * would move by an hour against local time at every change to or from daylight saving time.
+ *
+ * The values of CLASS, LOCATION, SUMMARY, ORGANIZER and ATTENDEE, and the TZID of DTSTART and
+ * DTEND, tend to repeat from event to event: a few hundred rooms across millions of events. Each
+ * has a {@link ValueDictionary} of the content lines written for its recent values, so a value is
+ * escaped, folded and encoded the first time and copied as bytes after that. A property starts
+ * a line, so its bytes are the same wherever it is written.
+ */
+final class IcsWriter implements Closeable, Flushable {
+
+  static final String PRODID = "-//Calendaring//CalendarDriver//EN";
+
+  /** Maximum octets on one line, not counting the CRLF. */
+  private static final int MAX_LINE = 75;
+  private static final int BUFFER_SIZE = 1 << 16;
+  // a date-time in the year VTimezones treats as "no end"
+  private static final long OPEN_ENDED = DateTimes.pack(VTimezones.OPEN_ENDED * 10000 + 101, 0);
+  // longest value whose content line is kept, in chars
+  private static final int MAX_KEPT_VALUE = 256;
+
+  private final OutputStream out;
+  private final byte[] buf = new byte[BUFFER_SIZE];
+  private int pos;
+  // octets written on the current line so far
+  private int column;
+  private final byte[] scratch = new byte[10];
+
+  // TZID -> {first year, last year} used by the events written so far
+  private final Map<String, int[]> zones = new LinkedHashMap<String, int[]>();
+  // VTIMEZONE blocks already in a file being appended to, and the years they cover
+  private final Map<String, byte[]> keptBlocks = new HashMap<String, byte[]>();
+  private final Map<String, int[]> keptYears = new HashMap<String, int[]>();
+  // write local times in UTC where that does not change what they mean
+  private boolean utcTimes;
+  // close() writes the closing section if endCalendar() was not called and anything was written
+  private boolean endOnClose;
+  private boolean ended;
+  private boolean wrote;
+
+  // content lines already written, by value; for DTSTART and DTEND, the start of the line up to
+  // the time, by TZID
+  private final ValueDictionary<byte[]> classLines = new ValueDictionary<byte[]>(8, 16);
+  private final ValueDictionary<byte[]> locationLines =
+      new ValueDictionary<byte[]>(4096, MAX_KEPT_VALUE);
+  private final ValueDictionary<byte[]> summaryLines =
+      new ValueDictionary<byte[]>(4096, MAX_KEPT_VALUE);
+  private final ValueDictionary<byte[]> organizerLines =
+      new ValueDictionary<byte[]>(1024, MAX_KEPT_VALUE);
+  private final ValueDictionary<byte[]> attendeeLines =
+      new ValueDictionary<byte[]>(4096, MAX_KEPT_VALUE);
+  private final ValueDictionary<byte[]> startZones = new ValueDictionary<byte[]>(256, 64);
+  private final ValueDictionary<byte[]> endZones = new ValueDictionary<byte[]>(256, 64);
+
+  IcsWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Has {@link #close()} write the VTIMEZONEs and END:VCALENDAR if anything was written but
+   * {@link #endCalendar()} was not called, as when a session is cut short, so a calendar that
+   * was added to is not left without its end.
+   */
+  void endOnClose() {
+    this.endOnClose = true;
+  }
+
+  /** Whether to write the local DTSTART and DTEND of one-off events in UTC from now on. */
+  void utcTimes(boolean utcTimes) {
+    this.utcTimes = utcTimes;
+  }
+
+  //=========================================
+  // components
+  //=========================================
+
+  void beginCalendar() throws IOException {
+    line("BEGIN:VCALENDAR");
+    property("PRODID");
+    text(PRODID, false);
+    endLine();
+    line("VERSION:2.0");
+  }
+
+  /** Starts a calendar with an iTIP (RFC 5546) METHOD, such as PUBLISH or CANCEL. */
+  void beginCalendar(String method) throws IOException {
+    beginCalendar();
+    property("METHOD");
+    text(method, false);
+    endLine();
+  }
+
+  void endCalendar() throws IOException {
+    writeTimezones();
+    line("END:VCALENDAR");
+    ended = true;
+  }
+
+  void writeEvent(Event event) throws IOException {
+    long started = System.nanoTime();
+    useZones(event);
+    line("BEGIN:VEVENT");
+    if (event.getUid() != null) {
+      property("UID");
+      text(event.getUid(), true);
+      endLine();
+    }
+    if (event.getDtstamp() != DateTimes.INVALID) {
+      property("DTSTAMP");
+      dateTime(event.getDtstamp());
+      ascii('Z');
+      endLine();
+    }
+    if (event.getSequence() != 0) {
+      property("SEQUENCE");
+      integer(event.getSequence());
+      endLine();
+    }
+    if (event.getClassification() != null) {
+      keptProperty(classLines, "CLASS", event.getClassification().name(), false);
+    }
+    keptProperty(locationLines, "LOCATION", event.getLocation(), false);
+    if (event.getPriority() != 0) {
+      property("PRIORITY");
+      integer(event.getPriority());
+      endLine();
+    }
+    keptProperty(summaryLines, "SUMMARY", event.getSummary(), false);
+    keptProperty(organizerLines, "ORGANIZER", event.getOrganizer(), true);
+    for (String attendee : event.getAttendees()) {
+      keptProperty(attendeeLines, "ATTENDEE", attendee, true);
+    }
+    dateTimeProperty("DTSTART", event.getDtstart(), event);
+    dateTimeProperty("DTEND", event.getDtend(), event);
+    if (event.getRrule() != null) {
+      property("RRULE");
+      text(event.getRrule().toString(), false);
+      endLine();
+    }
+    for (Alarm alarm : event.getAlarms()) {
+      writeAlarm(alarm, event);
+    }
+    line("END:VEVENT");
+    Metrics.serialized(started);
+  }
+
+  // a VALARM (3.6.6); DISPLAY and EMAIL alarms need a DESCRIPTION and EMAIL alarms a SUMMARY, so
+  // one without is given the event's SUMMARY
+  private void writeAlarm(Alarm alarm, Event event) throws IOException {
+    line("BEGIN:VALARM");
+    property("ACTION");
+    text(alarm.getAction(), false);
+    endLine();
+    if (alarm.isAbsolute()) {
+      text("TRIGGER;VALUE=DATE-TIME:", false);
+      dateTime(alarm.getAbsolute());
+      ascii('Z');
+    }
+    else {
+      text(alarm.isRelatedToEnd() ? "TRIGGER;RELATED=END:" : "TRIGGER:", false);
+      text(Alarm.formatDuration(alarm.getOffset()), false);
+    }
+    endLine();
+    if (alarm.getRepeat() > 0) {
+      property("REPEAT");
+      integer(alarm.getRepeat());
+      endLine();
+      property("DURATION");
+      text(Alarm.formatDuration(alarm.getInterval()), false);
+      endLine();
+    }
+    boolean email = alarm.getAction().equalsIgnoreCase("EMAIL");
+    String reminder = event.getSummary() != null ? event.getSummary() : "Reminder";
+    String description = alarm.getDescription();
+    if (description == null && (email || alarm.getAction().equalsIgnoreCase("DISPLAY"))) {
+      description = reminder;
+    }
+    textProperty("DESCRIPTION", description);
+    textProperty("SUMMARY", alarm.getSummary() == null && email ? reminder : alarm.getSummary());
+    for (String attendee : alarm.getAttendees()) {
+      addressProperty("ATTENDEE", attendee);
+    }
+    for (String attachment : alarm.getAttachments()) {
+      text("ATTACH", false);
+      text(attachment, false);
+      endLine();
+    }
+    line("END:VALARM");
+  }
+
+  /**
+   * Writes the VEVENT that cancels {@code event} in a METHOD:CANCEL calendar: its UID, SUMMARY,
+   * ORGANIZER and DTSTART, STATUS:CANCELLED and a SEQUENCE one past its own. {@code dtstamp} is
+   * packed UTC. For one occurrence of a series, {@code recurrenceId} is its RECURRENCE-ID as
+   * {@link IcsParser#recurrenceId()} gives it, so only that occurrence is cancelled.
+   */
+  void writeCancel(Event event, String recurrenceId, long dtstamp) throws IOException {
+    long started = System.nanoTime();
+    useZones(event);
+    line("BEGIN:VEVENT");
+    textProperty("UID", event.getUid());
+    if (recurrenceId != null) {
+      text("RECURRENCE-ID", false);
+      text(recurrenceId, false);
+      endLine();
+    }
+    property("DTSTAMP");
+    dateTime(dtstamp);
+    ascii('Z');
+    endLine();
+    property("SEQUENCE");
+    integer(event.getSequence() + 1);
+    endLine();
+    textProperty("SUMMARY", event.getSummary());
+    addressProperty("ORGANIZER", event.getOrganizer());
+    dateTimeProperty("DTSTART", event.getDtstart(), event);
+    line("STATUS:CANCELLED");
+    line("END:VEVENT");
+    Metrics.serialized(started);
+  }
+
+  /**
+   * Writes a VFREEBUSY for [from, to) with one FREEBUSY period per busy interval. Times are epoch
+   * seconds, written in UTC; {@code busy} holds {start0, end0, start1, end1, ...}.
+   */
+  void writeFreeBusy(long from, long to, long[] busy) throws IOException {
+    line("BEGIN:VFREEBUSY");
+    property("UID");
+    text(UUID.randomUUID() + "@calendaring", false);
+    endLine();
+    property("DTSTAMP");
+    utcDateTime(System.currentTimeMillis() / 1000);
+    endLine();
+    property("DTSTART");
+    utcDateTime(from);
+    endLine();
+    property("DTEND");
+    utcDateTime(to);
+    endLine();
+    for (int i = 0; i + 1 < busy.length; i += 2) {
+      property("FREEBUSY");
+      utcDateTime(busy[i]);
+      ascii('/');
+      utcDateTime(busy[i + 1]);
+      endLine();
+    }
+    line("END:VFREEBUSY");
+  }
+
+  /** Notes the VTIMEZONE {@code event} needs, for events copied in with {@link #raw(byte[])}. */
+  void useZones(Event event) {
+    if (event.getTzid() != null && !inUtc(event)) {
+      zonesOf(event);
+    }
+  }
+
+  private void zonesOf(Event event) {
+    useZone(event.getTzid(), event.getDtstart(), event.getDtend());
+    Recurrence rrule = event.getRrule();
+    if (rrule != null) {
+      // COUNT is not worth expanding just for this; treat it as open ended
+      useZone(event.getTzid(), rrule.getUntil() == DateTimes.INVALID ? OPEN_ENDED : rrule.getUntil(),
+          DateTimes.INVALID);
+    }
+  }
+
+  /**
+   * Copies a VEVENT as it was read from a calendar, {@code vevent} being its bytes and
+   * {@code event} what the parser made of them, so nothing the model leaves out is lost, and
+   * notes the VTIMEZONE it needs. With {@link #utcTimes(boolean)} on, its DTSTART and DTEND are
+   * rewritten in UTC where {@link #writeEvent(Event)} would write them so.
+   */
+  void copyEvent(Event event, byte[] vevent) throws IOException {
+    long started = System.nanoTime();
+    boolean converted = inUtc(event);
+    if (converted) {
+      vevent = RawEvents.replace(vevent, "DTSTART", "DTSTART:" + utc(event, event.getDtstart()),
+          false);
+      if (event.getDtend() != DateTimes.INVALID) {
+        vevent = RawEvents.replace(vevent, "DTEND", "DTEND:" + utc(event, event.getDtend()), false);
+      }
+    }
+    // a RECURRENCE-ID or EXDATE can still name the zone when DTSTART no longer does
+    if (event.getTzid() != null && !event.isUtc() && (!converted || RawEvents.usesZone(vevent))) {
+      zonesOf(event);
+    }
+    raw(vevent);
+    Metrics.serialized(started);
+  }
+
+  // YYYYMMDDTHHMMSSZ of a local time of event
+  private static String utc(Event event, long dateTime) {
+    long utc = DateTimes.fromEpochSecond(VTimezones.toEpochSecond(event.getTzid(), dateTime));
+    return String.format("%08dT%06dZ", DateTimes.date(utc), DateTimes.time(utc));
+  }
+
+  /** Notes that the calendar needs a VTIMEZONE for {@code tzid} covering the given times. */
+  void useZone(String tzid, long start, long end) {
+    int[] years = zones.get(tzid);
+    if (years == null) {
+      years = new int[] {Integer.MAX_VALUE, Integer.MIN_VALUE};
+      zones.put(tzid, years);
+    }
+    widen(years, start);
+    widen(years, end);
+  }
+
+  private static void widen(int[] years, long dateTime) {
+    if (dateTime != DateTimes.INVALID) {
+      int year = DateTimes.date(dateTime) / 10000;
+      years[0] = Math.min(years[0], year);
+      years[1] = Math.max(years[1], year);
+    }
+  }
+
+  /**
+   * Carries over a VTIMEZONE that is already in the file being appended to. It is written again
+   * as is by {@link #writeTimezones()}, unless events written since need years outside
+   * fromYear-toYear, in which case the zone is rendered afresh over the wider range.
+   */
+  void keepTimezone(String tzid, int fromYear, int toYear, byte[] block) {
+    useZone(tzid, DateTimes.pack(fromYear * 10000 + 101, 0), DateTimes.pack(toYear * 10000 + 101, 0));
+    keptBlocks.put(tzid, block);
+    keptYears.put(tzid, new int[] {fromYear, toYear});
+  }
+
+  /**
+   * Writes the VTIMEZONE of every zone used so far and forgets them. Zones the tz database does
+   * not know are skipped.
+   */
+  void writeTimezones() throws IOException {
+    for (Map.Entry<String, int[]> zone : zones.entrySet()) {
+      int[] years = zone.getValue();
+      if (years[0] > years[1]) {
+        // no dates at all; describe the zone as it is this year
+        years[0] = years[1] = java.time.Year.now().getValue();
+      }
+      byte[] block = keptBlocks.get(zone.getKey());
+      if (block == null || !Arrays.equals(years, keptYears.get(zone.getKey()))) {
+        byte[] rendered = VTimezones.render(zone.getKey(), years[0], years[1]);
+        // a zone the tz database does not know keeps whatever definition it came with
+        block = rendered != null ? rendered : block;
+      }
+      if (block != null) {
+        raw(block);
+      }
+    }
+    zones.clear();
+    keptBlocks.clear();
+    keptYears.clear();
+  }
+
+  /** Copies bytes that are already complete, folded content lines. */
+  void raw(byte[] bytes) throws IOException {
+    raw(bytes, bytes.length);
+  }
+
+  /** Copies the first {@code length} of {@code bytes}, which are complete content lines. */
+  void raw(byte[] bytes, int length) throws IOException {
+    if (length > buf.length - pos) {
+      drain();
+      if (length > buf.length) {
+        long started = System.nanoTime();
+        out.write(bytes, 0, length);
+        wrote = true;
+        Metrics.flushed(started, length);
+        return;
+      }
+    }
+    System.arraycopy(bytes, 0, buf, pos, length);
+    pos += length;
+  }
+
+  //=========================================
+  // content lines
+  //=========================================
+
+  /** Writes a whole content line that needs no escaping, e.g. "BEGIN:VEVENT". */
+  void line(String content) throws IOException {
+    text(content, false);
+    endLine();
+  }
+
+  /** Starts a content line with the property name; follow with a value and {@link #endLine()}. */
+  void property(String name) throws IOException {
+    text(name, false);
+    ascii(':');
+  }
+
+  void textProperty(String name, String value) throws IOException {
+    if (value != null) {
+      property(name);
+      text(value, true);
+      endLine();
+    }
+  }
+
+  /** A CAL-ADDRESS (3.3.3) value; a bare e-mail address is written as a mailto: URI. */
+  void addressProperty(String name, String address) throws IOException {
+    if (address != null) {
+      property(name);
+      if (address.indexOf(':') < 0) {
+        text("mailto:", false);
+      }
+      text(address, false);
+      endLine();
+    }
+  }
+
+  // a text or address property whose values repeat: copied if this value was written lately,
+  // else written and kept
+  private void keptProperty(ValueDictionary<byte[]> lines, String name, String value,
+      boolean address) throws IOException {
+    if (value == null) {
+      return;
+    }
+    byte[] line = lines.get(value);
+    if (line != null) {
+      raw(line);
+      return;
+    }
+    boolean keep = lines.admit(value);
+    if (keep) {
+      // room for the whole line, so it can be copied out of buf: at most three octets a char,
+      // "mailto:" and the folds
+      ensure(2 * (name.length() + 8 + 3 * value.length()) + 2);
+    }
+    int start = pos;
+    if (address) {
+      addressProperty(name, value);
+    }
+    else {
+      textProperty(name, value);
+    }
+    if (keep) {
+      lines.put(value, Arrays.copyOfRange(buf, start, pos));
+    }
+  }
+
+  void dateTimeProperty(String name, long dateTime) throws IOException {
+    if (dateTime != DateTimes.INVALID) {
+      property(name);
+      dateTime(dateTime);
+      endLine();
+    }
+  }
+
+  // DTSTART/DTEND of an event: a DATE for all-day events, otherwise UTC, local with its TZID, or
+  // floating
+  private void dateTimeProperty(String name, long dateTime, Event event) throws IOException {
+    if (dateTime == DateTimes.INVALID) {
+      return;
+    }
+    if (event.isDateOnly()) {
+      text(name, false);
+      text(";VALUE=DATE:", false);
+      digits(DateTimes.date(dateTime), 8);
+    }
+    else if (event.isUtc()) {
+      property(name);
+      dateTime(dateTime);
+      ascii('Z');
+    }
+    else if (inUtc(event)) {
+      property(name);
+      utcDateTime(VTimezones.toEpochSecond(event.getTzid(), dateTime));
+    }
+    else if (event.getTzid() != null) {
+      zonePrefix(name.equals("DTSTART") ? startZones : endZones, name, event.getTzid());
+      dateTime(dateTime);
+    }
+    else {
+      property(name);
+      dateTime(dateTime);
+    }
+    endLine();
+  }
+
+  // NAME;TZID=zone: at the start of a line, copied if it was written before and is short enough
+  // not to fold
+  private void zonePrefix(ValueDictionary<byte[]> prefixes, String name, String tzid)
+      throws IOException {
+    byte[] prefix = prefixes.get(tzid);
+    if (prefix != null) {
+      raw(prefix);
+      column = prefix.length;
+      return;
+    }
+    int start = pos;
+    text(name, false);
+    text(";TZID=", false);
+    paramValue(tzid);
+    ascii(':');
+    // nothing drained or folded in between
+    if (pos - start == column && column < MAX_LINE && prefixes.admit(tzid)) {
+      prefixes.put(tzid, Arrays.copyOfRange(buf, start, pos));
+    }
+  }
+
+  // whether a local time of the event is written converted to UTC
+  private boolean inUtc(Event event) {
+    return utcTimes && !event.isUtc() && !event.isDateOnly() && event.getRrule() == null
+        && VTimezones.canonicalId(event.getTzid()) != null;
+  }
+
+  // a parameter value (3.2), quoted if it has a character that would end it
+  private void paramValue(String value) throws IOException {
+    boolean quote = false;
+    for (int i = 0; i < value.length() && !quote; i++) {
+      char c = value.charAt(i);
+      quote = c == ':' || c == ';' || c == ',';
+    }
+    if (quote) {
+      ascii('"');
+    }
+    text(value, false);
+    if (quote) {
+      ascii('"');
+    }
+  }
+
+  /** Writes a packed yyyyMMddHHmmss value as YYYYMMDDTHHMMSS. */
+  void dateTime(long dateTime) throws IOException {
+    digits(DateTimes.date(dateTime), 8);
+    ascii('T');
+    digits(DateTimes.time(dateTime), 6);
+  }
+
+  /** Writes epoch seconds as a UTC date-time, YYYYMMDDTHHMMSSZ. */
+  void utcDateTime(long epochSecond) throws IOException {
+    dateTime(DateTimes.fromEpochSecond(epochSecond));
+    ascii('Z');
+  }
+
+  void integer(int value) throws IOException {
+    if (value < 0) {
+      ascii('-');
+      value = -value;
+    }
+    int length = 1;
+    for (int v = value; v >= 10; v /= 10) {
+      length++;
+    }
+    digits(value, length);
+  }
+
+  void endLine() throws IOException {
+    ensure(2);
+    buf[pos++] = '\r';
+    buf[pos++] = '\n';
+    column = 0;
+  }
+
+  /**
+   * Encodes {@code value} as UTF-8, folding as needed. With {@code escape} set, backslash,
+   * semicolon, comma and newlines are escaped as TEXT requires.
+   */
+  void text(CharSequence value, boolean escape) throws IOException {
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        if (escape) {
+          switch (c) {
+            case '\\':
+            case ';':
+            case ',':
+              ascii('\\');
+              break;
+            case '\r':
+              // a CRLF pair is one line break
+              if (i + 1 < length && value.charAt(i + 1) == '\n') {
+                continue;
+              }
+              ascii('\\');
+              c = 'n';
+              break;
+            case '\n':
+              ascii('\\');
+              c = 'n';
+              break;
+            default:
+              break;
+          }
+        }
+        ascii(c);
+      }
+      else if (c < 0x800) {
+        fold(2);
+        buf[pos++] = (byte) (0xC0 | (c >> 6));
+        buf[pos++] = (byte) (0x80 | (c & 0x3F));
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, value.charAt(++i));
+        fold(4);
+        buf[pos++] = (byte) (0xF0 | (cp >> 18));
+        buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+        buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+      }
+      else if (Character.isSurrogate(c)) {
+        // unpaired surrogate, not encodable
+        ascii('?');
+      }
+      else {
+        fold(3);
+        buf[pos++] = (byte) (0xE0 | (c >> 12));
+        buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        buf[pos++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  private void ascii(char c) throws IOException {
+    fold(1);
+    buf[pos++] = (byte) c;
+  }
+
+  // zero padded to width
+  private void digits(int value, int width) throws IOException {
+    for (int i = width - 1; i >= 0; i--) {
+      scratch[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    for (int i = 0; i < width; i++) {
+      fold(1);
+      buf[pos++] = scratch[i];
+    }
+  }
+
+  /**
+   * Makes room for the next {@code octets} of one character, first breaking the line if they
+   * would take it past 75 octets.
+   */
+  private void fold(int octets) throws IOException {
+    ensure(octets + 3);
+    if (column + octets > MAX_LINE) {
+      buf[pos++] = '\r';
+      buf[pos++] = '\n';
+      buf[pos++] = ' ';
+      column = 1;
+    }
+    column += octets;
+  }
+
+  private void ensure(int octets) throws IOException {
+    if (pos + octets > buf.length) {
+      drain();
+    }
+  }
+
+  private void drain() throws IOException {
+    if (pos > 0) {
+      wrote = true;
+      long started = System.nanoTime();
+      out.write(buf, 0, pos);
+      Metrics.flushed(started, pos);
+    }
+    pos = 0;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    drain();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (endOnClose && !ended && (wrote || pos > 0)) {
+        endCalendar();
+      }
+      drain();
+    }
+    finally {
+      out.close();
+    }
+  }
+}
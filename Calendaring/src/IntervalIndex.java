@@ -0,0 +1,179 @@
+package calendaring;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * An augmented interval tree over half-open [start, end) intervals of longs, each tagged with an
+ * int id, answering "which intervals overlap this one" in O(log n + k).
+ *
+ * The tree is a treap ordered by start, where every node also keeps the largest end in its
+ * subtree so that queries can skip subtrees ending before the query starts. Nodes live in
+ * parallel primitive arrays rather than objects: a million intervals take about 40 MB, with no
+ * per-interval allocation or pointer chasing through the heap. Priorities come from a fixed
+ * seed, so the shape of the tree (and the order ids are reported in) is repeatable, and sorted
+ * input, which is common for calendar exports, does not degrade it to a list.
+ */
+final class IntervalIndex {
+
+  private static final int NIL = -1;
+
+  private long[] start;
+  private long[] end;
+  private long[] maxEnd;
+  private int[] left;
+  private int[] right;
+  private int[] priority;
+  private int[] id;
+  private int size;
+  private int root = NIL;
+  private int seed = 0x2545F491;
+
+  // explicit stack for queries
+  private int[] stack = new int[64];
+
+  IntervalIndex() {
+    this(1024);
+  }
+
+  IntervalIndex(int capacity) {
+    capacity = Math.max(capacity, 16);
+    start = new long[capacity];
+    end = new long[capacity];
+    maxEnd = new long[capacity];
+    left = new int[capacity];
+    right = new int[capacity];
+    priority = new int[capacity];
+    id = new int[capacity];
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Adds [start, end) under {@code id}. Empty intervals are kept but never overlap anything. */
+  void add(long start, long end, int id) {
+    if (size == this.start.length) {
+      grow();
+    }
+    int n = size++;
+    this.start[n] = start;
+    this.end[n] = end;
+    this.maxEnd[n] = end;
+    this.left[n] = NIL;
+    this.right[n] = NIL;
+    this.id[n] = id;
+    // xorshift; only has to look random
+    seed ^= seed << 13;
+    seed ^= seed >>> 17;
+    seed ^= seed << 5;
+    this.priority[n] = seed;
+    root = insert(root, n);
+  }
+
+  private int insert(int node, int n) {
+    if (node == NIL) {
+      return n;
+    }
+    if (start[n] < start[node]) {
+      left[node] = insert(left[node], n);
+      if (priority[left[node]] > priority[node]) {
+        node = rotateRight(node);
+      }
+    }
+    else {
+      right[node] = insert(right[node], n);
+      if (priority[right[node]] > priority[node]) {
+        node = rotateLeft(node);
+      }
+    }
+    update(node);
+    return node;
+  }
+
+  private int rotateRight(int node) {
+    int l = left[node];
+    left[node] = right[l];
+    right[l] = node;
+    update(node);
+    return l;
+  }
+
+  private int rotateLeft(int node) {
+    int r = right[node];
+    right[node] = left[r];
+    left[r] = node;
+    update(node);
+    return r;
+  }
+
+  private void update(int node) {
+    long max = end[node];
+    if (left[node] != NIL) {
+      max = Math.max(max, maxEnd[left[node]]);
+    }
+    if (right[node] != NIL) {
+      max = Math.max(max, maxEnd[right[node]]);
+    }
+    maxEnd[node] = max;
+  }
+
+  private void grow() {
+    int capacity = start.length + (start.length >> 1);
+    start = Arrays.copyOf(start, capacity);
+    end = Arrays.copyOf(end, capacity);
+    maxEnd = Arrays.copyOf(maxEnd, capacity);
+    left = Arrays.copyOf(left, capacity);
+    right = Arrays.copyOf(right, capacity);
+    priority = Arrays.copyOf(priority, capacity);
+    id = Arrays.copyOf(id, capacity);
+  }
+
+  //=========================================
+  // queries
+  //=========================================
+
+  /** Passes the id of every interval overlapping [from, to) to {@code action}. */
+  void forEachOverlap(long from, long to, IntConsumer action) {
+    search(from, to, action);
+  }
+
+  /** The id of some interval overlapping [from, to), or -1 if there is none. */
+  int firstOverlap(long from, long to) {
+    return search(from, to, null);
+  }
+
+  // reports every overlap to action, or with no action stops at the first and returns its id
+  private int search(long from, long to, IntConsumer action) {
+    if (from >= to || root == NIL) {
+      return -1;
+    }
+    int top = 0;
+    stack[top++] = root;
+    while (top > 0) {
+      int node = stack[--top];
+      if (maxEnd[node] <= from) {
+        // everything below ends before the query starts
+        continue;
+      }
+      if (top + 2 > stack.length) {
+        stack = Arrays.copyOf(stack, stack.length * 2);
+      }
+      if (left[node] != NIL) {
+        stack[top++] = left[node];
+      }
+      if (start[node] < to) {
+        if (end[node] > from && start[node] < end[node]) {
+          if (action == null) {
+            return id[node];
+          }
+          action.accept(id[node]);
+        }
+        if (right[node] != NIL) {
+          stack[top++] = right[node];
+        }
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,365 @@
+package calendaring;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Counters and latency histograms for the paths that write calendars, kept in one registry.
+ *
+ * Recording is an increment of a {@link LongAdder} or of one slot of a histogram's
+ * {@link AtomicLongArray}: no locks, and nothing allocated per call. Histograms keep eight
+ * buckets per power of two of nanoseconds, so any percentile is known to within 12.5% in
+ * 500 longs however many values went in.
+ *
+ * Besides the built-in metrics, any part of the program can register a {@link #counter},
+ * {@link #histogram} or {@link #gauge} of its own by name. {@link #reportAtExit} prints every
+ * registered metric, sorted by name, to stdout or a file when the JVM exits; CalendarDriver does
+ * that for --metrics (-|FILE) ahead of any other arguments.
+ *
+ * When the JVM is started with a recording (-XX:StartFlightRecording), the same numbers are
+ * visible to Java Flight Recorder: a Calendaring Statistics event is emitted every second, and
+ * each hand-off of written bytes (a {@link Flush}, one per 64 KB buffer) and each force to disk
+ * (a {@link Force}) is an event of its own, allocated only when a recording wants it. Per-event
+ * serialization goes into the histogram only, since a JFR event per VEVENT would cost more than
+ * writing it.
+ */
+final class Metrics {
+
+  /** What a prompt answer or an imported row can be rejected for; ROW is a row that is not one. */
+  enum Field {
+    VERSION, TZID, CLASS, PRIORITY, DTSTART, DTEND, RRULE, ORGANIZER, ATTENDEE, ALARM, CONFLICT,
+    ANSWER, ROW
+  }
+
+  private static final Map<String, LongSupplier> GAUGES =
+      new ConcurrentSkipListMap<String, LongSupplier>();
+  private static final Map<String, LongAdder> COUNTERS =
+      new ConcurrentSkipListMap<String, LongAdder>();
+  private static final Map<String, Histogram> HISTOGRAMS =
+      new ConcurrentSkipListMap<String, Histogram>();
+
+  static final LongAdder EVENTS_WRITTEN = counter("events.written");
+  static final LongAdder BYTES_WRITTEN = counter("bytes.written");
+  /** Nanoseconds to serialize one VEVENT. */
+  static final Histogram SERIALIZE = histogram("event.serialize.ns");
+  /** Nanoseconds to hand buffered bytes on to the output stream. */
+  static final Histogram FLUSH = histogram("flush.ns");
+  /** Nanoseconds to force written bytes to disk. */
+  static final Histogram FORCE = histogram("force.ns");
+  private static final LongAdder[] INVALID = new LongAdder[Field.values().length];
+
+  // null unless the JVM started with a recording; registering event types costs a few hundred
+  // milliseconds of startup that a run nobody is recording should not pay
+  private static final EventType FLUSH_EVENTS = eventType(Flush.class);
+  private static final EventType FORCE_EVENTS = eventType(Force.class);
+
+  static {
+    for (Field field : Field.values()) {
+      INVALID[field.ordinal()] = counter("invalid." + field.name().toLowerCase());
+    }
+    if (FLUSH_EVENTS != null) {
+      FlightRecorder.addPeriodicEvent(Statistics.class, Metrics::emitStatistics);
+    }
+  }
+
+  private Metrics() {
+  }
+
+  //=========================================
+  // registry
+  //=========================================
+
+  /**
+   * The counter registered as {@code name}, created if need be; a name already taken by a
+   * {@link #gauge} is an IllegalArgumentException.
+   */
+  static LongAdder counter(String name) {
+    LongAdder created = new LongAdder();
+    LongAdder existing = COUNTERS.putIfAbsent(name, created);
+    if (existing != null) {
+      return existing;
+    }
+    try {
+      gauge(name, created::sum);
+    }
+    catch (IllegalArgumentException e) {
+      // the name is a gauge's: the adder would never be reported
+      COUNTERS.remove(name, created);
+      throw e;
+    }
+    return created;
+  }
+
+  /** Registers a value that is read only when the metrics are reported. */
+  static void gauge(String name, LongSupplier value) {
+    if (GAUGES.putIfAbsent(name, value) != null) {
+      throw new IllegalArgumentException(name + " is already registered");
+    }
+  }
+
+  /** The histogram registered as {@code name}, created if need be. */
+  static Histogram histogram(String name) {
+    return HISTOGRAMS.computeIfAbsent(name, k -> new Histogram());
+  }
+
+  /** Counts a value rejected by the prompts or the bulk importer. */
+  static void invalid(Field field) {
+    INVALID[field.ordinal()].increment();
+  }
+
+  /** Records a VEVENT serialized since {@code startNanos}. */
+  static void serialized(long startNanos) {
+    SERIALIZE.record(System.nanoTime() - startNanos);
+    EVENTS_WRITTEN.increment();
+  }
+
+  /** Records {@code bytes} handed to the output, which took since {@code startNanos}. */
+  static void flushed(long startNanos, int bytes) {
+    long nanos = System.nanoTime() - startNanos;
+    FLUSH.record(nanos);
+    BYTES_WRITTEN.add(bytes);
+    if (FLUSH_EVENTS != null && FLUSH_EVENTS.isEnabled()) {
+      Flush event = new Flush();
+      event.bytes = bytes;
+      event.nanos = nanos;
+      event.commit();
+    }
+  }
+
+  /** Records a force to disk that took since {@code startNanos}. */
+  static void forced(long startNanos) {
+    long nanos = System.nanoTime() - startNanos;
+    FORCE.record(nanos);
+    if (FORCE_EVENTS != null && FORCE_EVENTS.isEnabled()) {
+      Force event = new Force();
+      event.nanos = nanos;
+      event.commit();
+    }
+  }
+
+  //=========================================
+  // reporting
+  //=========================================
+
+  /** Every registered metric, one per line, sorted by name. */
+  static List<String> report() {
+    List<String> lines = new ArrayList<String>();
+    for (Map.Entry<String, LongSupplier> gauge : GAUGES.entrySet()) {
+      lines.add(gauge.getKey() + " " + gauge.getValue().getAsLong());
+    }
+    for (Map.Entry<String, Histogram> histogram : HISTOGRAMS.entrySet()) {
+      lines.add(histogram.getKey() + " " + histogram.getValue());
+    }
+    return lines;
+  }
+
+  /** Writes {@link #report()} to stdout ("-") or to a file when the JVM exits. */
+  static void reportAtExit(String destination) {
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      List<String> lines = report();
+      if (destination.equals("-")) {
+        PrintStream out = System.out;
+        lines.forEach(out::println);
+        out.flush();
+        return;
+      }
+      try {
+        Files.write(Path.of(destination), lines, StandardCharsets.UTF_8);
+      }
+      catch (IOException e) {
+        System.err.println("Could not write metrics to " + destination + ": " + e.getMessage());
+      }
+    }, "metrics-report"));
+  }
+
+  private static EventType eventType(Class<? extends jdk.jfr.Event> type) {
+    try {
+      return FlightRecorder.isInitialized() ? EventType.getEventType(type) : null;
+    }
+    catch (RuntimeException | LinkageError e) {
+      return null;
+    }
+  }
+
+  private static void emitStatistics() {
+    Statistics event = new Statistics();
+    event.eventsWritten = EVENTS_WRITTEN.sum();
+    event.bytesWritten = BYTES_WRITTEN.sum();
+    long invalid = 0;
+    for (LongAdder counter : INVALID) {
+      invalid += counter.sum();
+    }
+    event.invalidValues = invalid;
+    event.serializeP50 = SERIALIZE.percentile(50);
+    event.serializeP99 = SERIALIZE.percentile(99);
+    event.serializeMax = SERIALIZE.max();
+    event.commit();
+  }
+
+  //=========================================
+  // histograms
+  //=========================================
+
+  /**
+   * Counts of non-negative values in buckets: one per value below 16, then eight per power of
+   * two, each covering an eighth of it.
+   */
+  static final class Histogram {
+    private static final int SUB_BITS = 3;
+    private static final int LINEAR = 2 << SUB_BITS;
+    private static final int BUCKETS = LINEAR + (64 - SUB_BITS - 1) * (1 << SUB_BITS);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+      if (value < 0) {
+        value = 0;
+      }
+      counts.incrementAndGet(bucket(value));
+      sum.add(value);
+      long seen = max.get();
+      while (value > seen && !max.compareAndSet(seen, value)) {
+        seen = max.get();
+      }
+    }
+
+    private static int bucket(long value) {
+      if (value < LINEAR) {
+        return (int) value;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+      return LINEAR + (exponent - SUB_BITS - 1) * (1 << SUB_BITS) + sub;
+    }
+
+    // the largest value that falls in bucket i
+    private static long upperBound(int i) {
+      if (i < LINEAR) {
+        return i;
+      }
+      int exponent = (i - LINEAR) / (1 << SUB_BITS) + SUB_BITS + 1;
+      int sub = (i - LINEAR) % (1 << SUB_BITS);
+      long low = (1L << exponent) + ((long) sub << (exponent - SUB_BITS));
+      return low + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    long count() {
+      long count = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        count += counts.get(i);
+      }
+      return count;
+    }
+
+    long max() {
+      return max.get();
+    }
+
+    /** The value {@code percent}% of the recorded values are at or below, to within a bucket. */
+    long percentile(double percent) {
+      long count = count();
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(count * percent / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts.get(i);
+        if (seen >= Math.max(rank, 1)) {
+          return Math.min(upperBound(i), max.get());
+        }
+      }
+      return max.get();
+    }
+
+    @Override
+    public String toString() {
+      long count = count();
+      return "count=" + count + " mean=" + (count == 0 ? 0 : sum.sum() / count) + " p50="
+          + percentile(50) + " p90=" + percentile(90) + " p99=" + percentile(99) + " max=" + max();
+    }
+  }
+
+  //=========================================
+  // JFR events
+  //=========================================
+
+  @Name("calendaring.Statistics")
+  @Label("Calendaring Statistics")
+  @Category("Calendaring")
+  @Period("1 s")
+  @StackTrace(false)
+  static final class Statistics extends jdk.jfr.Event {
+    @Label("Events Written")
+    long eventsWritten;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+
+    @Label("Invalid Values")
+    @Description("Prompt answers and imported rows rejected, all fields together")
+    long invalidValues;
+
+    @Label("Serialize p50")
+    @Timespan
+    long serializeP50;
+
+    @Label("Serialize p99")
+    @Timespan
+    long serializeP99;
+
+    @Label("Serialize Max")
+    @Timespan
+    long serializeMax;
+  }
+
+  @Name("calendaring.Flush")
+  @Label("Calendar Flush")
+  @Description("Written calendar bytes handed on to the output")
+  @Category("Calendaring")
+  @StackTrace(false)
+  static final class Flush extends jdk.jfr.Event {
+    @Label("Bytes")
+    @DataAmount
+    int bytes;
+
+    @Label("Time Taken")
+    @Timespan
+    long nanos;
+  }
+
+  @Name("calendaring.Force")
+  @Label("Calendar Force")
+  @Description("Written calendar bytes forced to disk")
+  @Category("Calendaring")
+  @StackTrace(false)
+  static final class Force extends jdk.jfr.Event {
+    @Label("Time Taken")
+    @Timespan
+    long nanos;
+  }
+}
@@ -0,0 +1,159 @@
+package calendaring;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * VEVENTs as the bytes they were read as (see {@link IcsParser#bytes()}), for the tools that copy
+ * events from one calendar to another: DESCRIPTION, EXDATE, RECURRENCE-ID and whatever else the
+ * event model has no place for go through untouched.
+ *
+ * Lines may end in CRLF or, in files written by hand, in LF alone. A folded line (3.1) counts as
+ * the one content line it unfolds to.
+ */
+final class RawEvents {
+
+  private static final byte[] TZID = ";TZID=".getBytes(StandardCharsets.US_ASCII);
+
+  private RawEvents() {
+  }
+
+  /**
+   * The SHA-256 of the content lines of {@code vevent}, unfolded, leaving out DTSTAMP and
+   * SEQUENCE, which change between copies of the same event.
+   */
+  static byte[] contentDigest(byte[] vevent, MessageDigest sha) {
+    sha.reset();
+    boolean skip = false;
+    for (int start = 0, end; start < vevent.length; start = end) {
+      end = lineEnd(vevent, start);
+      int length = contentLength(vevent, start, end);
+      if (isContinuation(vevent, start)) {
+        if (!skip) {
+          sha.update(vevent, start + 1, length - 1);
+        }
+        continue;
+      }
+      skip = isProperty(vevent, start, length, "DTSTAMP")
+          || isProperty(vevent, start, length, "SEQUENCE");
+      if (!skip) {
+        sha.update((byte) '\n');
+        sha.update(vevent, start, length);
+      }
+    }
+    return sha.digest();
+  }
+
+  /**
+   * {@code vevent} with the lines of its property {@code name}, folds and all, replaced by the
+   * one content line {@code line}. Properties of nested components such as VALARM are left
+   * alone. If there were none, {@code line} goes right after BEGIN:VEVENT when {@code insert} is
+   * set.
+   */
+  static byte[] replace(byte[] vevent, String name, String line, boolean insert) {
+    int first = lineEnd(vevent, 0);
+    boolean crlf = first >= 2 && vevent[first - 2] == '\r';
+    byte[] replacement = (line + (crlf ? "\r\n" : "\n")).getBytes(StandardCharsets.UTF_8);
+    byte[] out = new byte[vevent.length + replacement.length];
+    System.arraycopy(vevent, 0, out, 0, first);
+    int n = first;
+    int depth = 0;
+    boolean replaced = false;
+    boolean dropping = false;
+    for (int start = first, end; start < vevent.length; start = end) {
+      end = lineEnd(vevent, start);
+      int length = contentLength(vevent, start, end);
+      if (isContinuation(vevent, start)) {
+        if (dropping) {
+          continue;
+        }
+      }
+      else if (isProperty(vevent, start, length, "BEGIN")) {
+        depth++;
+        dropping = false;
+      }
+      else if (isProperty(vevent, start, length, "END")) {
+        depth--;
+        dropping = false;
+      }
+      else {
+        dropping = depth == 0 && isProperty(vevent, start, length, name);
+        if (dropping) {
+          if (!replaced) {
+            System.arraycopy(replacement, 0, out, n, replacement.length);
+            n += replacement.length;
+            replaced = true;
+          }
+          continue;
+        }
+      }
+      System.arraycopy(vevent, start, out, n, end - start);
+      n += end - start;
+    }
+    if (!replaced && insert) {
+      System.arraycopy(out, first, out, first + replacement.length, n - first);
+      System.arraycopy(replacement, 0, out, first, replacement.length);
+      n += replacement.length;
+    }
+    return Arrays.copyOf(out, n);
+  }
+
+  /** Whether any property of {@code vevent} has a TZID parameter. */
+  static boolean usesZone(byte[] vevent) {
+    outer:
+    for (int i = 0; i + TZID.length <= vevent.length; i++) {
+      for (int j = 0; j < TZID.length; j++) {
+        if (vevent[i + j] != TZID[j]) {
+          continue outer;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  // just past the line break of the line starting at start, or the end of the bytes
+  private static int lineEnd(byte[] bytes, int start) {
+    for (int i = start; i < bytes.length; i++) {
+      if (bytes[i] == '\n') {
+        return i + 1;
+      }
+    }
+    return bytes.length;
+  }
+
+  // the octets of the line from start to end, without its line break
+  private static int contentLength(byte[] bytes, int start, int end) {
+    int length = end - start;
+    if (length > 0 && bytes[start + length - 1] == '\n') {
+      length--;
+    }
+    if (length > 0 && bytes[start + length - 1] == '\r') {
+      length--;
+    }
+    return length;
+  }
+
+  private static boolean isContinuation(byte[] bytes, int start) {
+    return start < bytes.length && (bytes[start] == ' ' || bytes[start] == '\t');
+  }
+
+  // whether the line is property name, in any case, followed by its parameters or value
+  private static boolean isProperty(byte[] bytes, int start, int length, String name) {
+    int n = name.length();
+    if (length < n + 1 || bytes[start + n] != ':' && bytes[start + n] != ';') {
+      return false;
+    }
+    for (int i = 0; i < n; i++) {
+      int c = bytes[start + i];
+      if (c >= 'a' && c <= 'z') {
+        c -= 'a' - 'A';
+      }
+      if (c != name.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,583 @@
+package calendaring;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * An RRULE (3.3.10) limited to FREQ, INTERVAL, COUNT, UNTIL, BYDAY and BYMONTHDAY, plus a lazy
+ * expansion engine for it.
+ *
+ * {@link #occurrences(long, long, long)} walks the series one period (day, week, month or year)
+ * at a time and yields packed start times only for the requested window, without building a
+ * list. The first period that can touch the window is computed directly, so expanding a month of
+ * a daily rule costs the same whether the series started last week or ten years ago. Only a
+ * COUNT-limited rule has to know how many occurrences came before the window. When its periods
+ * all hold the same number of occurrences (DAILY, or WEEKLY without BYMONTHDAY), that number is
+ * multiplied out. Otherwise the earlier periods are counted one by one, which is at most one
+ * step per month of the series.
+ *
+ * Dates are handled in the proleptic Gregorian calendar and times keep DTSTART's time of day. A
+ * UTC UNTIL is moved into the event's zone before it is compared with the local occurrences.
+ */
+final class Recurrence {
+
+  enum Frequency {
+    DAILY, WEEKLY, MONTHLY, YEARLY
+  }
+
+  private static final String[] DAYS = {"MO", "TU", "WE", "TH", "FR", "SA", "SU"};
+
+  private final Frequency frequency;
+  private final int interval;
+  private final int count;
+  private final long until;
+  private final boolean untilUtc;
+  // a DATE UNTIL, kept as the last second of its day and written back as a DATE
+  private final boolean untilDate;
+  // BYDAY entries as ordinal * 8 + weekday (0 = MO), ordinal 0 meaning every such day
+  private final int[] byDay;
+  private final int[] byMonthDay;
+
+  private Recurrence(Frequency frequency, int interval, int count, long until, boolean untilUtc,
+      boolean untilDate, int[] byDay, int[] byMonthDay) {
+    this.frequency = frequency;
+    this.interval = interval;
+    this.count = count;
+    this.until = until;
+    this.untilUtc = untilUtc;
+    this.untilDate = untilDate;
+    this.byDay = byDay;
+    this.byMonthDay = byMonthDay;
+  }
+
+  /**
+   * Parses an RRULE value such as "FREQ=WEEKLY;BYDAY=MO,WE;COUNT=10".
+   *
+   * @throws IllegalArgumentException saying what is wrong with it
+   */
+  static Recurrence parse(String rule) {
+    Frequency frequency = null;
+    int interval = 1;
+    int count = 0;
+    long until = DateTimes.INVALID;
+    boolean untilUtc = false;
+    boolean untilDate = false;
+    int[] byDay = new int[0];
+    int[] byMonthDay = new int[0];
+
+    for (String part : rule.trim().split(";")) {
+      int eq = part.indexOf('=');
+      if (eq < 0) {
+        throw new IllegalArgumentException("expected NAME=VALUE but found \"" + part + "\"");
+      }
+      String name = part.substring(0, eq).trim().toUpperCase();
+      String value = part.substring(eq + 1).trim().toUpperCase();
+      switch (name) {
+        case "FREQ":
+          try {
+            frequency = Frequency.valueOf(value);
+          }
+          catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("FREQ must be DAILY, WEEKLY, MONTHLY or YEARLY");
+          }
+          break;
+        case "INTERVAL":
+          interval = positive(name, value);
+          break;
+        case "COUNT":
+          count = positive(name, value);
+          break;
+        case "UNTIL":
+          until = parseUntil(value);
+          untilUtc = value.endsWith("Z");
+          untilDate = value.length() == 8;
+          break;
+        case "BYDAY":
+          byDay = parseByDay(value);
+          break;
+        case "BYMONTHDAY":
+          byMonthDay = parseByMonthDay(value);
+          break;
+        default:
+          throw new IllegalArgumentException(name + " is not supported");
+      }
+    }
+    if (frequency == null) {
+      throw new IllegalArgumentException("FREQ is required");
+    }
+    if (count > 0 && until != DateTimes.INVALID) {
+      throw new IllegalArgumentException("COUNT and UNTIL can't both be given");
+    }
+    for (int d : byDay) {
+      if (d >> 3 != 0 && frequency != Frequency.MONTHLY && frequency != Frequency.YEARLY) {
+        throw new IllegalArgumentException("numbered BYDAY values need FREQ=MONTHLY or YEARLY");
+      }
+    }
+    return new Recurrence(frequency, interval, count, until, untilUtc, untilDate, byDay,
+        byMonthDay);
+  }
+
+  private static int positive(String name, String value) {
+    try {
+      int n = Integer.parseInt(value);
+      if (n > 0) {
+        return n;
+      }
+    }
+    catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new IllegalArgumentException(name + " must be a positive number");
+  }
+
+  private static long parseUntil(String value) {
+    if (value.length() == 8) {
+      int date = DateTimes.parseDate(value, 0);
+      if (date != DateTimes.INVALID) {
+        // a DATE bound includes the whole day
+        return DateTimes.pack(date, 235959);
+      }
+    }
+    else if (value.length() == 15 || (value.length() == 16 && value.charAt(15) == 'Z')) {
+      long dateTime = DateTimes.parseDateTime(value, 0);
+      if (dateTime != DateTimes.INVALID) {
+        return dateTime;
+      }
+    }
+    throw new IllegalArgumentException("UNTIL must be YYYYMMDD or YYYYMMDDTHHMMSS");
+  }
+
+  private static int[] parseByDay(String value) {
+    String[] items = value.split(",");
+    int[] days = new int[items.length];
+    for (int i = 0; i < items.length; i++) {
+      String item = items[i].trim();
+      int weekday = item.length() >= 2 ? Arrays.asList(DAYS).indexOf(item.substring(item.length() - 2)) : -1;
+      int ordinal = 0;
+      if (weekday >= 0 && item.length() > 2) {
+        try {
+          ordinal = Integer.parseInt(item.substring(0, item.length() - 2));
+        }
+        catch (NumberFormatException e) {
+          weekday = -1;
+        }
+      }
+      if (weekday < 0 || ordinal == 0 && item.length() > 2 || Math.abs(ordinal) > 53) {
+        throw new IllegalArgumentException("BYDAY values look like MO, TU, ... or 2MO, -1FR");
+      }
+      days[i] = ordinal * 8 + weekday;
+    }
+    return days;
+  }
+
+  private static int[] parseByMonthDay(String value) {
+    String[] items = value.split(",");
+    int[] days = new int[items.length];
+    for (int i = 0; i < items.length; i++) {
+      try {
+        days[i] = Integer.parseInt(items[i].trim());
+      }
+      catch (NumberFormatException e) {
+        days[i] = 0;
+      }
+      if (days[i] == 0 || Math.abs(days[i]) > 31) {
+        throw new IllegalArgumentException("BYMONTHDAY values are 1 to 31 or -31 to -1");
+      }
+    }
+    return days;
+  }
+
+  Frequency getFrequency() {
+    return frequency;
+  }
+
+  int getInterval() {
+    return interval;
+  }
+
+  /** The COUNT, or 0 if there is none. */
+  int getCount() {
+    return count;
+  }
+
+  /** The UNTIL as a packed date-time, or {@link DateTimes#INVALID} if there is none. */
+  long getUntil() {
+    return until;
+  }
+
+  /** True if the series never ends. */
+  boolean isUnbounded() {
+    return count == 0 && until == DateTimes.INVALID;
+  }
+
+  /** The RRULE value, parts in a fixed order. */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("FREQ=").append(frequency);
+    if (interval != 1) {
+      sb.append(";INTERVAL=").append(interval);
+    }
+    if (count > 0) {
+      sb.append(";COUNT=").append(count);
+    }
+    if (until != DateTimes.INVALID) {
+      sb.append(";UNTIL=").append(DateTimes.date(until));
+      if (!untilDate) {
+        String time = Integer.toString(DateTimes.time(until) + 1000000);
+        sb.append('T').append(time, 1, 7);
+        if (untilUtc) {
+          sb.append('Z');
+        }
+      }
+    }
+    if (byDay.length > 0) {
+      sb.append(";BYDAY=");
+      for (int i = 0; i < byDay.length; i++) {
+        if (i > 0) {
+          sb.append(',');
+        }
+        int ordinal = byDay[i] >> 3;
+        if (ordinal != 0) {
+          sb.append(ordinal);
+        }
+        sb.append(DAYS[byDay[i] & 7]);
+      }
+    }
+    if (byMonthDay.length > 0) {
+      sb.append(";BYMONTHDAY=");
+      for (int i = 0; i < byMonthDay.length; i++) {
+        if (i > 0) {
+          sb.append(',');
+        }
+        sb.append(byMonthDay[i]);
+      }
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof Recurrence && o.toString().equals(toString());
+  }
+
+  @Override
+  public int hashCode() {
+    return toString().hashCode();
+  }
+
+  //=========================================
+  // expansion
+  //=========================================
+
+  /**
+   * Start times (packed yyyyMMddHHmmss) of the occurrences of a series that begins at
+   * {@code dtstart}, limited to those starting at or after {@code from} and before {@code to}.
+   * DTSTART itself is the first occurrence when it matches the rule. To include occurrences
+   * that overlap {@code from} without starting in the window, pass {@code from} moved back by
+   * the event's duration. A UTC UNTIL is taken as UTC, like the floating or UTC times here.
+   */
+  PrimitiveIterator.OfLong occurrences(long dtstart, long from, long to) {
+    return new Expansion(dtstart, null, from, to);
+  }
+
+  /**
+   * Like {@link #occurrences(long, long, long)} for a series whose local times are in
+   * {@code tzid} (null for floating or UTC ones), which a UTC UNTIL is compared in.
+   */
+  PrimitiveIterator.OfLong occurrences(long dtstart, String tzid, long from, long to) {
+    return new Expansion(dtstart, tzid, from, to);
+  }
+
+  private final class Expansion implements PrimitiveIterator.OfLong {
+    private final int time;
+    private final long startDay;
+    private final long fromDay;
+    private final long toDay;
+    private final long from;
+    private final long to;
+
+    // candidates of the current period, as epoch days
+    private final int[] days = new int[372];
+    private int dayCount;
+    private int dayIndex;
+    private long period;
+    private long emitted;
+    private long next = DateTimes.INVALID;
+    private boolean done;
+
+    Expansion(long dtstart, String tzid, long from, long to) {
+      this.time = DateTimes.time(dtstart);
+      this.startDay = DateTimes.toEpochDay(DateTimes.date(dtstart));
+      this.from = Math.max(from, dtstart);
+      long last = !untilUtc || tzid == null ? until
+          : VTimezones.fromEpochSecond(tzid, DateTimes.toEpochSecond(until));
+      this.to = until == DateTimes.INVALID ? to : Math.min(to, last + 1);
+      this.fromDay = DateTimes.toEpochDay(DateTimes.date(this.from));
+      this.toDay = DateTimes.toEpochDay(DateTimes.date(this.to));
+      if (this.from >= this.to) {
+        done = true;
+        return;
+      }
+      skipTo(firstPeriod());
+    }
+
+    // the first period whose days can reach fromDay
+    private long firstPeriod() {
+      switch (frequency) {
+        case DAILY:
+          return Math.max(0, (fromDay - startDay) / interval);
+        case WEEKLY:
+          return Math.max(0, (weekStart(fromDay) - weekStart(startDay)) / (7L * interval));
+        case MONTHLY:
+          return Math.max(0, (monthIndex(fromDay) - monthIndex(startDay)) / interval);
+        default:
+          return Math.max(0, (yearOf(fromDay) - yearOf(startDay)) / interval);
+      }
+    }
+
+    private void skipTo(long target) {
+      if (count > 0 && target > 0) {
+        emitted = candidates(0);
+        long cycle = cycleLength();
+        long full = target - 1;
+        if (cycle > 0 && full >= cycle) {
+          long perCycle = 0;
+          for (long p = 1; p <= cycle; p++) {
+            perCycle += candidates(p);
+          }
+          emitted += full / cycle * perCycle;
+          for (long p = 1 + full / cycle * cycle; p < target; p++) {
+            emitted += candidates(p);
+          }
+        }
+        else {
+          for (long p = 1; p < target && emitted < count; p++) {
+            emitted += candidates(p);
+          }
+        }
+        if (emitted >= count) {
+          done = true;
+          return;
+        }
+      }
+      period = target;
+      dayCount = candidates(period);
+      dayIndex = 0;
+    }
+
+    /**
+     * How many periods it takes for the candidate pattern to repeat, or 0 if it never does in a
+     * useful way. Weekdays repeat every 7 days; month lengths do not.
+     */
+    private long cycleLength() {
+      if (byMonthDay.length > 0) {
+        return 0;
+      }
+      if (frequency == Frequency.DAILY) {
+        return 7;
+      }
+      return frequency == Frequency.WEEKLY ? 1 : 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == DateTimes.INVALID && !done) {
+        if (dayIndex == dayCount) {
+          period++;
+          if (periodStart(period) >= toDay + 1) {
+            done = true;
+            break;
+          }
+          dayCount = candidates(period);
+          dayIndex = 0;
+          continue;
+        }
+        long day = days[dayIndex++];
+        long dateTime = DateTimes.pack(DateTimes.fromEpochDay(day), time);
+        emitted++;
+        if (count > 0 && emitted > count || dateTime >= to) {
+          done = true;
+          break;
+        }
+        if (dateTime >= from) {
+          next = dateTime;
+        }
+      }
+      return next != DateTimes.INVALID;
+    }
+
+    @Override
+    public long nextLong() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      long result = next;
+      next = DateTimes.INVALID;
+      return result;
+    }
+
+    private long periodStart(long p) {
+      switch (frequency) {
+        case DAILY:
+          return startDay + p * interval;
+        case WEEKLY:
+          return weekStart(startDay) + 7L * interval * p;
+        case MONTHLY: {
+          long month = monthIndex(startDay) + p * interval;
+          return DateTimes.toEpochDay((int) (month / 12) * 10000 + (int) (month % 12 + 1) * 100 + 1);
+        }
+        default:
+          return DateTimes.toEpochDay((yearOf(startDay) + (int) (p * interval)) * 10000 + 101);
+      }
+    }
+
+    /**
+     * Fills {@link #days} with the sorted candidate days of period {@code p}, leaving out any
+     * before DTSTART, and returns how many there are.
+     */
+    private int candidates(long p) {
+      int n = 0;
+      long first = periodStart(p);
+      switch (frequency) {
+        case DAILY:
+          if (matchesDay(first)) {
+            days[n++] = (int) first;
+          }
+          break;
+        case WEEKLY:
+          for (int i = 0; i < 7; i++) {
+            long day = first + i;
+            int weekday = DateTimes.dayOfWeek(day);
+            boolean match = byDay.length == 0 ? weekday == DateTimes.dayOfWeek(startDay)
+                : hasWeekday(weekday);
+            if (match && matchesMonthDay(day)) {
+              days[n++] = (int) day;
+            }
+          }
+          break;
+        case MONTHLY:
+          n = monthDays(first, n);
+          break;
+        default: {
+          int year = DateTimes.fromEpochDay(first) / 10000;
+          if (byDay.length == 0 && byMonthDay.length == 0) {
+            int date = DateTimes.fromEpochDay(startDay);
+            int month = date / 100 % 100;
+            int dom = date % 100;
+            if (dom <= DateTimes.lengthOfMonth(year, month)) {
+              days[n++] = (int) DateTimes.toEpochDay(year * 10000 + month * 100 + dom);
+            }
+          }
+          else if (byMonthDay.length > 0) {
+            for (int month = 1; month <= 12; month++) {
+              n = monthDays(DateTimes.toEpochDay(year * 10000 + month * 100 + 1), n);
+            }
+          }
+          else {
+            long last = DateTimes.toEpochDay(year * 10000 + 1231);
+            for (long day = first; day <= last; day++) {
+              if (matchesByDay(day, first, last)) {
+                days[n++] = (int) day;
+              }
+            }
+          }
+        }
+      }
+      // nothing before DTSTART counts as an occurrence
+      int skip = 0;
+      while (skip < n && days[skip] < startDay) {
+        skip++;
+      }
+      if (skip > 0) {
+        System.arraycopy(days, skip, days, 0, n - skip);
+        n -= skip;
+      }
+      return n;
+    }
+
+    // candidates of the month starting at epoch day `first`, appended from index n
+    private int monthDays(long first, int n) {
+      int date = DateTimes.fromEpochDay(first);
+      int length = DateTimes.lengthOfMonth(date / 10000, date / 100 % 100);
+      long last = first + length - 1;
+      if (byMonthDay.length == 0 && byDay.length == 0) {
+        int dom = DateTimes.fromEpochDay(startDay) % 100;
+        if (dom <= length) {
+          days[n++] = (int) (first + dom - 1);
+        }
+        return n;
+      }
+      for (long day = first; day <= last; day++) {
+        boolean match = byMonthDay.length == 0 || matchesMonthDay(day);
+        if (match && byDay.length > 0) {
+          match = matchesByDay(day, first, last);
+        }
+        if (match) {
+          days[n++] = (int) day;
+        }
+      }
+      return n;
+    }
+
+    // BYDAY within the span first..last: plain weekdays match any such day, numbered ones the
+    // nth from the start (or end, if negative)
+    private boolean matchesByDay(long day, long first, long last) {
+      int weekday = DateTimes.dayOfWeek(day);
+      for (int d : byDay) {
+        if ((d & 7) != weekday) {
+          continue;
+        }
+        int ordinal = d >> 3;
+        if (ordinal == 0
+            || ordinal > 0 && (day - first) / 7 + 1 == ordinal
+            || ordinal < 0 && (last - day) / 7 + 1 == -ordinal) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean matchesDay(long day) {
+      return (byDay.length == 0 || hasWeekday(DateTimes.dayOfWeek(day))) && matchesMonthDay(day);
+    }
+
+    private boolean hasWeekday(int weekday) {
+      for (int d : byDay) {
+        if ((d & 7) == weekday) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean matchesMonthDay(long day) {
+      if (byMonthDay.length == 0) {
+        return true;
+      }
+      int date = DateTimes.fromEpochDay(day);
+      int dom = date % 100;
+      int length = DateTimes.lengthOfMonth(date / 10000, date / 100 % 100);
+      for (int md : byMonthDay) {
+        if (md == dom || md < 0 && length + md + 1 == dom) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  // weeks start on Monday (WKST=MO)
+  private static long weekStart(long epochDay) {
+    return epochDay - DateTimes.dayOfWeek(epochDay);
+  }
+
+  private static long monthIndex(long epochDay) {
+    int date = DateTimes.fromEpochDay(epochDay);
+    return (date / 10000) * 12L + date / 100 % 100 - 1;
+  }
+
+  private static int yearOf(long epochDay) {
+    return DateTimes.fromEpochDay(epochDay) / 10000;
+  }
+}
@@ -0,0 +1,339 @@
+package calendaring;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fires the VALARMs of a set of calendars when they are due, so one process can do the reminding
+ * for everybody whose calendars it is given.
+ *
+ * Pending alarms wait in a {@link TimingWheel}, which takes and drops them in constant time and
+ * holds each in 24 bytes: the payload of a timer says where its VEVENT is in which calendar,
+ * which of the event's alarms it is and which repetition, and the event is read back from the
+ * file only when the alarm fires. Events themselves are not kept, so the heap grows with the
+ * number of alarms pending, not with the size of the calendars.
+ *
+ * Each alarm of an event has at most one firing pending per occurrence. Recurring events are
+ * expanded lazily: loading schedules the first firing at or after the wheel's clock, and when an
+ * occurrence's alarm goes off the next occurrence is looked up with {@link Recurrence} and its
+ * alarm scheduled, so a rule without an end costs one timer, not one per occurrence. REPEAT is
+ * handled the same way, each repetition scheduling the one after it.
+ *
+ * Times are epoch seconds. Local times are converted with the event's TZID and floating ones are
+ * taken as UTC, as {@link Spans} does. An event without DTEND ends when it starts, or a day later
+ * if it is all-day (3.6.1).
+ *
+ * Usage: --remind calendar.ics... [--from TIME] [--until TIME], where TIME is UTC as YYYYMMDD or
+ *   YYYYMMDDTHHMMSS. Without --until the alarms are fired as the clock reaches them, from now or
+ *   from --from, until the process is stopped; with it, every alarm up to then is fired at once.
+ */
+final class Reminders implements Closeable {
+
+  /** Receives each alarm as it fires. */
+  interface Listener {
+    /** {@code occurrence} is when the occurrence the alarm is for starts. */
+    void remind(Event event, Alarm alarm, long occurrence, long due);
+  }
+
+  static final LongAdder FIRED = Metrics.counter("alarms.fired");
+
+  // timer payload: VEVENT offset, calendar, alarm of the event, repetition, high bits to low
+  private static final int REPEAT_BITS = 10;
+  private static final int ALARM_BITS = 6;
+  private static final int CALENDAR_BITS = 8;
+  private static final int OFFSET_SHIFT = REPEAT_BITS + ALARM_BITS + CALENDAR_BITS;
+  private static final int MAX_REPEAT = (1 << REPEAT_BITS) - 1;
+  private static final int MAX_ALARMS = 1 << ALARM_BITS;
+  private static final int MAX_CALENDARS = 1 << CALENDAR_BITS;
+  private static final long MAX_OFFSET = 1L << (64 - OFFSET_SHIFT);
+
+  // no zone is further than this from UTC
+  private static final long MAX_ZONE_OFFSET = 18 * 3600;
+  private static final long END_OF_TIME = DateTimes.pack(99991231, 235959);
+  private static final long NONE = Long.MIN_VALUE;
+
+  private final TimingWheel wheel;
+  private final Listener listener;
+  private final List<IcsParser> calendars = new ArrayList<IcsParser>();
+  private final TimingWheel.Expiry fire = this::fire;
+
+  /** Reminds of alarms due from {@code from} on, in epoch seconds. */
+  Reminders(long from, Listener listener) {
+    this.wheel = new TimingWheel(from - 1);
+    this.listener = listener;
+  }
+
+  static int run(String[] args) {
+    List<Path> paths = new ArrayList<Path>();
+    long from = DateTimes.INVALID;
+    long until = DateTimes.INVALID;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--from") && i + 1 < args.length) {
+        from = FreeBusy.utcArgument(args[++i]);
+        if (from == DateTimes.INVALID) {
+          return usage();
+        }
+      }
+      else if (args[i].equals("--until") && i + 1 < args.length) {
+        until = FreeBusy.utcArgument(args[++i]);
+        if (until == DateTimes.INVALID) {
+          return usage();
+        }
+      }
+      else {
+        paths.add(Paths.get(args[i]));
+      }
+    }
+    if (paths.isEmpty()
+        || (from != DateTimes.INVALID && until != DateTimes.INVALID && until < from)) {
+      return usage();
+    }
+
+    long started = System.nanoTime();
+    long start = from == DateTimes.INVALID ? System.currentTimeMillis() / 1000
+        : DateTimes.toEpochSecond(from);
+    try (Reminders reminders = new Reminders(start, Reminders::print)) {
+      int events = 0;
+      for (Path path : paths) {
+        events += reminders.load(path);
+      }
+      System.err.println("Scheduled " + reminders.pending() + " alarms of " + events
+          + " events from " + paths.size() + " calendars in "
+          + (System.nanoTime() - started) / 1000000 + " ms.");
+      if (until != DateTimes.INVALID) {
+        started = System.nanoTime();
+        reminders.advance(DateTimes.toEpochSecond(until));
+        System.out.flush();
+        System.err.println("Fired " + FIRED.sum() + " alarms up to " + utc(reminders.now())
+            + " in " + (System.nanoTime() - started) / 1000000 + " ms; " + reminders.pending()
+            + " still pending.");
+        return 0;
+      }
+      while (true) {
+        long now = System.currentTimeMillis();
+        reminders.advance(now / 1000);
+        System.out.flush();
+        Thread.sleep(1000 - now % 1000);
+      }
+    }
+    catch (IOException e) {
+      System.err.println("Reminders failed: " + e.getMessage());
+      return 1;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return 1;
+    }
+  }
+
+  private static int usage() {
+    System.err.println("Usage: --remind calendar.ics... [--from TIME] [--until TIME]");
+    return 2;
+  }
+
+  // one line per alarm: when it fired, its action, when the event starts and what it says
+  private static void print(Event event, Alarm alarm, long occurrence, long due) {
+    String text = alarm.getDescription() != null ? alarm.getDescription() : event.getSummary();
+    System.out.println(utc(due) + " " + alarm.getAction() + " " + utc(occurrence) + " "
+        + (text == null ? "" : text.replace('\n', ' ')));
+  }
+
+  // YYYYMMDDTHHMMSSZ
+  private static String utc(long epochSecond) {
+    long dateTime = DateTimes.fromEpochSecond(epochSecond);
+    return String.format("%08dT%06dZ", DateTimes.date(dateTime), DateTimes.time(dateTime));
+  }
+
+  //=========================================
+  // scheduling
+  //=========================================
+
+  /**
+   * Schedules the next firing of every alarm in {@code calendar}. The file is kept open to read
+   * events back from as their alarms fire. Returns how many events had an alarm still to come.
+   */
+  int load(Path calendar) throws IOException {
+    if (calendars.size() == MAX_CALENDARS) {
+      throw new IOException("no more than " + MAX_CALENDARS + " calendars at once");
+    }
+    IcsParser parser = new IcsParser(calendar);
+    int index = calendars.size();
+    calendars.add(parser);
+    if (parser.size() > MAX_OFFSET) {
+      throw new IOException(calendar + " is too big to remind from");
+    }
+    int events = 0;
+    try {
+      while (parser.next() != null) {
+        Event event = parser.event();
+        if (event == null || event.getAlarms().isEmpty()
+            || event.getDtstart() == DateTimes.INVALID) {
+          continue;
+        }
+        boolean any = false;
+        for (int alarm = 0; alarm < Math.min(event.getAlarms().size(), MAX_ALARMS); alarm++) {
+          any |= scheduleFirst(event, alarm, index, parser.start());
+        }
+        if (any) {
+          events++;
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new IOException("Could not read " + calendar + ": " + e.getMessage(), e);
+    }
+    return events;
+  }
+
+  /** Fires, in order, every alarm due up to {@code time}. */
+  void advance(long time) {
+    wheel.advance(time, fire);
+  }
+
+  /** The time up to which every alarm has fired. */
+  long now() {
+    return wheel.now();
+  }
+
+  /** How many firings are scheduled. */
+  int pending() {
+    return wheel.size();
+  }
+
+  // the first firing of the alarm at or after the wheel's next tick, if there is one. Loading
+  // can start in the middle of an occurrence's repetitions, whose first firing would have
+  // scheduled the next occurrence; then the next occurrences are scheduled here, up to the first
+  // whose first firing is still to come and carries the series on from there
+  private boolean scheduleFirst(Event event, int index, int calendar, long offset) {
+    Alarm alarm = event.getAlarms().get(index);
+    long from = wheel.now() + 1;
+    if (alarm.isAbsolute()) {
+      return schedule(DateTimes.toEpochSecond(alarm.getAbsolute()), from, alarm, offset, calendar,
+          index);
+    }
+    long lead = lead(event, alarm);
+    // the first occurrence with a firing still to come
+    long start = nextStart(event,
+        from - lead - Math.min(alarm.getRepeat(), MAX_REPEAT) * alarm.getInterval());
+    boolean any = false;
+    while (start != NONE) {
+      any |= schedule(start + lead, from, alarm, offset, calendar, index);
+      if (start + lead >= from || event.getRrule() == null) {
+        break;
+      }
+      start = nextStart(event, start + 1);
+    }
+    return any;
+  }
+
+  // the first of the firings from `at` on, the alarm's repetitions included, that is at or after
+  // `from`, if there is one
+  private boolean schedule(long at, long from, Alarm alarm, long offset, int calendar, int index) {
+    int repeat = 0;
+    if (at < from) {
+      long interval = alarm.getInterval();
+      if (alarm.getRepeat() == 0 || interval <= 0) {
+        return false;
+      }
+      repeat = (int) Math.min((from - at + interval - 1) / interval, MAX_REPEAT + 1L);
+      if (repeat > Math.min(alarm.getRepeat(), MAX_REPEAT)) {
+        return false;
+      }
+    }
+    wheel.schedule(at + repeat * alarm.getInterval(), payload(offset, calendar, index, repeat));
+    return true;
+  }
+
+  private void fire(long due, long payload) {
+    long offset = payload >>> OFFSET_SHIFT;
+    int calendar = (int) (payload >>> (REPEAT_BITS + ALARM_BITS)) & (MAX_CALENDARS - 1);
+    int index = (int) (payload >>> REPEAT_BITS) & (MAX_ALARMS - 1);
+    int repeat = (int) payload & MAX_REPEAT;
+    IcsParser parser = calendars.get(calendar);
+    Event event;
+    try {
+      parser.seek(offset);
+      event = parser.next() == IcsParser.Kind.EVENT ? parser.event() : null;
+    }
+    catch (IOException e) {
+      // the calendar changed under us; nothing sensible to remind of
+      return;
+    }
+    if (event == null || index >= event.getAlarms().size()) {
+      return;
+    }
+    Alarm alarm = event.getAlarms().get(index);
+    long interval = alarm.getInterval();
+    String tzid = event.isUtc() ? null : event.getTzid();
+    long occurrence = alarm.isAbsolute() ? VTimezones.toEpochSecond(tzid, event.getDtstart())
+        : due - repeat * interval - lead(event, alarm);
+    listener.remind(event, alarm, occurrence, due);
+    FIRED.increment();
+
+    if (repeat < Math.min(alarm.getRepeat(), MAX_REPEAT)) {
+      wheel.schedule(due + interval, payload(offset, calendar, index, repeat + 1));
+    }
+    // each occurrence's first firing schedules the next occurrence's, so repetitions running
+    // past the next occurrence do not hold it up
+    if (repeat == 0 && !alarm.isAbsolute() && event.getRrule() != null) {
+      long next = nextStart(event, occurrence + 1);
+      if (next != NONE) {
+        wheel.schedule(next + lead(event, alarm), payload(offset, calendar, index, 0));
+      }
+    }
+  }
+
+  private static long payload(long offset, int calendar, int alarm, int repeat) {
+    return offset << OFFSET_SHIFT | (long) calendar << (REPEAT_BITS + ALARM_BITS)
+        | (long) alarm << REPEAT_BITS | repeat;
+  }
+
+  //=========================================
+  // event times
+  //=========================================
+
+  // seconds from the start of an occurrence to the alarm's first firing
+  private static long lead(Event event, Alarm alarm) {
+    return alarm.getOffset() + (alarm.isRelatedToEnd() ? duration(event) : 0);
+  }
+
+  private static long duration(Event event) {
+    if (event.getDtend() == DateTimes.INVALID) {
+      return event.isDateOnly() ? 86400 : 0;
+    }
+    return DateTimes.toEpochSecond(event.getDtend()) - DateTimes.toEpochSecond(event.getDtstart());
+  }
+
+  // the start of the first occurrence at or after notBefore, or NONE
+  private static long nextStart(Event event, long notBefore) {
+    String tzid = event.isUtc() ? null : event.getTzid();
+    Recurrence rrule = event.getRrule();
+    if (rrule == null) {
+      long start = VTimezones.toEpochSecond(tzid, event.getDtstart());
+      return start >= notBefore ? start : NONE;
+    }
+    // local bounds wide enough for any offset, then checked exactly in UTC
+    PrimitiveIterator.OfLong occurrences = rrule.occurrences(event.getDtstart(), tzid,
+        DateTimes.fromEpochSecond(notBefore - MAX_ZONE_OFFSET), END_OF_TIME);
+    while (occurrences.hasNext()) {
+      long start = VTimezones.toEpochSecond(tzid, occurrences.nextLong());
+      if (start >= notBefore) {
+        return start;
+      }
+    }
+    return NONE;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (IcsParser parser : calendars) {
+      parser.close();
+    }
+  }
+}
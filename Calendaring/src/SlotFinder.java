@@ -0,0 +1,204 @@
+package calendaring;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the earliest time in a window when every one of a set of attendees is free.
+ *
+ * Each attendee's busy time is a bitmap with one bit per minute of the window, 1440 bits to a
+ * day, set for every minute an event they organize or attend touches. Finding a common slot is
+ * then an OR of the attendees' bitmaps, a word (64 minutes) at a time, and a scan of the result
+ * for the first run of clear bits long enough for the meeting. Fifty attendees over two weeks is
+ * about 16,000 word operations, well under a millisecond.
+ *
+ * Addresses are compared ignoring case and any mailto: prefix. Only the attendees asked about
+ * get a bitmap; events involving nobody else are skipped.
+ *
+ * Usage: --slot MINUTES FROM TO calendar.ics... --attendee ADDRESS... where MINUTES is 1 to 1440
+ * and FROM and TO are UTC as YYYYMMDD or YYYYMMDDTHHMMSS.
+ */
+final class SlotFinder {
+
+  // longest meeting looked for
+  private static final int MINUTES_PER_DAY = 1440;
+
+  private final long from;
+  private final int minutes;
+  private final Map<String, BitSet> busy = new HashMap<String, BitSet>();
+
+  /** For slots within [from, to), in epoch seconds; the window is cut to whole minutes. */
+  SlotFinder(long from, long to) {
+    this.from = from;
+    this.minutes = (int) Math.max(0, (to - from) / 60);
+  }
+
+  static int run(String[] args) {
+    List<Path> calendars = new ArrayList<Path>();
+    List<String> attendees = new ArrayList<String>();
+    int duration = -1;
+    long from = DateTimes.INVALID;
+    long to = DateTimes.INVALID;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--attendee") && i + 1 < args.length) {
+        attendees.add(args[++i]);
+      }
+      else if (duration == -1) {
+        try {
+          duration = Integer.parseInt(args[i]);
+        }
+        catch (NumberFormatException e) {
+          return usage();
+        }
+        if (duration <= 0 || duration > MINUTES_PER_DAY) {
+          return usage();
+        }
+      }
+      else if (from == DateTimes.INVALID) {
+        from = FreeBusy.utcArgument(args[i]);
+        if (from == DateTimes.INVALID) {
+          return usage();
+        }
+      }
+      else if (to == DateTimes.INVALID) {
+        to = FreeBusy.utcArgument(args[i]);
+        if (to == DateTimes.INVALID) {
+          return usage();
+        }
+      }
+      else {
+        calendars.add(Paths.get(args[i]));
+      }
+    }
+    if (attendees.isEmpty() || to <= from) {
+      return usage();
+    }
+
+    SlotFinder finder = new SlotFinder(DateTimes.toEpochSecond(from), DateTimes.toEpochSecond(to));
+    for (String attendee : attendees) {
+      finder.attendee(attendee);
+    }
+    for (Path calendar : calendars) {
+      try (IcsParser parser = new IcsParser(calendar)) {
+        while (parser.next() != null) {
+          if (parser.event() != null) {
+            finder.addEvent(parser.event());
+          }
+        }
+      }
+      catch (IOException e) {
+        System.err.println("Could not read " + calendar + ": " + e.getMessage());
+        return 1;
+      }
+    }
+    long slot = finder.earliest(attendees, duration);
+    if (slot == -1) {
+      System.err.println("No common free slot of " + duration + " minutes.");
+      return 1;
+    }
+    System.out.println(utc(slot) + "/" + utc(slot + duration * 60L));
+    return 0;
+  }
+
+  // YYYYMMDDTHHMMSSZ
+  private static String utc(long epochSecond) {
+    long dateTime = DateTimes.fromEpochSecond(epochSecond);
+    return String.format("%08dT%06dZ", DateTimes.date(dateTime), DateTimes.time(dateTime));
+  }
+
+  private static int usage() {
+    System.err.println("Usage: --slot MINUTES FROM TO calendar.ics... --attendee ADDRESS...");
+    return 2;
+  }
+
+  /** The form addresses are matched in: lower case, without mailto:. */
+  static String address(String address) {
+    String a = address.trim().toLowerCase();
+    return a.startsWith("mailto:") ? a.substring(7) : a;
+  }
+
+  /** Starts tracking {@code attendee}, who is free for the whole window until events say otherwise. */
+  void attendee(String attendee) {
+    busy.putIfAbsent(address(attendee), new BitSet(minutes));
+  }
+
+  /** Marks the organizer and attendees of {@code event} that are tracked as busy for its spans. */
+  void addEvent(Event event) {
+    List<BitSet> people = new ArrayList<BitSet>(4);
+    if (event.getOrganizer() != null) {
+      addTracked(people, event.getOrganizer());
+    }
+    for (String attendee : event.getAttendees()) {
+      addTracked(people, attendee);
+    }
+    if (people.isEmpty()) {
+      return;
+    }
+    Spans.of(event, from, from + minutes * 60L, (start, end) -> {
+      for (BitSet bits : people) {
+        addBusy(bits, start, end);
+      }
+      return true;
+    });
+  }
+
+  private void addTracked(List<BitSet> people, String address) {
+    BitSet bits = busy.get(address(address));
+    if (bits == null) {
+      return;
+    }
+    for (BitSet b : people) {
+      // by identity; two people's bitmaps can be equal
+      if (b == bits) {
+        return;
+      }
+    }
+    people.add(bits);
+  }
+
+  /** Marks a tracked attendee busy for [start, end), in epoch seconds. */
+  void addBusy(String attendee, long start, long end) {
+    BitSet bits = busy.get(address(attendee));
+    if (bits != null) {
+      addBusy(bits, start, end);
+    }
+  }
+
+  // every minute the span touches
+  private void addBusy(BitSet bits, long start, long end) {
+    long first = Math.max(0, Math.floorDiv(start - from, 60));
+    long last = Math.min(minutes, Math.floorDiv(end - from + 59, 60));
+    if (first < last) {
+      bits.set((int) first, (int) last);
+    }
+  }
+
+  /**
+   * The start (epoch seconds) of the earliest {@code duration} minutes in the window when none of
+   * {@code attendees} is busy, or -1 if there is no such time. Untracked attendees count as free.
+   */
+  long earliest(List<String> attendees, int duration) {
+    BitSet anyBusy = new BitSet(minutes);
+    for (String attendee : attendees) {
+      BitSet bits = busy.get(address(attendee));
+      if (bits != null) {
+        anyBusy.or(bits);
+      }
+    }
+    int free = anyBusy.nextClearBit(0);
+    while (free + duration <= minutes) {
+      int next = anyBusy.nextSetBit(free);
+      if (next == -1 || next - free >= duration) {
+        return from + free * 60L;
+      }
+      free = anyBusy.nextClearBit(next);
+    }
+    return -1;
+  }
+}
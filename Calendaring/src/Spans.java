@@ -0,0 +1,60 @@
+package calendaring;
+
+import java.util.PrimitiveIterator;
+
+/**
+ * The time an event takes up, as [start, end) spans in seconds since 1970-01-01T00:00Z: one span
+ * for a single event, one per occurrence for a recurring one.
+ *
+ * Local times are converted with the event's TZID (floating events are taken as UTC). A recurring
+ * event is only expanded as far as the window asked for, so an open ended rule costs no more than
+ * the occurrences inside it.
+ */
+final class Spans {
+
+  // no zone is further than this from UTC
+  private static final long MAX_OFFSET = 18 * 3600;
+
+  /** Receives each span; returns false to stop. */
+  interface Consumer {
+    boolean accept(long start, long end);
+  }
+
+  private Spans() {
+  }
+
+  /**
+   * Passes the spans of {@code event} that overlap [from, to) (epoch seconds) to
+   * {@code consumer}, in order. Events with no DTEND take no time and have no spans.
+   */
+  static void of(Event event, long from, long to, Consumer consumer) {
+    long dtstart = event.getDtstart();
+    long dtend = event.getDtend();
+    if (dtstart == DateTimes.INVALID || dtend == DateTimes.INVALID) {
+      return;
+    }
+    String tzid = event.isUtc() ? null : event.getTzid();
+    long duration = DateTimes.toEpochSecond(dtend) - DateTimes.toEpochSecond(dtstart);
+    Recurrence rrule = event.getRrule();
+    if (rrule == null) {
+      long start = VTimezones.toEpochSecond(tzid, dtstart);
+      if (start < to && start + duration > from) {
+        consumer.accept(start, start + duration);
+      }
+      return;
+    }
+    // bounds in local time wide enough for any offset, then checked exactly in UTC
+    long localFrom = DateTimes.fromEpochSecond(from - duration - MAX_OFFSET);
+    long localTo = DateTimes.fromEpochSecond(to + MAX_OFFSET);
+    PrimitiveIterator.OfLong occurrences = rrule.occurrences(dtstart, tzid, localFrom, localTo);
+    while (occurrences.hasNext()) {
+      long start = VTimezones.toEpochSecond(tzid, occurrences.nextLong());
+      if (start >= to) {
+        return;
+      }
+      if (start + duration > from && !consumer.accept(start, start + duration)) {
+        return;
+      }
+    }
+  }
+}
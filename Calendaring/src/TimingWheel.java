@@ -0,0 +1,210 @@
+package calendaring;
+
+import java.util.Arrays;
+
+/**
+ * A hierarchical timing wheel of one-second ticks (Varghese and Lauck): pending timers hang off
+ * four wheels of 256 slots each, the first a slot per second, the next a slot per 256 seconds and
+ * so on, so together they reach 2^32 seconds ahead. Scheduling puts a timer in the slot of the
+ * coarsest wheel its delay needs and cancelling unlinks it, both O(1) whatever the number
+ * pending. Each time the first wheel comes round, the next slot of the wheel above is emptied
+ * into the wheels below it, so a timer moves down at most three times before it fires. Timers
+ * further ahead than the wheels reach wait in the last one and are placed again each time they
+ * come round.
+ *
+ * There are no timer objects. A timer is an index into parallel arrays of due times, payloads
+ * and the links of the circular doubly-linked list of its slot, whose heads are the first 1024
+ * indexes, so a pending timer costs 24 bytes of heap; freed indexes are reused before the arrays
+ * grow. A bit per slot says which slots hold anything, so advancing over an hour nothing is due
+ * in costs fifteen steps, not 3600.
+ *
+ * Not thread safe; the owner advances it from one thread.
+ */
+final class TimingWheel {
+
+  /** Receives each timer as it fires. */
+  interface Expiry {
+    void expired(long due, long payload);
+  }
+
+  private static final int SLOT_BITS = 8;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int LEVELS = 4;
+  private static final int HEADS = SLOTS * LEVELS;
+  // the furthest ahead a timer can be placed
+  private static final long REACH = (1L << (SLOT_BITS * LEVELS)) - 1;
+  // prev[] of an index on the free list
+  private static final int FREE = -1;
+
+  private long[] due;
+  private long[] payload;
+  private int[] next;
+  private int[] prev;
+  // which slots are not empty, one bit per slot
+  private final long[] occupied = new long[HEADS / 64];
+  private int free = -1;
+  private int used = HEADS;
+  private int size;
+  // every timer due at or before this has fired
+  private long now;
+
+  /** A wheel whose clock reads {@code now}, in seconds. */
+  TimingWheel(long now) {
+    this.now = now;
+    int capacity = HEADS * 2;
+    due = new long[capacity];
+    payload = new long[capacity];
+    next = new int[capacity];
+    prev = new int[capacity];
+    for (int head = 0; head < HEADS; head++) {
+      next[head] = head;
+      prev[head] = head;
+    }
+  }
+
+  /** The time up to which every timer has fired. */
+  long now() {
+    return now;
+  }
+
+  /** How many timers are pending. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Schedules a timer carrying {@code payload} at {@code due} seconds and returns its handle,
+   * good until it fires or is cancelled. A time already past fires on the next tick.
+   */
+  int schedule(long due, long payload) {
+    int timer = allocate();
+    this.due[timer] = due;
+    this.payload[timer] = payload;
+    place(timer, now + 1);
+    size++;
+    return timer;
+  }
+
+  /** Cancels a pending timer. Returns false if it was not pending. */
+  boolean cancel(int timer) {
+    if (timer < HEADS || timer >= used || prev[timer] == FREE) {
+      return false;
+    }
+    unlink(timer);
+    release(timer);
+    size--;
+    return true;
+  }
+
+  /** Moves the clock on to {@code time}, firing every timer due by then in order of due time. */
+  void advance(long time, Expiry expiry) {
+    while (now < time) {
+      if (size == 0) {
+        now = time;
+        return;
+      }
+      long tick = nextTick(time);
+      now = tick;
+      if ((tick & (SLOTS - 1)) == 0) {
+        cascade(tick);
+      }
+      int head = (int) (tick & (SLOTS - 1));
+      // a timer scheduled from expired() lands on a later tick, so this ends
+      while (next[head] != head) {
+        int timer = next[head];
+        long when = due[timer];
+        long carried = payload[timer];
+        unlink(timer);
+        release(timer);
+        size--;
+        expiry.expired(when, carried);
+      }
+    }
+  }
+
+  // the next tick up to time that has timers due or is a cascade point
+  private long nextTick(long time) {
+    long tick = now + 1;
+    int slot = (int) (tick & (SLOTS - 1));
+    if (slot == 0) {
+      return tick;
+    }
+    // the first occupied slot of the first wheel from here to the end of its turn
+    for (int word = slot >>> 6; word < SLOTS / 64; word++) {
+      long bits = occupied[word];
+      if (word == slot >>> 6) {
+        bits &= -1L << (slot & 63);
+      }
+      if (bits != 0) {
+        return Math.min(time, tick - slot + word * 64 + Long.numberOfTrailingZeros(bits));
+      }
+    }
+    return Math.min(time, tick - slot + SLOTS);
+  }
+
+  // empties the slots of the upper wheels that come round at tick into the wheels below
+  private void cascade(long tick) {
+    for (int level = 1; level < LEVELS; level++) {
+      int shift = SLOT_BITS * level;
+      int head = level * SLOTS + (int) ((tick >>> shift) & (SLOTS - 1));
+      while (next[head] != head) {
+        int timer = next[head];
+        unlink(timer);
+        place(timer, tick);
+      }
+      if (((tick >>> shift) & (SLOTS - 1)) != 0) {
+        return;
+      }
+    }
+  }
+
+  // links the timer into the slot of the coarsest wheel its delay from now needs, firing no
+  // sooner than the tick earliest
+  private void place(int timer, long earliest) {
+    long delay = Math.min(Math.max(due[timer], earliest) - now, REACH);
+    long at = now + delay;
+    int level = 0;
+    while (level < LEVELS - 1 && delay >= 1L << (SLOT_BITS * (level + 1))) {
+      level++;
+    }
+    int slot = level * SLOTS + (int) ((at >>> (SLOT_BITS * level)) & (SLOTS - 1));
+    int last = prev[slot];
+    next[last] = timer;
+    prev[timer] = last;
+    next[timer] = slot;
+    prev[slot] = timer;
+    occupied[slot >>> 6] |= 1L << (slot & 63);
+  }
+
+  private void unlink(int timer) {
+    int before = prev[timer];
+    int after = next[timer];
+    next[before] = after;
+    prev[after] = before;
+    if (before == after && before < HEADS) {
+      occupied[before >>> 6] &= ~(1L << (before & 63));
+    }
+  }
+
+  private int allocate() {
+    if (free != -1) {
+      int timer = free;
+      free = next[timer];
+      return timer;
+    }
+    if (used == due.length) {
+      int capacity = due.length * 2;
+      due = Arrays.copyOf(due, capacity);
+      payload = Arrays.copyOf(payload, capacity);
+      next = Arrays.copyOf(next, capacity);
+      prev = Arrays.copyOf(prev, capacity);
+    }
+    return used++;
+  }
+
+  private void release(int timer) {
+    prev[timer] = FREE;
+    next[timer] = free;
+    free = timer;
+  }
+}
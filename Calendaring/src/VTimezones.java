@@ -0,0 +1,311 @@
+package calendaring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneOffsetTransitionRule;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Renders VTIMEZONE components (3.6.5) from the JDK time zone database.
+ *
+ * A block covers only the years the calendar's events fall in: one observance for the offset in
+ * force at the start of the first year, then a STANDARD or DAYLIGHT sub-component for every
+ * offset transition up to the end of the last year. For an open ended range (recurring events
+ * with no UNTIL) the zone's current rules are written as yearly RRULE observances instead of
+ * listing transitions forever. Rendered bytes are cached per TZID and year range, so a bulk
+ * export that uses a handful of zones renders each of them once.
+ *
+ * Local times are converted to UTC against a table per zone of the local times its offset
+ * changes at from 1900 to 2100, built once from the zone's transitions and binary-searched, so a
+ * conversion is an array lookup and no java.time objects. Times outside those years go through
+ * {@link ZoneRules}, with the same results.
+ */
+final class VTimezones {
+
+  /** Last year of a range that never ends. */
+  static final int OPEN_ENDED = 9999;
+
+  private static final Map<String, byte[]> CACHE = new ConcurrentHashMap<String, byte[]>();
+
+  private static final Map<String, ZoneRules> RULES = new ConcurrentHashMap<String, ZoneRules>();
+
+  // by TZID as given, unknown ones included
+  private static final Map<String, Transitions> TRANSITIONS =
+      new ConcurrentHashMap<String, Transitions>();
+  // the zone converted last, as exports convert many times in a row in one zone; racy but safe,
+  // since a Transitions is immutable
+  private static Transitions lastZone;
+  // the years the transition tables cover
+  private static final int TABLE_FROM = 1900;
+  private static final int TABLE_TO = 2100;
+
+  // every zone id, keyed by itself and by its lower case form
+  private static final Map<String, String> IDS = new HashMap<String, String>();
+
+  static {
+    for (String id : ZoneId.getAvailableZoneIds()) {
+      IDS.put(id, id);
+      IDS.putIfAbsent(id.toLowerCase(), id);
+    }
+  }
+
+  private VTimezones() {
+  }
+
+  /**
+   * The tz database spelling of a zone id, matched ignoring case (so "america/new_york" gives
+   * "America/New_York"), or null if there is no such zone.
+   */
+  static String canonicalId(String tzid) {
+    if (tzid == null) {
+      return null;
+    }
+    String id = IDS.get(tzid);
+    return id != null ? id : IDS.get(tzid.toLowerCase());
+  }
+
+  /**
+   * Seconds since 1970-01-01T00:00Z of a packed yyyyMMddHHmmss local time in {@code tzid}. A
+   * time skipped by a forward transition, or repeated by a backward one, is taken with the offset
+   * before the transition, as {@link ZoneRules#getOffset(LocalDateTime)} does. Unknown or null
+   * zones are treated as UTC.
+   */
+  static long toEpochSecond(String tzid, long dateTime) {
+    long local = DateTimes.toEpochSecond(dateTime);
+    if (tzid == null) {
+      return local;
+    }
+    Transitions zone = lastZone;
+    if (zone == null || !zone.tzid.equals(tzid)) {
+      zone = TRANSITIONS.computeIfAbsent(tzid, Transitions::new);
+      lastZone = zone;
+    }
+    if (zone.rules == null) {
+      return local;
+    }
+    if (local >= zone.from && local < zone.to) {
+      return local - zone.offset(local);
+    }
+    ZoneRules rules = zone.rules;
+    int date = DateTimes.date(dateTime);
+    int time = DateTimes.time(dateTime);
+    LocalDateTime ldt = LocalDateTime.of(date / 10000, date / 100 % 100, date % 100,
+        time / 10000, time / 100 % 100, time % 100);
+    return local - rules.getOffset(ldt).getTotalSeconds();
+  }
+
+  /**
+   * The packed yyyyMMddHHmmss local time in {@code tzid} of {@code epochSecond}, seconds since
+   * 1970-01-01T00:00Z. Unknown or null zones are treated as UTC.
+   */
+  static long fromEpochSecond(String tzid, long epochSecond) {
+    String id = canonicalId(tzid);
+    if (id == null) {
+      return DateTimes.fromEpochSecond(epochSecond);
+    }
+    ZoneRules rules = RULES.computeIfAbsent(id, k -> ZoneId.of(k).getRules());
+    return DateTimes.fromEpochSecond(
+        epochSecond + rules.getOffset(Instant.ofEpochSecond(epochSecond)).getTotalSeconds());
+  }
+
+  /**
+   * The offsets of a zone from {@link #TABLE_FROM} to {@link #TABLE_TO}: {@code offsets[i]} is in
+   * force from the local time {@code starts[i]} (epoch seconds read as UTC) until the next one.
+   * Each start is where a transition's later offset begins to apply to local times, which is
+   * the later of the local times the transition happens at by the offsets before and after it:
+   * local times skipped by a gap or repeated by an overlap keep the offset before.
+   */
+  private static final class Transitions {
+    final String tzid;
+    // null for an unknown zone
+    final ZoneRules rules;
+    final long from;
+    final long to;
+    final int initial;
+    final long[] starts;
+    final int[] offsets;
+
+    Transitions(String tzid) {
+      this.tzid = tzid;
+      String id = canonicalId(tzid);
+      rules = id == null ? null : RULES.computeIfAbsent(id, k -> ZoneId.of(k).getRules());
+      from = DateTimes.toEpochSecond(DateTimes.pack(TABLE_FROM * 10000 + 101, 0));
+      to = DateTimes.toEpochSecond(DateTimes.pack((TABLE_TO + 1) * 10000 + 101, 0));
+      // a day either side, so no offset can put a local time in range out of the table
+      Instant first = Instant.ofEpochSecond(from - 86400);
+      initial = rules == null ? 0 : rules.getOffset(first).getTotalSeconds();
+      long[] starts = new long[64];
+      int[] offsets = new int[64];
+      int count = 0;
+      ZoneOffsetTransition t = rules == null ? null : rules.nextTransition(first);
+      while (t != null && t.toEpochSecond() < to + 86400) {
+        if (count == starts.length) {
+          starts = Arrays.copyOf(starts, count * 2);
+          offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        int before = t.getOffsetBefore().getTotalSeconds();
+        int after = t.getOffsetAfter().getTotalSeconds();
+        starts[count] = t.toEpochSecond() + Math.max(before, after);
+        offsets[count++] = after;
+        t = rules.nextTransition(t.getInstant());
+      }
+      this.starts = Arrays.copyOf(starts, count);
+      this.offsets = Arrays.copyOf(offsets, count);
+    }
+
+    int offset(long local) {
+      int i = Arrays.binarySearch(starts, local);
+      // the last start at or before local
+      if (i < 0) {
+        i = -i - 2;
+      }
+      return i < 0 ? initial : offsets[i];
+    }
+  }
+
+  /**
+   * The VTIMEZONE for {@code tzid} covering fromYear-toYear inclusive, CRLF terminated and
+   * folded, or null if the zone is unknown.
+   */
+  static byte[] render(String tzid, int fromYear, int toYear) {
+    if (canonicalId(tzid) == null) {
+      return null;
+    }
+    String key = tzid + '/' + fromYear + '-' + toYear;
+    byte[] block = CACHE.get(key);
+    if (block == null) {
+      block = CACHE.computeIfAbsent(key, k -> renderUncached(tzid, fromYear, toYear));
+    }
+    return block;
+  }
+
+  private static byte[] renderUncached(String tzid, int fromYear, int toYear) {
+    ZoneId zone = ZoneId.of(canonicalId(tzid));
+    ZoneRules rules = zone.getRules();
+    // local midnight opening fromYear up to the one opening the year after toYear
+    Instant from = LocalDateTime.of(fromYear, 1, 1, 0, 0).atZone(zone).toInstant();
+    Instant to = LocalDateTime.of(toYear + 1, 1, 1, 0, 0).atZone(zone).toInstant();
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+    try (IcsWriter writer = new IcsWriter(bytes)) {
+      writer.line("BEGIN:VTIMEZONE");
+      writer.property("TZID");
+      writer.text(tzid, false);
+      writer.endLine();
+
+      // what is in force when the range opens
+      ZoneOffset offset = rules.getOffset(from);
+      observance(writer, rules.isDaylightSavings(from),
+          LocalDateTime.ofInstant(from, offset), offset, offset, null);
+
+      // past the last historical transition only the yearly rules apply
+      List<ZoneOffsetTransitionRule> yearly = rules.getTransitionRules();
+      int rulesFrom = Integer.MAX_VALUE;
+      if (toYear >= OPEN_ENDED && !yearly.isEmpty()) {
+        List<ZoneOffsetTransition> history = rules.getTransitions();
+        int lastYear = history.isEmpty() ? fromYear
+            : history.get(history.size() - 1).getDateTimeAfter().getYear() + 1;
+        rulesFrom = Math.max(fromYear, lastYear);
+        to = LocalDateTime.of(rulesFrom, 1, 1, 0, 0).atZone(zone).toInstant();
+      }
+
+      ZoneOffsetTransition t = rules.nextTransition(from.minusSeconds(1));
+      while (t != null && t.getInstant().isBefore(to)) {
+        observance(writer, rules.isDaylightSavings(t.getInstant()),
+            t.getDateTimeBefore(), t.getOffsetBefore(), t.getOffsetAfter(), null);
+        t = rules.nextTransition(t.getInstant());
+      }
+      if (rulesFrom != Integer.MAX_VALUE) {
+        for (ZoneOffsetTransitionRule rule : yearly) {
+          ZoneOffsetTransition first = rule.createTransition(rulesFrom);
+          observance(writer, rule.getOffsetAfter().getTotalSeconds()
+              > rule.getStandardOffset().getTotalSeconds(), first.getDateTimeBefore(),
+              rule.getOffsetBefore(), rule.getOffsetAfter(), yearlyRule(rule));
+        }
+      }
+      writer.line("END:VTIMEZONE");
+    }
+    catch (IOException e) {
+      // a ByteArrayOutputStream does not fail
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void observance(IcsWriter writer, boolean daylight, LocalDateTime start,
+      ZoneOffset offsetFrom, ZoneOffset offsetTo, String rrule) throws IOException {
+    String name = daylight ? "DAYLIGHT" : "STANDARD";
+    writer.line("BEGIN:" + name);
+    writer.property("DTSTART");
+    writer.dateTime(DateTimes.pack(
+        start.getYear() * 10000 + start.getMonthValue() * 100 + start.getDayOfMonth(),
+        start.getHour() * 10000 + start.getMinute() * 100 + start.getSecond()));
+    writer.endLine();
+    writer.property("TZOFFSETFROM");
+    writer.text(utcOffset(offsetFrom), false);
+    writer.endLine();
+    writer.property("TZOFFSETTO");
+    writer.text(utcOffset(offsetTo), false);
+    writer.endLine();
+    if (rrule != null) {
+      writer.property("RRULE");
+      writer.text(rrule, false);
+      writer.endLine();
+    }
+    writer.line("END:" + name);
+  }
+
+  /** The RRULE for a java.time yearly rule such as "last Sunday in October" or "Sunday on or after the 8th of March". */
+  private static String yearlyRule(ZoneOffsetTransitionRule rule) {
+    StringBuilder sb = new StringBuilder("FREQ=YEARLY;BYMONTH=").append(rule.getMonth().getValue());
+    int dom = rule.getDayOfMonthIndicator();
+    if (rule.getDayOfWeek() == null) {
+      return sb.append(";BYMONTHDAY=").append(dom).toString();
+    }
+    String day = rule.getDayOfWeek().name().substring(0, 2);
+    if (dom == -1) {
+      return sb.append(";BYDAY=-1").append(day).toString();
+    }
+    if (dom > 0 && (dom - 1) % 7 == 0) {
+      return sb.append(";BYDAY=").append((dom - 1) / 7 + 1).append(day).toString();
+    }
+    // the first such weekday within a week of the indicated day (counted from the end if negative)
+    sb.append(";BYDAY=").append(day).append(";BYMONTHDAY=");
+    int first = dom > 0 ? dom : dom - 6;
+    for (int i = 0; i < 7; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(first + i);
+    }
+    return sb.toString();
+  }
+
+  /** UTC-OFFSET value (3.3.14): +HHMM, or +HHMMSS when there are seconds. */
+  static String utcOffset(ZoneOffset offset) {
+    int total = offset.getTotalSeconds();
+    StringBuilder sb = new StringBuilder(7);
+    sb.append(total < 0 ? '-' : '+');
+    total = Math.abs(total);
+    append2(sb, total / 3600);
+    append2(sb, total / 60 % 60);
+    if (total % 60 != 0) {
+      append2(sb, total % 60);
+    }
+    return sb.toString();
+  }
+
+  private static void append2(StringBuilder sb, int value) {
+    sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+  }
+}
@@ -0,0 +1,230 @@
+package calendaring;
+
+import java.util.Arrays;
+
+/**
+ * A bounded dictionary from property values to something worked out from them once, such as
+ * their encoded content line or the one String kept for all copies of a value.
+ *
+ * Values can be looked up by their characters, in a range of a line or in a StringBuilder,
+ * without making a String of them first, so a value seen before costs a hash and a compare and
+ * allocates nothing. The dictionary keeps the values used most recently: past {@code capacity}
+ * entries the least recently used is dropped, so a property whose values hardly ever repeat,
+ * such as SUMMARY, uses a fixed amount of memory instead of growing with the input. Values longer
+ * than {@code maxLength} are not kept at all.
+ *
+ * A value is only kept the second time {@link #admit} is asked about it within a while: the
+ * first time, just its hash is noted in a small table. Values seen once, like most SUMMARYs,
+ * then cost no memory and do not push the values that do repeat out of the dictionary.
+ *
+ * There are no entry objects. An entry is an index into parallel arrays of keys, hashes and
+ * values and of the links of two lists: the chain of its hash bucket and the list of entries
+ * from most to least recently used, whose last is the one dropped. The arrays start small and
+ * double up to {@code capacity}, so a writer that only ever sees a few values pays for a few;
+ * once they are full, keeping or dropping a value allocates nothing either.
+ *
+ * Not thread safe; each reader or writer keeps its own.
+ */
+final class ValueDictionary<V> {
+
+  private static final int NONE = -1;
+  private static final int INITIAL = 16;
+  // most hashes remembered by admit
+  private static final int MAX_SEEN = 1024;
+
+  private final int maxLength;
+  private final int capacity;
+  // first entry of each bucket, NONE if empty; twice as many as entries
+  private int[] buckets;
+  private int[] chain;
+  private int[] hashes;
+  private String[] keys;
+  private Object[] values;
+  // recency list, most recently used first
+  private int[] older;
+  private int[] newer;
+  private int newest = NONE;
+  private int oldest = NONE;
+  private int size;
+  // hashes of values asked about once lately, by their low bits
+  private final int[] seen;
+
+  ValueDictionary(int capacity, int maxLength) {
+    this.maxLength = maxLength;
+    this.capacity = capacity;
+    int entries = Math.min(capacity, INITIAL);
+    chain = new int[entries];
+    hashes = new int[entries];
+    keys = new String[entries];
+    values = new Object[entries];
+    older = new int[entries];
+    newer = new int[entries];
+    rehash();
+    seen = new int[Math.min(Integer.highestOneBit(capacity) * 2, MAX_SEEN)];
+  }
+
+  /** What is kept for {@code value}, or null. */
+  V get(String value) {
+    int hash = value.hashCode();
+    for (int e = buckets[hash & (buckets.length - 1)]; e != NONE; e = chain[e]) {
+      if (hashes[e] == hash && (keys[e] == value || keys[e].equals(value))) {
+        return use(e);
+      }
+    }
+    return null;
+  }
+
+  /** What is kept for the value in {@code chars}, or null. */
+  V get(CharSequence chars) {
+    return get(chars, 0, chars.length());
+  }
+
+  /** What is kept for the value from {@code start} up to {@code end} of {@code chars}, or null. */
+  V get(CharSequence chars, int start, int end) {
+    if (end - start > maxLength) {
+      return null;
+    }
+    // String.hashCode, so the same value finds the same bucket either way
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + chars.charAt(i);
+    }
+    for (int e = buckets[hash & (buckets.length - 1)]; e != NONE; e = chain[e]) {
+      if (hashes[e] == hash && matches(keys[e], chars, start, end)) {
+        return use(e);
+      }
+    }
+    return null;
+  }
+
+  private static boolean matches(String key, CharSequence chars, int start, int end) {
+    if (key.length() != end - start) {
+      return false;
+    }
+    if (chars instanceof String) {
+      return ((String) chars).regionMatches(start, key, 0, end - start);
+    }
+    for (int i = start; i < end; i++) {
+      if (chars.charAt(i) != key.charAt(i - start)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether {@code value}, which was not found, should be kept now: it is short enough and was
+   * asked about before lately. If not, it is remembered as asked about.
+   */
+  boolean admit(String value) {
+    if (value.length() > maxLength) {
+      return false;
+    }
+    int hash = value.hashCode();
+    int slot = hash & (seen.length - 1);
+    if (seen[slot] != hash) {
+      seen[slot] = hash;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Keeps {@code entry} for {@code value}, which was not found, dropping the least recently used
+   * value if the dictionary is full.
+   */
+  void put(String value, V entry) {
+    int e;
+    if (size < capacity) {
+      if (size == keys.length) {
+        grow();
+      }
+      e = size++;
+    }
+    else {
+      e = oldest;
+      unlinkRecent(e);
+      unlinkBucket(e);
+    }
+    int hash = value.hashCode();
+    int bucket = hash & (buckets.length - 1);
+    hashes[e] = hash;
+    keys[e] = value;
+    values[e] = entry;
+    chain[e] = buckets[bucket];
+    buckets[bucket] = e;
+    linkNewest(e);
+  }
+
+  private void grow() {
+    int entries = Math.min(keys.length * 2, capacity);
+    chain = Arrays.copyOf(chain, entries);
+    hashes = Arrays.copyOf(hashes, entries);
+    keys = Arrays.copyOf(keys, entries);
+    values = Arrays.copyOf(values, entries);
+    older = Arrays.copyOf(older, entries);
+    newer = Arrays.copyOf(newer, entries);
+    rehash();
+  }
+
+  // buckets for the current arrays, with every entry in its chain
+  private void rehash() {
+    buckets = new int[Integer.highestOneBit(keys.length) * 2];
+    Arrays.fill(buckets, NONE);
+    for (int e = 0; e < size; e++) {
+      int bucket = hashes[e] & (buckets.length - 1);
+      chain[e] = buckets[bucket];
+      buckets[bucket] = e;
+    }
+  }
+
+  // moves e to the front of the recency list and returns its value
+  @SuppressWarnings("unchecked")
+  private V use(int e) {
+    if (e != newest) {
+      unlinkRecent(e);
+      linkNewest(e);
+    }
+    return (V) values[e];
+  }
+
+  private void linkNewest(int e) {
+    newer[e] = NONE;
+    older[e] = newest;
+    if (newest != NONE) {
+      newer[newest] = e;
+    }
+    newest = e;
+    if (oldest == NONE) {
+      oldest = e;
+    }
+  }
+
+  private void unlinkRecent(int e) {
+    if (newer[e] != NONE) {
+      older[newer[e]] = older[e];
+    }
+    else {
+      newest = older[e];
+    }
+    if (older[e] != NONE) {
+      newer[older[e]] = newer[e];
+    }
+    else {
+      oldest = newer[e];
+    }
+  }
+
+  private void unlinkBucket(int e) {
+    int bucket = hashes[e] & (buckets.length - 1);
+    if (buckets[bucket] == e) {
+      buckets[bucket] = chain[e];
+      return;
+    }
+    int before = buckets[bucket];
+    while (chain[before] != e) {
+      before = chain[before];
+    }
+    chain[before] = chain[e];
+  }
+}